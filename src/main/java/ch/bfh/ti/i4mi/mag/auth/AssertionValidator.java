@@ -0,0 +1,186 @@
+package ch.bfh.ti.i4mi.mag.auth;
+
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ch.bfh.ti.i4mi.mag.common.ExpiringCache;
+import ch.bfh.ti.i4mi.mag.common.JavaUtils;
+import ch.bfh.ti.i4mi.mag.common.XmlUtils;
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.stereotype.Service;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A validator of the SAML assertions received as bearer tokens.
+ * <p>
+ * An assertion is valid if it's signed by one of the trusted certificates, if its issuer is trusted (when a list of
+ * trusted issuers is configured) and if it's within its NotBefore/NotOnOrAfter validity period. Each assertion is
+ * verified only once: the valid assertions are cached, by digest, until their NotOnOrAfter condition.
+ * </p>
+ **/
+@Service
+public class AssertionValidator implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(AssertionValidator.class);
+
+    private final boolean enabled;
+    private final List<Credential> trustedCredentials;
+    private final Set<String> trustedIssuers;
+    private final long clockSkewMillis;
+    private final Clock clock;
+    // The assertions that have been verified. Keys are the assertion digests.
+    private final ExpiringCache<String, Boolean> verifiedAssertions;
+
+    public AssertionValidator(final MagAuthProps authProps) throws Exception {
+        this(authProps.getValidation(), Clock.systemUTC());
+    }
+
+    AssertionValidator(final MagAuthProps.MagAuthValidationProps validationProps,
+                       final Clock clock) throws Exception {
+        this.enabled = validationProps.isEnabled();
+        this.trustedIssuers = Set.copyOf(validationProps.getTrustedIssuers());
+        this.clockSkewMillis = validationProps.getClockSkew().toMillis();
+        this.clock = clock;
+        this.verifiedAssertions = new ExpiringCache<>(validationProps.getCacheMaxSize(), clock);
+        if (this.enabled) {
+            if (validationProps.getTruststore() == null || validationProps.getTruststore().getPath() == null) {
+                throw new IllegalStateException("The assertion validation is enabled, but mag.auth.validation" +
+                                                        ".truststore.path is not set");
+            }
+            this.trustedCredentials = loadTrustedCredentials(validationProps.getTruststore().getPath(),
+                                                             validationProps.getTruststore().getPassword());
+            log.info("Assertion validation enabled with {} trusted certificates", this.trustedCredentials.size());
+        } else {
+            this.trustedCredentials = Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.verifiedAssertions.bindTo(registry, "verified-assertion");
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Validates a SAML assertion.
+     *
+     * @param assertionXml The XML representation of the assertion.
+     * @throws AuthenticationException if the assertion is not valid.
+     */
+    public void validate(final String assertionXml) throws AuthenticationException {
+        final var key = JavaUtils.sha256(assertionXml);
+        if (this.verifiedAssertions.get(key) != null) {
+            return;
+        }
+
+        final Assertion assertion = parse(assertionXml);
+        final Instant notOnOrAfter = this.checkValidityPeriod(assertion);
+        this.checkIssuer(assertion);
+        this.checkSignature(assertion);
+
+        log.debug("The assertion '{}' is valid until {}", assertion.getID(), notOnOrAfter);
+        this.verifiedAssertions.put(key, Boolean.TRUE, notOnOrAfter.toEpochMilli());
+    }
+
+    private Instant checkValidityPeriod(final Assertion assertion) {
+        final var conditions = assertion.getConditions();
+        if (conditions == null || conditions.getNotOnOrAfter() == null) {
+            throw new AuthenticationException("The assertion has no NotOnOrAfter condition");
+        }
+        final long now = this.clock.millis();
+        if (conditions.getNotBefore() != null
+                && now + this.clockSkewMillis < conditions.getNotBefore().toEpochMilli()) {
+            throw new AuthenticationException("The assertion is not valid yet");
+        }
+        if (now - this.clockSkewMillis >= conditions.getNotOnOrAfter().toEpochMilli()) {
+            throw new AuthenticationException("The assertion has expired");
+        }
+        return conditions.getNotOnOrAfter();
+    }
+
+    private void checkIssuer(final Assertion assertion) {
+        if (this.trustedIssuers.isEmpty()) {
+            return;
+        }
+        final String issuer = (assertion.getIssuer() != null) ? assertion.getIssuer().getValue() : null;
+        if (issuer == null || !this.trustedIssuers.contains(issuer)) {
+            throw new AuthenticationException("The assertion issuer is not trusted");
+        }
+    }
+
+    private void checkSignature(final Assertion assertion) {
+        final var signature = assertion.getSignature();
+        if (signature == null) {
+            throw new AuthenticationException("The assertion is not signed");
+        }
+        try {
+            new SAMLSignatureProfileValidator().validate(signature);
+        } catch (final SignatureException e) {
+            log.debug("The assertion signature doesn't match the SAML profile", e);
+            throw new AuthenticationException("The assertion signature is invalid");
+        }
+        for (final var credential : this.trustedCredentials) {
+            try {
+                SignatureValidator.validate(signature, credential);
+                return;
+            } catch (final SignatureException e) {
+                // Try the next trusted certificate
+            }
+        }
+        throw new AuthenticationException("The assertion is not signed by a trusted certificate");
+    }
+
+    private static Assertion parse(final String assertionXml) {
+        try {
+            final Element element = XmlUtils.safeDocumentBuilder()
+                    .parse(new InputSource(new StringReader(assertionXml)))
+                    .getDocumentElement();
+            if (XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(element)
+                    .unmarshall(element) instanceof final Assertion assertion) {
+                return assertion;
+            }
+        } catch (final Exception e) {
+            log.debug("Unable to parse the assertion", e);
+        }
+        throw new AuthenticationException("The assertion is invalid");
+    }
+
+    private static List<Credential> loadTrustedCredentials(final String path,
+                                                           final String password) throws Exception {
+        final KeyStore truststore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (final InputStream is = new DefaultResourceLoader().getResource(path).getInputStream()) {
+            truststore.load(is, (password != null) ? password.toCharArray() : null);
+        }
+        final List<Credential> credentials = new ArrayList<>();
+        for (final String alias : Collections.list(truststore.aliases())) {
+            if (truststore.getCertificate(alias) instanceof final X509Certificate certificate) {
+                credentials.add(new BasicX509Credential(certificate));
+            }
+        }
+        return credentials;
+    }
+}
@@ -1,5 +1,6 @@
 package ch.bfh.ti.i4mi.mag.auth;
 
+import ch.bfh.ti.i4mi.mag.common.XmlUtils;
 import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
 import jakarta.xml.soap.*;
 import org.apache.camel.CamelContext;
@@ -12,13 +13,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
-import java.io.IOException;
 import java.io.StringReader;
 import java.util.UUID;
 
+import static javax.xml.XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
 import static org.opensaml.saml.common.xml.SAMLConstants.SAML20_NS;
 
 @Service
@@ -34,8 +37,24 @@ public class StsService implements CamelContextAware {
     private CamelContext camelContext;
     private ProducerTemplate producerTemplate;
 
-    public StsService(final MagAuthProps authProps) {
+    /**
+     * The ITI-40 request prototype: the parsed template, with the STS issuer already set. The content of its header
+     * and body is copied in each request. A DOM is not thread-safe, even for reads: the copies are made while holding
+     * its lock.
+     */
+    private final Document requestPrototype;
+    private final Element prototypeHeader;
+    private final Element prototypeBody;
+    private final MessageFactory messageFactory;
+
+    public StsService(final MagAuthProps authProps) throws Exception {
         this.authProps = authProps;
+        this.requestPrototype = this.createRequestPrototype();
+        this.prototypeHeader = (Element) this.requestPrototype
+                .getElementsByTagNameNS(SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE, "Header").item(0);
+        this.prototypeBody = (Element) this.requestPrototype
+                .getElementsByTagNameNS(SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE, "Body").item(0);
+        this.messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
     }
 
     @Override
@@ -55,6 +74,28 @@ public class StsService implements CamelContextAware {
                              final String principalName,
                              final String principalGln,
                              final String idpAssertion) throws Exception {
+        final SOAPMessage soapMessage = this.createRequest(eprSpid, purposeOfUse, role, principalName, principalGln,
+                                                           idpAssertion);
+
+        final var exchange = new DefaultExchange(getCamelContext());
+        exchange.getIn().setBody(soapMessage);
+        final Exchange result = this.producerTemplate.send("direct:sts", exchange);
+        if (result.getException() != null) {
+            log.warn("Error during STS query", result.getException());
+            throw result.getException();
+        }
+        return result.getMessage().getBody(String.class);
+    }
+
+    /**
+     * Creates the ITI-40 request from the prototype and the given parameters.
+     */
+    SOAPMessage createRequest(final String eprSpid,
+                              final PurposeOfUse purposeOfUse,
+                              final Role role,
+                              final String principalName,
+                              final String principalGln,
+                              final String idpAssertion) throws Exception {
         final SOAPMessage soapMessage = this.initSoapMessage();
         soapMessage.getSOAPHeader().addChildElement("MessageID", "wsa", WSA).addTextNode(UUID.randomUUID().toString());
         soapMessage.getSOAPHeader().addChildElement("To", "wsa", WSA).addTextNode(this.authProps.getSts());
@@ -64,9 +105,6 @@ public class StsService implements CamelContextAware {
             soapMessage.getSOAPHeader().addChildElement("Security", "wsse", WSSE).appendChild(node);
         }
 
-        soapMessage.getSOAPBody().getElementsByTagNameNS(WSA, "Address").item(0)
-                .setTextContent(this.authProps.getStsIssuer());
-
         final var claims = soapMessage.getSOAPBody().getElementsByTagNameNS(WST, "Claims").item(0);
         this.addEprSpid(claims, eprSpid);
         this.addPurposeOfUse(claims, purposeOfUse);
@@ -75,21 +113,48 @@ public class StsService implements CamelContextAware {
         this.addPrincipalName(claims, principalName);
 
         soapMessage.saveChanges();
+        return soapMessage;
+    }
 
-        final var exchange = new DefaultExchange(getCamelContext());
-        exchange.getIn().setBody(soapMessage);
-        final Exchange result = this.producerTemplate.send("direct:sts", exchange);
-        if (result.getException() != null) {
-            log.warn("Error during STS query", result.getException());
-            throw result.getException();
+    /**
+     * Creates an empty SOAP message and copies the content of the prototype in it, without parsing.
+     */
+    SOAPMessage initSoapMessage() throws SOAPException {
+        final SOAPMessage soapMessage = this.messageFactory.createMessage();
+        synchronized (this.requestPrototype) {
+            copyContent(this.prototypeHeader, soapMessage.getSOAPHeader());
+            copyContent(this.prototypeBody, soapMessage.getSOAPBody());
+        }
+        return soapMessage;
+    }
+
+    /**
+     * Copies the namespace declarations and the children of an element of the prototype to an element of a request.
+     */
+    private static void copyContent(final Element source, final SOAPElement target) throws SOAPException {
+        final NamedNodeMap attributes = source.getAttributes();
+        for (int i = 0; i < attributes.getLength(); ++i) {
+            final Node attribute = attributes.item(i);
+            if (XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                target.addNamespaceDeclaration(attribute.getLocalName(), attribute.getNodeValue());
+            }
+        }
+        final Document targetDocument = target.getOwnerDocument();
+        for (Node child = source.getFirstChild(); child != null; child = child.getNextSibling()) {
+            target.appendChild(targetDocument.importNode(child, true));
         }
-        return result.getMessage().getBody(String.class);
     }
 
-    private SOAPMessage initSoapMessage() throws IOException, SOAPException {
-        final var template = new ClassPathResource("iti40_template.xml");
-        final MessageFactory factory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
-        return factory.createMessage(new MimeHeaders(), template.getInputStream());
+    /**
+     * Loads the ITI-40 template and sets the parts that are the same for all requests.
+     */
+    private Document createRequestPrototype() throws Exception {
+        final Document template;
+        try (final var is = new ClassPathResource("iti40_template.xml").getInputStream()) {
+            template = XmlUtils.safeDocumentBuilder().parse(is);
+        }
+        template.getElementsByTagNameNS(WSA, "Address").item(0).setTextContent(this.authProps.getStsIssuer());
+        return template;
     }
 
     private void addPurposeOfUse(final Node claims, final PurposeOfUse purposeOfUse) {
@@ -10,24 +10,41 @@ import org.opensaml.saml.saml2.core.Conditions;
 import org.opensaml.saml.saml2.core.impl.ResponseMarshaller;
 import org.opensaml.security.credential.Credential;
 import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.keyinfo.KeyInfoGenerator;
 import org.opensaml.xmlsec.keyinfo.impl.X509KeyInfoGeneratorFactory;
 import org.opensaml.xmlsec.signature.Signature;
 import org.opensaml.xmlsec.signature.support.SignatureConstants;
 import org.opensaml.xmlsec.signature.support.Signer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.UUID;
 
+/**
+ * A generator of signed TCU SAML Assertions.
+ * <p>
+ * The template is parsed once, and the signing credential is loaded once and reloaded when the keystore file changes.
+ * A generated assertion is valid for 10 minutes. {@link #currentAssertion()} reuses it until shortly before its
+ * expiration (unless the reuse is disabled), {@link #generateNew()} always signs a new one.
+ * </p>
+ **/
 @Service
 @ConditionalOnProperty({
         "mag.auth.tcu.principal-name",
@@ -38,57 +55,102 @@ import java.util.UUID;
         "mag.auth.tcu.oid"
 })
 public class TcuAssertionGenerator {
+    private static final Logger log = LoggerFactory.getLogger(TcuAssertionGenerator.class);
+    private static final Duration VALIDITY = Duration.ofMinutes(10);
+    // A generated assertion is not reused if it expires within that margin
+    private static final Duration REUSE_MARGIN = Duration.ofMinutes(1);
 
     private final MagAuthProps.MagAuthTcuProps tcuProps;
-
-    public TcuAssertionGenerator(final MagProps magProps) {
-        this.tcuProps = magProps.getAuth().getTcu();
+    private final Resource keystoreResource;
+    // The parsed template, with the TCU OID. It's only used as a source to import nodes from.
+    private final Element templateElement;
+    private final Clock clock;
+
+    // Guarded by this
+    private SigningMaterial signingMaterial;
+    // Guarded by this
+    private GeneratedAssertion lastAssertion;
+
+    @Autowired
+    public TcuAssertionGenerator(final MagProps magProps) throws Exception {
+        this(magProps.getAuth().getTcu(), Clock.systemUTC());
     }
 
-    public String generateNew() throws Exception {
-        // 1. Get and parse the template file
+    TcuAssertionGenerator(final MagAuthProps.MagAuthTcuProps tcuProps,
+                          final Clock clock) throws Exception {
+        this.tcuProps = tcuProps;
+        this.clock = clock;
+        this.keystoreResource = new DefaultResourceLoader().getResource(this.tcuProps.getKeystorePath());
         final String templateContent = this.getTemplateContent().replace("{TCU_OID}", this.tcuProps.getOid());
+        this.templateElement = XmlUtils.safeDocumentBuilder()
+                .parse(new ByteArrayInputStream(templateContent.getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+    }
 
-        final Element templateElement =
-                XmlUtils.newSafeDocumentBuilder().parse(new ByteArrayInputStream(templateContent.getBytes())).getDocumentElement();
-        final Assertion assertion = (Assertion) XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(templateElement).unmarshall(templateElement);
-        this.updateAssertionContent(assertion);
+    /**
+     * Returns a signed TCU assertion: the last generated one if the reuse is enabled and it's still valid for a while,
+     * a new one otherwise.
+     */
+    public synchronized String currentAssertion() throws Exception {
+        final var now = this.clock.instant();
+        if (this.tcuProps.isReuseAssertion() && this.lastAssertion != null
+                && now.isBefore(this.lastAssertion.notOnOrAfter().minus(REUSE_MARGIN))) {
+            log.trace("Reusing the TCU assertion valid until {}", this.lastAssertion.notOnOrAfter());
+            return this.lastAssertion.xml();
+        }
+
+        final var notOnOrAfter = now.plus(VALIDITY);
+        final String xml = this.sign(now, notOnOrAfter);
+        this.lastAssertion = new GeneratedAssertion(xml, notOnOrAfter);
+        return xml;
+    }
+
+    /**
+     * Signs a new TCU assertion, valid from now on. It doesn't replace the one reused by {@link #currentAssertion()}.
+     */
+    public synchronized String generateNew() throws Exception {
+        final var now = this.clock.instant();
+        return this.sign(now, now.plus(VALIDITY));
+    }
+
+    private String sign(final Instant issueInstant, final Instant notOnOrAfter) throws Exception {
+        // 1. Copy the parsed template
+        final Document document = XmlUtils.safeDocumentBuilder().newDocument();
+        document.appendChild(document.importNode(this.templateElement, true));
+        final Element assertionElement = document.getDocumentElement();
+        final Assertion assertion = (Assertion) XMLObjectProviderRegistrySupport.getUnmarshallerFactory()
+                .getUnmarshaller(assertionElement)
+                .unmarshall(assertionElement);
+        this.updateAssertionContent(assertion, issueInstant, notOnOrAfter);
 
         // 2. Build and configure the Signature object
         final Signature signature = (Signature) XMLObjectProviderRegistrySupport.getBuilderFactory()
                 .getBuilder(Signature.DEFAULT_ELEMENT_NAME)
                 .buildObject(Signature.DEFAULT_ELEMENT_NAME);
 
-        final Credential signingCredential = this.getSigningCredential();
+        final SigningMaterial material = this.getSigningMaterial();
 
-        signature.setSigningCredential(signingCredential);
+        signature.setSigningCredential(material.credential());
         signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
         signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        // The KeyInfo element can't be shared between signatures, but its generator can
+        signature.setKeyInfo(material.keyInfoGenerator().generate(material.credential()));
 
-        final var keyInfoGenFactory = new X509KeyInfoGeneratorFactory();
-        keyInfoGenFactory.setEmitEntityCertificate(true);
-        keyInfoGenFactory.setEmitEntityCertificateChain(false);
-        keyInfoGenFactory.setEmitKeyNames(true);
-        signature.setKeyInfo(keyInfoGenFactory.newInstance().generate(signingCredential));
-
-        // 4. Attach the signature to the assertion
+        // 3. Attach the signature to the assertion
         assertion.setSignature(signature);
 
-        // 5. Marshall and sign
+        // 4. Marshall and sign
         XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(assertion).marshall(assertion);
         Signer.signObject(signature);
 
         final ResponseMarshaller marshaller = new ResponseMarshaller();
-        final Element assertionElement = marshaller.marshall(assertion);
-
-        return XmlUtils.serialize(assertionElement);
+        return XmlUtils.serialize(marshaller.marshall(assertion));
     }
 
-    private void updateAssertionContent(final Assertion assertion) {
+    private void updateAssertionContent(final Assertion assertion,
+                                        final Instant issueInstant,
+                                        final Instant notAfter) {
         assertion.setID("Assertion_" + UUID.randomUUID());
-
-        final var issueInstant = Instant.now();
-        final var notAfter = issueInstant.plus(10, ChronoUnit.MINUTES);
         assertion.setIssueInstant(issueInstant);
 
         final Conditions conditions = assertion.getConditions();
@@ -106,14 +168,44 @@ public class TcuAssertionGenerator {
                 .getContentAsString(StandardCharsets.UTF_8);
     }
 
-    private Credential getSigningCredential() throws Exception {
-        final KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+    /**
+     * Returns the signing credential and key info generator, reloading them if the keystore file has changed.
+     */
+    private SigningMaterial getSigningMaterial() throws Exception {
+        final long lastModified = this.getKeystoreLastModified();
+        if (this.signingMaterial == null || this.signingMaterial.keystoreLastModified() != lastModified) {
+            log.debug("Loading the TCU signing credential from {}", this.tcuProps.getKeystorePath());
+            final var credential = this.loadSigningCredential();
+
+            final var keyInfoGenFactory = new X509KeyInfoGeneratorFactory();
+            keyInfoGenFactory.setEmitEntityCertificate(true);
+            keyInfoGenFactory.setEmitEntityCertificateChain(false);
+            keyInfoGenFactory.setEmitKeyNames(true);
+
+            this.signingMaterial = new SigningMaterial(credential, keyInfoGenFactory.newInstance(), lastModified);
+        }
+        return this.signingMaterial;
+    }
 
-        final DefaultResourceLoader loader = new DefaultResourceLoader();
-        final var is = loader.getResource(this.tcuProps.getKeystorePath()).getInputStream();
+    /**
+     * Returns the last modification time of the keystore, or {@code -1} if it can't be determined (e.g. a classpath
+     * resource in a JAR), in which case the keystore is never reloaded.
+     */
+    private long getKeystoreLastModified() {
+        try {
+            return this.keystoreResource.lastModified();
+        } catch (final IOException e) {
+            return -1;
+        }
+    }
+
+    private Credential loadSigningCredential() throws Exception {
+        final KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
 
         // Load KeyStore
-        ks.load(is, this.tcuProps.getKeystorePassword().toCharArray());
+        try (final InputStream is = this.keystoreResource.getInputStream()) {
+            ks.load(is, this.tcuProps.getKeystorePassword().toCharArray());
+        }
 
         // Get Private Key Entry From Certificate
         final KeyStore.PrivateKeyEntry pkEntry =
@@ -130,4 +222,12 @@ public class TcuAssertionGenerator {
         credential.setPrivateKey(pk);
         return credential;
     }
+
+    private record SigningMaterial(Credential credential,
+                                   KeyInfoGenerator keyInfoGenerator,
+                                   long keystoreLastModified) {
+    }
+
+    private record GeneratedAssertion(String xml, Instant notOnOrAfter) {
+    }
 }
@@ -1,17 +1,32 @@
 package ch.bfh.ti.i4mi.mag.auth;
 
+import ch.bfh.ti.i4mi.mag.common.ExpiringCache;
+import ch.bfh.ti.i4mi.mag.common.RefreshAhead;
+import ch.bfh.ti.i4mi.mag.common.SingleFlight;
 import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
-import org.apache.commons.collections4.map.PassiveExpiringMap;
+import ch.bfh.ti.i4mi.mag.sts.StsUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A service for TCU XUA tokens.
+ * <p>
+ * The tokens are cached per EPR-SPID until the NotOnOrAfter condition of the XUA assertion, minus a safety margin.
+ * Concurrent requests for the same EPR-SPID share a single STS request.
+ * </p>
  **/
 @Service
 @ConditionalOnProperty({
@@ -22,32 +37,98 @@ import java.util.concurrent.TimeUnit;
         "mag.auth.tcu.keystore-alias",
         "mag.auth.tcu.oid"
 })
-public class TcuXuaService {
+public class TcuXuaService implements MeterBinder {
     private static final Logger log = LoggerFactory.getLogger(TcuXuaService.class);
+    // The validity of a token whose NotOnOrAfter condition can't be read
+    private static final Duration DEFAULT_TOKEN_TTL = Duration.ofMinutes(4);
 
     private final MagAuthProps authProps;
     private final StsService stsService;
-    private final Map<String, String> cachedTokens = new PassiveExpiringMap<>(4, TimeUnit.MINUTES);
+    private final StsUtils stsUtils;
+    // Keys are EPR-SPIDs, values are the cached XUA tokens.
+    private final ExpiringCache<String, CachedToken> cachedTokens;
     private final TcuAssertionGenerator tcuAssertionGenerator;
+    private final Clock clock;
+    private final long expiryMarginMillis;
+    private final Duration fetchWaitTimeout;
+    // Concurrent fetches for the same EPR-SPID are coalesced. Keys are EPR-SPIDs.
+    private final SingleFlight<String, String> fetches = new SingleFlight<>();
+    // Tokens read shortly before their expiration are refreshed in the background. Keys are EPR-SPIDs.
+    private final RefreshAhead<String> refreshAhead;
+    private final ExecutorService refreshExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
+    private Timer fetchTimer;
+
+    @Autowired
     public TcuXuaService(final MagAuthProps authProps,
                          final StsService stsService,
+                         final StsUtils stsUtils,
                          final TcuAssertionGenerator tcuAssertionGenerator) {
+        this(authProps, stsService, stsUtils, tcuAssertionGenerator, Clock.systemUTC());
+    }
+
+    TcuXuaService(final MagAuthProps authProps,
+                  final StsService stsService,
+                  final StsUtils stsUtils,
+                  final TcuAssertionGenerator tcuAssertionGenerator,
+                  final Clock clock) {
         this.authProps = authProps;
         this.stsService = stsService;
+        this.stsUtils = stsUtils;
         this.tcuAssertionGenerator = tcuAssertionGenerator;
+        this.clock = clock;
+        this.cachedTokens = new ExpiringCache<>(authProps.getTcu().getXuaCacheMaxSize(), clock);
+        this.expiryMarginMillis = authProps.getTcu().getXuaExpiryMargin().toMillis();
+        this.fetchWaitTimeout = authProps.getTcu().getFetchWaitTimeout();
+        this.refreshAhead = new RefreshAhead<>(authProps.getTcu().getXuaRefreshAhead(), this.refreshExecutor);
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.cachedTokens.bindTo(registry, "tcu-xua");
+        this.fetches.bindTo(registry, "tcu-xua-fetch");
+        this.refreshAhead.bindTo(registry, "tcu-xua");
+        this.fetchTimer = Timer.builder("mag.sts.fetch")
+                .description("The time to generate a TCU assertion and exchange it for a XUA token")
+                .tag("operation", "tcu-xua")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        this.refreshExecutor.shutdownNow();
     }
 
     public String getXuaToken(final String eprSpid) {
-        if (this.cachedTokens.containsKey(eprSpid)) {
-            log.trace("Using cached XUA token for EPR-SPID {}: {}", eprSpid, this.cachedTokens.get(eprSpid));
-            return this.cachedTokens.get(eprSpid);
+        final var cachedToken = this.cachedTokens.get(eprSpid);
+        if (cachedToken != null) {
+            log.trace("Using cached XUA token for EPR-SPID {}: {}", eprSpid, cachedToken.token());
+            this.refreshAhead.maybeRefresh(eprSpid, cachedToken.expiresAt(), () -> this.coalescedFetch(eprSpid));
+            return cachedToken.token();
         }
 
         log.trace("No cached XUA token for EPR-SPID {}, fetching new one", eprSpid);
+        return this.coalescedFetch(eprSpid);
+    }
+
+    /**
+     * Fetches a new XUA token, unless a fetch for the same EPR-SPID is already in flight.
+     */
+    private String coalescedFetch(final String eprSpid) {
+        try {
+            return this.fetches.execute(eprSpid, () -> this.fetchXuaToken(eprSpid), this.fetchWaitTimeout);
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new RuntimeException("Failed to fetch XUA token", e);
+        }
+    }
+
+    private String fetchXuaToken(final String eprSpid) {
+        final long start = System.nanoTime();
         final String tcuToken;
         try {
-            tcuToken = this.tcuAssertionGenerator.generateNew();
+            tcuToken = this.tcuAssertionGenerator.currentAssertion();
         } catch (final Exception e) {
             log.debug("Failed to generate TCU token", e);
             throw new RuntimeException("Failed to generate TCU token", e);
@@ -67,9 +148,38 @@ public class TcuXuaService {
         } catch (final Exception e) {
             throw new RuntimeException("Failed to fetch XUA token", e);
         }
-        log.trace("Caching XUA token for EPR-SPID {}: {}", eprSpid, xuaToken);
+        if (this.fetchTimer != null) {
+            this.fetchTimer.record(Duration.ofNanos(System.nanoTime() - start));
+        }
 
-        this.cachedTokens.put(eprSpid, xuaToken);
+        final long now = this.clock.millis();
+        final long expiresAt = this.computeExpiration(xuaToken, now);
+        if (expiresAt <= now) {
+            log.debug("The XUA token for EPR-SPID {} expires within the safety margin, it is not cached", eprSpid);
+            return xuaToken;
+        }
+        log.trace("Caching XUA token for EPR-SPID {} until {}: {}", eprSpid, Instant.ofEpochMilli(expiresAt),
+                  xuaToken);
+        this.cachedTokens.put(eprSpid, new CachedToken(xuaToken, expiresAt), expiresAt);
         return xuaToken;
     }
+
+    /**
+     * Computes the time until which the XUA token can be used: its NotOnOrAfter condition minus the safety margin.
+     */
+    private long computeExpiration(final String xuaToken, final long now) {
+        try {
+            final Instant notOnOrAfter = this.stsUtils.extractNotOnOrAfter(xuaToken);
+            if (notOnOrAfter != null) {
+                return notOnOrAfter.toEpochMilli() - this.expiryMarginMillis;
+            }
+            log.debug("The XUA token has no NotOnOrAfter condition, using the default TTL");
+        } catch (final Exception e) {
+            log.debug("Unable to read the NotOnOrAfter condition of the XUA token, using the default TTL", e);
+        }
+        return now + DEFAULT_TOKEN_TTL.toMillis();
+    }
+
+    private record CachedToken(String token, long expiresAt) {
+    }
 }
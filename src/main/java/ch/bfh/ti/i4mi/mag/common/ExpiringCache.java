@@ -0,0 +1,165 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nullable;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A thread-safe, bounded cache whose entries each have their own expiration time, e.g. the NotOnOrAfter condition of a
+ * SAML assertion.
+ * <p>
+ * When the cache is full, the expired entries are removed; if it's still full, the new entry is not cached. This
+ * keeps the cache simple: it's meant for values that are cheap to keep out of the cache for a while.
+ * </p>
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ **/
+public class ExpiringCache<K, V> {
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final Clock clock;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ExpiringCache(final int maxSize) {
+        this(maxSize, Clock.systemUTC());
+    }
+
+    public ExpiringCache(final int maxSize, final Clock clock) {
+        this.maxSize = maxSize;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns whether the cache is enabled, i.e. its maximum size is positive.
+     */
+    public boolean isEnabled() {
+        return this.maxSize > 0;
+    }
+
+    /**
+     * Returns the cached value, or {@code null} if it's not cached or has expired.
+     */
+    public @Nullable V get(final K key) {
+        final var entry = this.entries.get(key);
+        if (entry == null) {
+            this.misses.increment();
+            return null;
+        }
+        if (entry.expiresAt() <= this.clock.millis()) {
+            if (this.entries.remove(key, entry)) {
+                this.evictions.increment();
+            }
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return entry.value();
+    }
+
+    /**
+     * Caches a value until the given expiration time. Values that have already expired are ignored.
+     *
+     * @param key       The key.
+     * @param value     The value.
+     * @param expiresAt The expiration time, in milliseconds since the epoch.
+     */
+    public void put(final K key, final V value, final long expiresAt) {
+        final long now = this.clock.millis();
+        if (!this.isEnabled() || expiresAt <= now) {
+            return;
+        }
+        if (this.entries.size() >= this.maxSize && !this.entries.containsKey(key)) {
+            this.entries.entrySet().removeIf(entry -> {
+                final boolean expired = entry.getValue().expiresAt() <= now;
+                if (expired) {
+                    this.evictions.increment();
+                }
+                return expired;
+            });
+            if (this.entries.size() >= this.maxSize) {
+                return;
+            }
+        }
+        this.entries.put(key, new Entry<>(value, expiresAt));
+    }
+
+    /**
+     * Removes the entry of the key, if it still holds the given value.
+     *
+     * @return whether the entry has been removed.
+     */
+    public boolean remove(final K key, final V value) {
+        final var entry = this.entries.get(key);
+        return entry != null && entry.value() == value && this.entries.remove(key, entry);
+    }
+
+    /**
+     * Removes the entries whose value matches the filter, e.g. when the cached values have become stale.
+     *
+     * @return the number of removed entries.
+     */
+    public int removeIf(final Predicate<? super V> filter) {
+        final var removed = new AtomicInteger();
+        this.entries.values().removeIf(entry -> {
+            final boolean matches = filter.test(entry.value());
+            if (matches) {
+                removed.incrementAndGet();
+            }
+            return matches;
+        });
+        return removed.get();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Registers the cache size, hit, miss and eviction counters in the given registry.
+     *
+     * @param registry The meter registry.
+     * @param name     The cache name, used as the {@code cache} tag.
+     */
+    public void bindTo(final MeterRegistry registry, final String name) {
+        Gauge.builder("mag.cache.size", this, ExpiringCache::size)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.hits", this, ExpiringCache::getHitCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.misses", this, ExpiringCache::getMissCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.evictions", this, ExpiringCache::getEvictionCount)
+                .tag("cache", name)
+                .register(registry);
+    }
+
+    private record Entry<V>(V value, long expiresAt) {
+    }
+}
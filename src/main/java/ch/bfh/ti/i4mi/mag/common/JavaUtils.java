@@ -2,6 +2,10 @@ package ch.bfh.ti.i4mi.mag.common;
 
 import jakarta.annotation.Nullable;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.List;
 
 public class JavaUtils {
@@ -27,4 +31,19 @@ public class JavaUtils {
         }
         return "********";
     }
+
+    /**
+     * Computes the SHA-256 digest of a string, e.g. to use a large token as a compact cache key.
+     *
+     * @param value The string to digest.
+     * @return the digest, hex-encoded.
+     */
+    public static String sha256(final String value) {
+        try {
+            return HexFormat.of().formatHex(
+                    MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
 }
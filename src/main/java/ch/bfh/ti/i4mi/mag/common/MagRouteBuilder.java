@@ -17,6 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.event.Level;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -189,6 +190,9 @@ public abstract class MagRouteBuilder extends RouteBuilder {
                                 }
                             })
                             .collect(Collectors.joining(",")) + "]";
+                } else if (body instanceof InputStream) {
+                    // Don't consume a streamed response, e.g. a retrieved document
+                    bodyString = "<streamed body>";
                 } else {
                     bodyString = exchange.getMessage().getBody(String.class);
                 }
@@ -0,0 +1,250 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nullable;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe, bidirectional cache of patient identifiers: XAD-PID ↔ EPR-SPID.
+ * <p>
+ * Both directions are indexed, so lookups are O(1) whichever identifier is known. Each mapping expires after a fixed
+ * time-to-live, and the oldest mappings are evicted first when the cache grows over its maximum size.
+ * </p>
+ * <p>
+ * The lookups are lock-free. The updates of the two indexes are guarded by a lock, so that two concurrent updates that
+ * share an identifier cannot leave the indexes pointing at different mappings.
+ * </p>
+ **/
+public class PatientIdCache {
+
+    // Map: keys are XAD-PIDs, values are the cached mappings.
+    private final Map<String, Mapping> byXadPid = new ConcurrentHashMap<>();
+    // Map: keys are EPR-SPIDs, values are the cached mappings.
+    private final Map<String, Mapping> byEprSpid = new ConcurrentHashMap<>();
+    // The mappings in insertion order. Because the TTL is the same for all mappings, it's also the expiration order
+    // (restored mappings are replayed in expiration order too).
+    private final Queue<Mapping> insertionOrder = new ConcurrentLinkedQueue<>();
+    // Guards the updates of byXadPid, byEprSpid and insertionOrder
+    private final Object writeLock = new Object();
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final Clock clock;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PatientIdCache(final Duration ttl, final int maxSize) {
+        this(ttl, maxSize, Clock.systemUTC());
+    }
+
+    PatientIdCache(final Duration ttl, final int maxSize, final Clock clock) {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("The cache TTL shall be positive");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The cache maximum size shall be positive");
+        }
+        this.ttlMillis = ttl.toMillis();
+        this.maxSize = maxSize;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the cached EPR-SPID of the given XAD-PID, or {@code null} if it's not cached or has expired.
+     */
+    public @Nullable String getEprSpid(final String xadPid) {
+        final var mapping = this.getByXadPid(xadPid);
+        return (mapping != null) ? mapping.eprSpid() : null;
+    }
+
+    /**
+     * Returns the cached XAD-PID of the given EPR-SPID, or {@code null} if it's not cached or has expired.
+     */
+    public @Nullable String getXadPid(final String eprSpid) {
+        final var mapping = this.getByEprSpid(eprSpid);
+        return (mapping != null) ? mapping.xadPid() : null;
+    }
+
+    /**
+     * Returns the cached mapping of the given XAD-PID, or {@code null} if it's not cached or has expired.
+     */
+    public @Nullable Mapping getByXadPid(final String xadPid) {
+        return this.lookup(this.byXadPid, xadPid);
+    }
+
+    /**
+     * Returns the cached mapping of the given EPR-SPID, or {@code null} if it's not cached or has expired.
+     */
+    public @Nullable Mapping getByEprSpid(final String eprSpid) {
+        return this.lookup(this.byEprSpid, eprSpid);
+    }
+
+    /**
+     * Caches the mapping between a XAD-PID and an EPR-SPID. Any previous mapping of either identifier is replaced.
+     *
+     * @return the cached mapping.
+     */
+    public Mapping put(final String xadPid, final String eprSpid) {
+        final var mapping = new Mapping(xadPid, eprSpid, this.clock.millis() + this.ttlMillis);
+        this.store(mapping);
+        return mapping;
+    }
+
+    /**
+     * Caches a mapping that has been persisted earlier, with its original expiration time. Expired mappings are
+     * ignored.
+     *
+     * @return {@code true} if the mapping has been cached, {@code false} if it has expired.
+     */
+    public boolean restore(final Mapping mapping) {
+        if (mapping.isExpired(this.clock.millis())) {
+            return false;
+        }
+        this.store(mapping);
+        return true;
+    }
+
+    /**
+     * Returns the mappings that have not expired yet, in expiration order.
+     */
+    public List<Mapping> snapshot() {
+        final long now = this.clock.millis();
+        return this.byXadPid.values().stream()
+                .filter(mapping -> !mapping.isExpired(now))
+                .sorted(Comparator.comparingLong(Mapping::expiresAt))
+                .toList();
+    }
+
+    /**
+     * Removes all mappings from the cache.
+     */
+    public void clear() {
+        synchronized (this.writeLock) {
+            this.byXadPid.clear();
+            this.byEprSpid.clear();
+            this.insertionOrder.clear();
+        }
+    }
+
+    public int size() {
+        return this.byXadPid.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Registers the cache size, hit, miss and eviction counters in the given registry.
+     *
+     * @param registry The meter registry.
+     * @param name     The cache name, used as the {@code cache} tag.
+     */
+    public void bindTo(final MeterRegistry registry, final String name) {
+        Gauge.builder("mag.cache.size", this, PatientIdCache::size)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.hits", this, PatientIdCache::getHitCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.misses", this, PatientIdCache::getMissCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.evictions", this, PatientIdCache::getEvictionCount)
+                .tag("cache", name)
+                .register(registry);
+    }
+
+    private void store(final Mapping mapping) {
+        synchronized (this.writeLock) {
+            final var previousByXadPid = this.byXadPid.put(mapping.xadPid(), mapping);
+            if (previousByXadPid != null && !previousByXadPid.eprSpid().equals(mapping.eprSpid())) {
+                this.byEprSpid.remove(previousByXadPid.eprSpid(), previousByXadPid);
+            }
+            final var previousByEprSpid = this.byEprSpid.put(mapping.eprSpid(), mapping);
+            if (previousByEprSpid != null && !previousByEprSpid.xadPid().equals(mapping.xadPid())) {
+                this.byXadPid.remove(previousByEprSpid.xadPid(), previousByEprSpid);
+            }
+            this.insertionOrder.add(mapping);
+
+            this.evictIfNeeded();
+        }
+    }
+
+    private @Nullable Mapping lookup(final Map<String, Mapping> index, final String key) {
+        final var mapping = index.get(key);
+        if (mapping == null) {
+            this.misses.increment();
+            return null;
+        }
+        if (mapping.isExpired(this.clock.millis())) {
+            this.remove(mapping);
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return mapping;
+    }
+
+    /**
+     * Removes the expired mappings, then the oldest ones while the cache is over its maximum size. The mappings that
+     * have been replaced in the meantime are simply dropped from the queue. The write lock shall be held.
+     */
+    private void evictIfNeeded() {
+        final long now = this.clock.millis();
+        Mapping oldest;
+        while ((oldest = this.insertionOrder.peek()) != null) {
+            final boolean isCurrent = this.byXadPid.get(oldest.xadPid()) == oldest;
+            if (isCurrent && !oldest.isExpired(now) && this.byXadPid.size() <= this.maxSize) {
+                return;
+            }
+            if (this.insertionOrder.remove(oldest) && isCurrent) {
+                this.remove(oldest);
+            }
+        }
+    }
+
+    private void remove(final Mapping mapping) {
+        synchronized (this.writeLock) {
+            final boolean removed = this.byXadPid.remove(mapping.xadPid(), mapping);
+            this.byEprSpid.remove(mapping.eprSpid(), mapping);
+            if (removed) {
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * A cached mapping.
+     *
+     * @param xadPid    The XAD-PID.
+     * @param eprSpid   The EPR-SPID.
+     * @param expiresAt The expiration time, in milliseconds since the epoch.
+     */
+    public record Mapping(String xadPid, String eprSpid, long expiresAt) {
+        boolean isExpired(final long now) {
+            return now >= this.expiresAt;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * A local, append-only log of the patient identifier mappings, used to warm the {@link PatientIdCache} up after a
+ * restart.
+ * <p>
+ * Each cached mapping is appended to the log as a line {@code expiresAt<TAB>xadPid<TAB>eprSpid}. At startup, the log
+ * is replayed into the cache, skipping the expired mappings. Because the log only grows, it is regularly compacted:
+ * it is rewritten with the mappings that are still in the cache.
+ * </p>
+ * <p>
+ * The appended mappings are queued and written by {@link #flush()}, which is called on a schedule, so that no disk I/O
+ * happens on the request path. The log contains patient identifiers: on POSIX file systems, the directory and the
+ * files are only accessible by their owner.
+ * </p>
+ **/
+public class PatientIdCacheStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PatientIdCacheStore.class);
+
+    static final String LOG_FILE_NAME = "patient-id-cache.log";
+    private static final String SEPARATOR = "\t";
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+    private final Path logFile;
+    private final Path compactedFile;
+    // The mappings appended since the last flush
+    private final Queue<PatientIdCache.Mapping> pending = new ConcurrentLinkedQueue<>();
+    private BufferedWriter writer;
+
+    /**
+     * Opens the log in the given directory, creating the directory if needed.
+     *
+     * @param directory The directory where the log is stored.
+     * @throws UncheckedIOException if the directory or the log cannot be created.
+     */
+    public PatientIdCacheStore(final Path directory) {
+        try {
+            if (isPosix(directory) && !Files.exists(directory)) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+            } else {
+                Files.createDirectories(directory);
+            }
+            this.logFile = directory.resolve(LOG_FILE_NAME);
+            this.compactedFile = directory.resolve(LOG_FILE_NAME + ".compacted");
+            this.writer = this.openWriter();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Unable to open the patient identifier cache log in " + directory, e);
+        }
+    }
+
+    /**
+     * Replays the log into the given cache. The expired mappings and the malformed lines are skipped.
+     *
+     * @param cache The cache to fill.
+     * @return the number of restored mappings.
+     */
+    public synchronized int replay(final PatientIdCache cache) {
+        int restored = 0;
+        try (final var lines = Files.lines(this.logFile, StandardCharsets.UTF_8)) {
+            for (final var line : (Iterable<String>) lines::iterator) {
+                final var mapping = parse(line);
+                if (mapping == null) {
+                    log.debug("PatientIdCacheStore: skipping malformed line '{}'", line);
+                    continue;
+                }
+                if (cache.restore(mapping)) {
+                    ++restored;
+                }
+            }
+        } catch (final IOException | UncheckedIOException e) {
+            log.warn("PatientIdCacheStore: unable to replay the log {}, the cache starts empty", this.logFile, e);
+        }
+        return restored;
+    }
+
+    /**
+     * Queues a mapping to be appended to the log by the next {@link #flush()}. It doesn't block nor touch the disk.
+     */
+    public void append(final PatientIdCache.Mapping mapping) {
+        if (isStorable(mapping)) {
+            this.pending.add(mapping);
+        }
+    }
+
+    /**
+     * Writes the queued mappings to the log. An I/O error is logged but not thrown: the mappings are still cached in
+     * memory, and are written by the next compaction.
+     */
+    public synchronized void flush() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        try {
+            for (final var mapping : this.drainPending()) {
+                this.writer.write(format(mapping));
+            }
+            this.writer.flush();
+        } catch (final IOException e) {
+            log.warn("PatientIdCacheStore: unable to append to the log {}", this.logFile, e);
+        }
+    }
+
+    /**
+     * Rewrites the log with the given mappings only. The new log is written next to the current one, then moved over
+     * it, so that a crash during the compaction leaves the previous log untouched.
+     * <p>
+     * The mappings are supplied while holding the log lock, and the queued mappings are written after them, so a
+     * mapping cached concurrently is either in the new log or appended to it by the next flush.
+     * </p>
+     *
+     * @param snapshot The supplier of the mappings to keep, usually {@link PatientIdCache#snapshot()}.
+     */
+    public synchronized void compact(final Supplier<? extends Collection<PatientIdCache.Mapping>> snapshot) {
+        // The queued mappings are usually in the snapshot already
+        final var mappings = new LinkedHashSet<PatientIdCache.Mapping>(snapshot.get());
+        mappings.addAll(this.drainPending());
+        try {
+            Files.deleteIfExists(this.compactedFile);
+            createPrivateFile(this.compactedFile);
+            try (final var compacted = Files.newBufferedWriter(this.compactedFile, StandardCharsets.UTF_8)) {
+                for (final var mapping : mappings) {
+                    if (isStorable(mapping)) {
+                        compacted.write(format(mapping));
+                    }
+                }
+            }
+            this.writer.close();
+            Files.move(this.compactedFile, this.logFile, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            log.debug("PatientIdCacheStore: compacted the log {} to {} mappings", this.logFile, mappings.size());
+        } catch (final IOException e) {
+            log.warn("PatientIdCacheStore: unable to compact the log {}", this.logFile, e);
+        } finally {
+            try {
+                this.writer = this.openWriter();
+            } catch (final IOException e) {
+                log.warn("PatientIdCacheStore: unable to reopen the log {}", this.logFile, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.flush();
+        this.writer.close();
+    }
+
+    private List<PatientIdCache.Mapping> drainPending() {
+        final List<PatientIdCache.Mapping> drained = new ArrayList<>();
+        PatientIdCache.Mapping mapping;
+        while ((mapping = this.pending.poll()) != null) {
+            drained.add(mapping);
+        }
+        return drained;
+    }
+
+    private BufferedWriter openWriter() throws IOException {
+        if (Files.exists(this.logFile)) {
+            if (isPosix(this.logFile)) {
+                Files.setPosixFilePermissions(this.logFile, OWNER_ONLY_FILE);
+            }
+        } else {
+            createPrivateFile(this.logFile);
+        }
+        return Files.newBufferedWriter(this.logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                                       StandardOpenOption.APPEND);
+    }
+
+    private static void createPrivateFile(final Path file) throws IOException {
+        if (isPosix(file)) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+        } else {
+            Files.createFile(file);
+        }
+    }
+
+    private static boolean isPosix(final Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static String format(final PatientIdCache.Mapping mapping) {
+        return mapping.expiresAt() + SEPARATOR + mapping.xadPid() + SEPARATOR + mapping.eprSpid() + "\n";
+    }
+
+    private static @Nullable PatientIdCache.Mapping parse(final String line) {
+        final var parts = line.split(SEPARATOR, -1);
+        if (parts.length != 3 || parts[1].isEmpty() || parts[2].isEmpty()) {
+            return null;
+        }
+        try {
+            return new PatientIdCache.Mapping(parts[1], parts[2], Long.parseLong(parts[0]));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The log is line- and tab-separated, identifiers containing either are not persisted.
+     */
+    private static boolean isStorable(final PatientIdCache.Mapping mapping) {
+        return isStorable(mapping.xadPid()) && isStorable(mapping.eprSpid());
+    }
+
+    private static boolean isStorable(final String identifier) {
+        return !identifier.contains(SEPARATOR) && identifier.indexOf('\n') < 0 && identifier.indexOf('\r') < 0;
+    }
+}
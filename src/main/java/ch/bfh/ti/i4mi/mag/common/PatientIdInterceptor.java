@@ -1,6 +1,7 @@
 package ch.bfh.ti.i4mi.mag.common;
 
 import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
+import ch.bfh.ti.i4mi.mag.mhd.Utils;
 import org.apache.camel.Message;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Identifier;
@@ -45,9 +46,12 @@ public class PatientIdInterceptor {
             return;
         }
 
-        final var patientList = (List<Patient>) message.getBody(List.class);
-        if (patientList != null) {
-            patientList.forEach(patient -> this.interceptIdentifiers(patient.getIdentifier()));
+        final var resourceList = (List<Object>) message.getBody(List.class);
+        if (resourceList != null) {
+            resourceList.stream()
+                    .filter(Patient.class::isInstance)
+                    .map(Patient.class::cast)
+                    .forEach(patient -> this.interceptIdentifiers(patient.getIdentifier()));
             return;
         }
 
@@ -72,6 +76,29 @@ public class PatientIdInterceptor {
         );
     }
 
+    /**
+     * Removes the identifiers of the patient fed with ITI-104 from the negative cache, once the MPI has accepted it.
+     * The mapping of the request is not cached: it comes from the client, not from the MPI.
+     */
+    public void interceptIti104Request(final Message message) {
+        log.trace("interceptIti104Request: Intercepting the patient of the ITI-104 request");
+        final var patient = message.getHeader(Utils.KEPT_BODY, Patient.class);
+        if (patient == null) {
+            log.warn("interceptIti104Request: Unable to read the Patient instance of the request");
+            return;
+        }
+        String eprSpid = null;
+        String xadPid = null;
+        for (final var identifier : patient.getIdentifier()) {
+            if (("urn:oid:" + EPR_SPID_OID).equals(identifier.getSystem())) {
+                eprSpid = identifier.getValue();
+            } else if (("urn:oid:" + this.xadMpiOid).equals(identifier.getSystem())) {
+                xadPid = identifier.getValue();
+            }
+        }
+        this.patientIdMappingService.invalidateUnknown(xadPid, eprSpid);
+    }
+
     public void interceptIdentifiers(final List<Identifier> identifiers) {
         log.trace("interceptIdentifiers: Intercepting list of identifiers with size {}", identifiers.size());
         String eprSpid = null;
@@ -86,6 +113,8 @@ public class PatientIdInterceptor {
 
         if (eprSpid != null && xadPid != null) {
             this.patientIdMappingService.save(xadPid, eprSpid);
+        } else {
+            this.patientIdMappingService.invalidateUnknown(xadPid, eprSpid);
         }
     }
 }
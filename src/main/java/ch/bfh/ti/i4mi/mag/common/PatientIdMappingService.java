@@ -1,13 +1,16 @@
 package ch.bfh.ti.i4mi.mag.common;
 
 import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
 import net.ihe.gazelle.hl7v3.datatypes.II;
 import org.apache.camel.CamelContext;
 import org.apache.camel.CamelContextAware;
 import org.apache.camel.Exchange;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.support.DefaultExchange;
-import org.apache.commons.collections4.map.PassiveExpiringMap;
 import org.openehealth.ipf.commons.ihe.hl7v3.core.metadata.Device;
 import org.openehealth.ipf.commons.ihe.hl7v3.core.requests.PixV3QueryRequest;
 import org.openehealth.ipf.commons.ihe.hl7v3.core.responses.PixV3QueryResponse;
@@ -15,10 +18,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static ch.bfh.ti.i4mi.mag.MagConstants.EPR_SPID_OID;
 
@@ -26,11 +44,22 @@ import static ch.bfh.ti.i4mi.mag.MagConstants.EPR_SPID_OID;
  * A service dedicated to patient identifiers cross-mapping: XAD-PID ↔ EPR-SPID.
  **/
 @Service
-public class PatientIdMappingService implements CamelContextAware {
+public class PatientIdMappingService implements CamelContextAware, MeterBinder {
     private static final Logger log = LoggerFactory.getLogger(PatientIdMappingService.class);
 
-    // Map: keys are XAD-PIDs, values are EPR-SPIDs.
-    private final Map<String, String> cache;
+    private final PatientIdCache cache;
+    // The optional persistent copy of the cache, replayed at startup.
+    private final @Nullable PatientIdCacheStore cacheStore;
+    private final @Nullable ScheduledExecutorService compactionExecutor;
+    // Mappings read shortly before their expiration are refreshed in the background. Keys are the queried identifiers.
+    private final RefreshAhead<String> refreshAhead;
+    private final ExecutorService refreshExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // The identifiers that the MPI doesn't know. Keys are the queried identifiers (root|extension).
+    private final UnknownPatientCache unknownPatients;
+    // Concurrent PIX queries for the same identifier are coalesced. Keys are the queried identifiers (root|extension).
+    private final SingleFlight<String, String> pixQueries = new SingleFlight<>();
+    private final Duration pixQueryWaitTimeout;
+    private final int maxParallelQueries;
 
     private final String xadMpiOid;
     private final Device pixv3Sender;
@@ -41,7 +70,31 @@ public class PatientIdMappingService implements CamelContextAware {
     private final String pixv3Endpoint;
 
     public PatientIdMappingService(final MagMpiProps mpiProps) {
-        this.cache = new PassiveExpiringMap<>(5, TimeUnit.MINUTES);
+        this.cache = new PatientIdCache(mpiProps.getPatientIdCache().getTtl(),
+                                        mpiProps.getPatientIdCache().getMaxSize());
+        if (mpiProps.getPatientIdCache().getPersistenceDirectory() != null) {
+            this.cacheStore = new PatientIdCacheStore(Path.of(mpiProps.getPatientIdCache().getPersistenceDirectory()));
+            final int restored = this.cacheStore.replay(this.cache);
+            log.info("PatientIdMappingService: restored {} patient identifier mappings from {}", restored,
+                     mpiProps.getPatientIdCache().getPersistenceDirectory());
+            this.compactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("patient-id-cache-compaction").daemon().factory());
+            final long intervalMillis = mpiProps.getPatientIdCache().getCompactionInterval().toMillis();
+            this.compactionExecutor.scheduleWithFixedDelay(this::compactCacheStore, 0, intervalMillis,
+                                                           TimeUnit.MILLISECONDS);
+            // The cached mappings are written in the background, not on the request path
+            final long flushMillis = mpiProps.getPatientIdCache().getFlushInterval().toMillis();
+            this.compactionExecutor.scheduleWithFixedDelay(this.cacheStore::flush, flushMillis, flushMillis,
+                                                           TimeUnit.MILLISECONDS);
+        } else {
+            this.cacheStore = null;
+            this.compactionExecutor = null;
+        }
+        this.refreshAhead = new RefreshAhead<>(mpiProps.getPatientIdCache().getRefreshAhead(), this.refreshExecutor);
+        this.unknownPatients = new UnknownPatientCache(mpiProps.getPatientIdCache().getUnknownTtl(),
+                                                       mpiProps.getPatientIdCache().getUnknownMaxSize());
+        this.pixQueryWaitTimeout = mpiProps.getPatientIdCache().getQueryWaitTimeout();
+        this.maxParallelQueries = mpiProps.getPatientIdCache().getMaxParallelQueries();
         this.xadMpiOid = mpiProps.getOids().getMpiPid();
         this.pixv3Endpoint = "pixv3-iti45://%s?secure=%s&audit=%s".formatted(
                 mpiProps.getIti45(),
@@ -67,34 +120,106 @@ public class PatientIdMappingService implements CamelContextAware {
         this.producerTemplate = camelContext.createProducerTemplate();
     }
 
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.cache.bindTo(registry, "patient-id");
+        this.unknownPatients.bindTo(registry, "unknown-patient");
+        this.pixQueries.bindTo(registry, "pix-query");
+        this.refreshAhead.bindTo(registry, "patient-id");
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        this.refreshExecutor.shutdownNow();
+        if (this.compactionExecutor != null) {
+            this.compactionExecutor.shutdownNow();
+        }
+        if (this.cacheStore != null) {
+            this.compactCacheStore();
+            this.cacheStore.close();
+        }
+    }
+
     public String getXadPid(final String eprSpid) throws Exception {
-        final var maybeXadPid = this.cache.entrySet().parallelStream()
-                .filter(entry -> eprSpid.equals(entry.getValue()))
-                .findAny()
-                .map(Map.Entry::getKey);
-        if (maybeXadPid.isPresent()) {
-            log.trace("PatientIdMappingService: cache hit for EPR-SPID={}: XAD-PID={}", eprSpid, maybeXadPid.get());
-            return maybeXadPid.get();
+        final var cachedMapping = this.cache.getByEprSpid(eprSpid);
+        if (cachedMapping != null) {
+            log.trace("PatientIdMappingService: cache hit for EPR-SPID={}: XAD-PID={}", eprSpid,
+                      cachedMapping.xadPid());
+            this.refreshAhead.maybeRefresh(queryKey(new II(EPR_SPID_OID, eprSpid)), cachedMapping.expiresAt(),
+                                           () -> this.queryXadPid(eprSpid));
+            return cachedMapping.xadPid();
         }
 
         log.trace("PatientIdMappingService: cache miss for EPR-SPID={}", eprSpid);
-        final var xadPid = this.query(new II(EPR_SPID_OID, eprSpid), this.xadMpiOid);
-        log.trace("PatientIdMappingService: caching XAD-PID={} with EPR-SPID={}", xadPid, eprSpid);
-        this.cache.put(xadPid, eprSpid);
-        return xadPid;
+        return this.queryXadPid(eprSpid);
     }
 
     public String getEprSpid(final String xadPid) throws Exception {
-        if (this.cache.containsKey(xadPid)) {
-            log.trace("PatientIdMappingService: cache hit for XAD-PID={}: EPR-SPID={}", xadPid, this.cache.get(xadPid));
-            return this.cache.get(xadPid);
+        final var cachedEprSpid = this.getCachedEprSpid(xadPid);
+        if (cachedEprSpid != null) {
+            log.trace("PatientIdMappingService: cache hit for XAD-PID={}: EPR-SPID={}", xadPid, cachedEprSpid);
+            return cachedEprSpid;
         }
 
         log.trace("PatientIdMappingService: cache miss for XAD-PID={}", xadPid);
-        final var eprSpid = this.query(new II(this.xadMpiOid, xadPid), EPR_SPID_OID);
-        log.trace("PatientIdMappingService: caching EPR-SPID={} with XAD-PID={}", eprSpid, xadPid);
-        this.cache.put(xadPid, eprSpid);
-        return eprSpid;
+        return this.queryEprSpid(xadPid);
+    }
+
+    /**
+     * Resolves the EPR-SPIDs of multiple XAD-PIDs at once. The cache misses are queried in parallel, with at most
+     * {@code mag.mpi.patient-id-cache.max-parallel-queries} PIX queries in flight.
+     *
+     * @param xadPids The XAD-PIDs to resolve, duplicates are ignored.
+     * @return a map: keys are XAD-PIDs, values are EPR-SPIDs.
+     * @throws Exception the first exception thrown by a PIX query.
+     */
+    public Map<String, String> getEprSpids(final Collection<String> xadPids) throws Exception {
+        final Map<String, String> resolved = new HashMap<>(xadPids.size());
+        final Set<String> misses = new LinkedHashSet<>();
+        for (final var xadPid : xadPids) {
+            if (resolved.containsKey(xadPid) || misses.contains(xadPid)) {
+                continue;
+            }
+            final var cachedEprSpid = this.getCachedEprSpid(xadPid);
+            if (cachedEprSpid != null) {
+                resolved.put(xadPid, cachedEprSpid);
+            } else {
+                misses.add(xadPid);
+            }
+        }
+        log.trace("PatientIdMappingService: batch of {} XAD-PIDs, {} cache misses", resolved.size() + misses.size(),
+                  misses.size());
+
+        if (misses.size() == 1) {
+            final var xadPid = misses.iterator().next();
+            resolved.put(xadPid, this.queryEprSpid(xadPid));
+        } else if (!misses.isEmpty()) {
+            final var permits = new Semaphore(this.maxParallelQueries);
+            final Map<String, Future<String>> queries = new LinkedHashMap<>(misses.size());
+            try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (final var xadPid : misses) {
+                    queries.put(xadPid, executor.submit(() -> {
+                        permits.acquire();
+                        try {
+                            return this.queryEprSpid(xadPid);
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                }
+                for (final var query : queries.entrySet()) {
+                    try {
+                        resolved.put(query.getKey(), query.getValue().get());
+                    } catch (final ExecutionException e) {
+                        if (e.getCause() instanceof final Exception cause) {
+                            throw cause;
+                        }
+                        throw e;
+                    }
+                }
+            }
+        }
+        return resolved;
     }
 
     public void save(final String xadPid, final String eprSpid) {
@@ -103,7 +228,93 @@ public class PatientIdMappingService implements CamelContextAware {
             return;
         }
         log.trace("PatientIdMappingService: caching XAD-PID={} with EPR-SPID={}", xadPid, eprSpid);
-        this.cache.put(xadPid, eprSpid);
+        this.cacheMapping(xadPid, eprSpid);
+        this.invalidateUnknown(xadPid, eprSpid);
+    }
+
+    /**
+     * Removes the given identifiers from the negative cache, because they have been seen in an MPI response.
+     *
+     * @param xadPid  The XAD-PID, or {@code null}.
+     * @param eprSpid The EPR-SPID, or {@code null}.
+     */
+    public void invalidateUnknown(final @Nullable String xadPid, final @Nullable String eprSpid) {
+        if (xadPid != null) {
+            this.unknownPatients.invalidate(queryKey(new II(this.xadMpiOid, xadPid)));
+        }
+        if (eprSpid != null) {
+            this.unknownPatients.invalidate(queryKey(new II(EPR_SPID_OID, eprSpid)));
+        }
+    }
+
+    /**
+     * Returns the cached EPR-SPID of the given XAD-PID, and schedules its refresh if it expires soon.
+     */
+    private @Nullable String getCachedEprSpid(final String xadPid) {
+        final var cachedMapping = this.cache.getByXadPid(xadPid);
+        if (cachedMapping == null) {
+            return null;
+        }
+        this.refreshAhead.maybeRefresh(queryKey(new II(this.xadMpiOid, xadPid)), cachedMapping.expiresAt(),
+                                       () -> this.queryEprSpid(xadPid));
+        return cachedMapping.eprSpid();
+    }
+
+    private void cacheMapping(final String xadPid, final String eprSpid) {
+        final var mapping = this.cache.put(xadPid, eprSpid);
+        if (this.cacheStore != null) {
+            this.cacheStore.append(mapping);
+        }
+    }
+
+    private void compactCacheStore() {
+        if (this.cacheStore != null) {
+            this.cacheStore.compact(this.cache::snapshot);
+        }
+    }
+
+    private String queryXadPid(final String eprSpid) throws Exception {
+        return this.coalescedQuery(new II(EPR_SPID_OID, eprSpid), this.xadMpiOid, xadPid -> {
+            log.trace("PatientIdMappingService: caching XAD-PID={} with EPR-SPID={}", xadPid, eprSpid);
+            this.cacheMapping(xadPid, eprSpid);
+        });
+    }
+
+    private String queryEprSpid(final String xadPid) throws Exception {
+        return this.coalescedQuery(new II(this.xadMpiOid, xadPid), EPR_SPID_OID, eprSpid -> {
+            log.trace("PatientIdMappingService: caching EPR-SPID={} with XAD-PID={}", eprSpid, xadPid);
+            this.cacheMapping(xadPid, eprSpid);
+        });
+    }
+
+    /**
+     * Sends a PIX query, unless the queried identifier is in the negative cache or the same query is already in
+     * flight.
+     */
+    private String coalescedQuery(final II queriedIdentifier,
+                                  final String wantedSystem,
+                                  final Consumer<String> cacheResult) throws Exception {
+        final var key = queryKey(queriedIdentifier);
+        if (this.unknownPatients.isUnknown(key)) {
+            log.trace("PatientIdMappingService: negative cache hit for identifier {}", key);
+            throw unknownPatient(queriedIdentifier);
+        }
+        return this.pixQueries.execute(key, () -> {
+            final String foundIdentifier;
+            try {
+                foundIdentifier = this.query(queriedIdentifier, wantedSystem);
+            } catch (final UnknownPatientException e) {
+                log.trace("PatientIdMappingService: caching unknown identifier {}", key);
+                this.unknownPatients.markUnknown(key);
+                throw e;
+            }
+            cacheResult.accept(foundIdentifier);
+            return foundIdentifier;
+        }, this.pixQueryWaitTimeout);
+    }
+
+    private static String queryKey(final II queriedIdentifier) {
+        return queriedIdentifier.getRoot() + "|" + queriedIdentifier.getExtension();
     }
 
     private String query(final II queriedIdentifier,
@@ -140,7 +351,11 @@ public class PatientIdMappingService implements CamelContextAware {
                 return identifier.getExtension();
             }
         }
-        throw new UnknownPatientException(
+        throw unknownPatient(queriedIdentifier);
+    }
+
+    private static UnknownPatientException unknownPatient(final II queriedIdentifier) {
+        return new UnknownPatientException(
                 "No patient identifier found for identifier %s|%s".formatted(queriedIdentifier.getRoot(),
                                                                              queriedIdentifier.getExtension())
         );
@@ -0,0 +1,62 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Creates the files and directories that hold patient data (e.g. cached or spooled documents). On POSIX file systems,
+ * they are only accessible to the owner ({@code 600} and {@code 700}); elsewhere, they get the default permissions.
+ **/
+public class PrivateFiles {
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+    /**
+     * This class is not instantiable.
+     */
+    private PrivateFiles() {
+    }
+
+    /**
+     * Creates the directory with owner-only permissions, or restricts the permissions of an existing one. The
+     * permissions can only be changed by the owner of the directory, so a directory created by another user in a
+     * shared temporary directory is refused.
+     *
+     * @throws IOException if the directory cannot be created, is not a directory (or is a symbolic link), or is not
+     *                     owned by the MAG.
+     */
+    public static void createDirectory(final Path directory) throws IOException {
+        if (!isPosix(directory)) {
+            Files.createDirectories(directory);
+            return;
+        }
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+        } else if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " is not a directory");
+        }
+        Files.setPosixFilePermissions(directory, OWNER_ONLY_DIRECTORY);
+    }
+
+    /**
+     * Creates a new temporary file with owner-only permissions in the directory.
+     */
+    public static Path createTempFile(final Path directory,
+                                      final String prefix,
+                                      final String suffix) throws IOException {
+        if (isPosix(directory)) {
+            return Files.createTempFile(directory, prefix, suffix,
+                                        PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+        }
+        return Files.createTempFile(directory, prefix, suffix);
+    }
+
+    private static boolean isPosix(final Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+}
@@ -0,0 +1,115 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Refreshes cache entries asynchronously when they are read shortly before their expiration.
+ * <p>
+ * The caller keeps serving the cached value; the refresh runs on the given executor and is expected to put the new
+ * value in the cache. At most one refresh per key is in progress at any time. A failed refresh is only logged: the
+ * entry then expires normally and the next read after that loads it synchronously.
+ * </p>
+ *
+ * @param <K> The type of the keys.
+ **/
+public class RefreshAhead<K> {
+    private static final Logger log = LoggerFactory.getLogger(RefreshAhead.class);
+
+    private final long windowMillis;
+    private final Executor executor;
+    private final Clock clock;
+    private final Set<K> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param window   How long before the expiration a read triggers a refresh. Zero disables the refresh-ahead.
+     * @param executor The executor running the refreshes.
+     */
+    public RefreshAhead(final Duration window, final Executor executor) {
+        this(window, executor, Clock.systemUTC());
+    }
+
+    RefreshAhead(final Duration window, final Executor executor, final Clock clock) {
+        this.windowMillis = window.toMillis();
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return this.windowMillis > 0;
+    }
+
+    /**
+     * Schedules the refresh of an entry that has just been read, if it expires within the refresh window and no
+     * refresh is already in progress for its key.
+     *
+     * @param key       The key of the entry.
+     * @param expiresAt The expiration time of the entry, in milliseconds since the epoch.
+     * @param refresher The task loading and caching the new value.
+     * @return {@code true} if a refresh has been scheduled, {@code false} otherwise.
+     */
+    public boolean maybeRefresh(final K key,
+                                final long expiresAt,
+                                final Callable<?> refresher) {
+        if (!this.isEnabled() || expiresAt - this.clock.millis() > this.windowMillis) {
+            return false;
+        }
+        if (!this.refreshing.add(key)) {
+            return false;
+        }
+        try {
+            this.executor.execute(() -> {
+                try {
+                    refresher.call();
+                    this.refreshes.increment();
+                } catch (final Exception e) {
+                    this.failures.increment();
+                    log.debug("RefreshAhead: failed to refresh the entry '{}'", key, e);
+                } finally {
+                    this.refreshing.remove(key);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            this.refreshing.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public long getRefreshCount() {
+        return this.refreshes.sum();
+    }
+
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    /**
+     * Registers the counters of successful and failed refreshes in the given registry.
+     *
+     * @param registry The meter registry.
+     * @param name     The cache name, used as the {@code cache} tag.
+     */
+    public void bindTo(final MeterRegistry registry, final String name) {
+        FunctionCounter.builder("mag.cache.refreshes", this, RefreshAhead::getRefreshCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.refresh.failures", this, RefreshAhead::getFailureCount)
+                .tag("cache", name)
+                .register(registry);
+    }
+}
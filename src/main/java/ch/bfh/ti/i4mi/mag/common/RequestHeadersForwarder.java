@@ -4,11 +4,21 @@ import static org.openehealth.ipf.platform.camel.ihe.ws.HeaderUtils.addOutgoingS
 import static org.opensaml.saml.common.xml.SAMLConstants.SAML20_NS;
 
 import java.io.StringReader;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.Base64;
 
 import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.XMLStreamException;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.Nullable;
+import ch.bfh.ti.i4mi.mag.auth.AssertionValidator;
+import ch.bfh.ti.i4mi.mag.config.props.MagProps;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.cxf.binding.soap.SoapHeader;
@@ -16,7 +26,9 @@ import org.apache.cxf.headers.Header;
 import org.apache.cxf.staxutils.StaxUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -30,15 +42,36 @@ import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
  * @author Quentin Ligier
  **/
 @Service
-public class RequestHeadersForwarder {
+public class RequestHeadersForwarder implements MeterBinder {
     private static final Logger log = LoggerFactory.getLogger(RequestHeadersForwarder.class);
     public static final String AUTHORIZATION_HEADER = "Authorization";
     public static final String OASIS_WSSECURITY_NS = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
 
     private final TraceparentHandler traceparentHandler;
+    private final AssertionValidator assertionValidator;
+    // The parsed WS-Security headers, until the expiration of their assertion. Keys are the assertion digests.
+    private final ExpiringCache<String, ParsedSecurityHeader> securityHeaders;
 
-    public RequestHeadersForwarder(final TraceparentHandler traceparentHandler) {
+    @Autowired
+    public RequestHeadersForwarder(final TraceparentHandler traceparentHandler,
+                                   final AssertionValidator assertionValidator,
+                                   final MagProps magProps) {
+        this(traceparentHandler, assertionValidator, magProps.getAuth().getSecurityHeaderCacheMaxSize(),
+             Clock.systemUTC());
+    }
+
+    RequestHeadersForwarder(final TraceparentHandler traceparentHandler,
+                            final AssertionValidator assertionValidator,
+                            final int securityHeaderCacheMaxSize,
+                            final Clock clock) {
         this.traceparentHandler = traceparentHandler;
+        this.assertionValidator = assertionValidator;
+        this.securityHeaders = new ExpiringCache<>(securityHeaderCacheMaxSize, clock);
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.securityHeaders.bindTo(registry, "security-header");
     }
 
     public Processor forward() {
@@ -52,18 +85,59 @@ public class RequestHeadersForwarder {
         };
     }
 
+    /**
+     * Checks the Authorization header: if it's required, it shall be present; if the assertion validation is enabled,
+     * the SAML assertion it contains shall be valid.
+     *
+     * @param check Whether the Authorization header is required.
+     */
     public Processor checkAuthorization(final boolean check) {
         return exchange -> {
             final var authorizationHeader = FhirExchanges.readRequestHttpHeader(AUTHORIZATION_HEADER, exchange, false);
-            if (check && authorizationHeader == null) {
-                throw new AuthenticationException("The Authorization header is missing");
+            if (authorizationHeader == null) {
+                if (check) {
+                    throw new AuthenticationException("The Authorization header is missing");
+                }
+                return;
+            }
+            if (this.assertionValidator.isEnabled()) {
+                this.assertionValidator.validate(decodeSamlAssertion(authorizationHeader));
             }
-            // TODO verify if the token is valid
         };
     }
 
     public void setWsseHeader(final Exchange exchange,
-                                     final String assertion) throws XMLStreamException {
+                              final String assertion) throws XMLStreamException {
+        addOutgoingSoapHeaders(exchange, this.createWsseHeader(exchange, assertion));
+    }
+
+    /**
+     * Creates the WS-Security header of the assertion and sets the user name of the exchange. The header element is
+     * owned by a new document, the parsed assertion is cached until its NotOnOrAfter condition.
+     */
+    SoapHeader createWsseHeader(final Exchange exchange,
+                                final String assertion) throws XMLStreamException {
+        final var key = JavaUtils.sha256(assertion);
+        ParsedSecurityHeader parsed = this.securityHeaders.get(key);
+        if (parsed == null) {
+            parsed = parseSecurityHeader(assertion);
+            final Instant notOnOrAfter = getNotOnOrAfter(parsed.security());
+            if (notOnOrAfter != null) {
+                this.securityHeaders.put(key, parsed, notOnOrAfter.toEpochMilli());
+            }
+        }
+        exchange.setProperty("UserName", parsed.userName());
+
+        final var newHeader = new SoapHeader(new QName(OASIS_WSSECURITY_NS, "Security"), parsed.copySecurity());
+        newHeader.setDirection(Header.Direction.DIRECTION_OUT);
+        return newHeader;
+    }
+
+    ExpiringCache<String, ?> getSecurityHeaders() {
+        return this.securityHeaders;
+    }
+
+    private static ParsedSecurityHeader parseSecurityHeader(final String assertion) throws XMLStreamException {
         String ns = "";
         if (assertion.startsWith("<saml:Assertion")) {
             // https://github.com/ahdis/MobileAccessGateway/issues/24
@@ -80,12 +154,22 @@ public class RequestHeadersForwarder {
         final String user = getNodeValue(security, SAML20_NS, "NameID");
         final String issuer = getNodeValue(security, SAML20_NS, "Issuer");
         final String userName = alias + "<" + user + "@" + issuer + ">";
-        exchange.setProperty("UserName", userName);
-
-        final var newHeader = new SoapHeader(new QName(OASIS_WSSECURITY_NS, "Security"), security);
-        newHeader.setDirection(Header.Direction.DIRECTION_OUT);
+        return new ParsedSecurityHeader(security, userName);
+    }
 
-        addOutgoingSoapHeaders(exchange, newHeader);
+    /**
+     * Returns the NotOnOrAfter condition of the assertion, or {@code null} if it's absent or invalid.
+     */
+    private static @Nullable Instant getNotOnOrAfter(final Element security) {
+        final String notOnOrAfter = getAttrValue(security, SAML20_NS, "Conditions", "NotOnOrAfter");
+        if (notOnOrAfter.isEmpty()) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(notOnOrAfter).toInstant();
+        } catch (final DateTimeParseException e) {
+            return null;
+        }
     }
 
     /**
@@ -104,6 +188,17 @@ public class RequestHeadersForwarder {
             return;
         }
 
+        // It is an encoded SAML assertion, convert it to a WS-Security header
+        log.debug("Converting encoded SAML assertion to WS-Security header");
+        setWsseHeader(exchange, decodeSamlAssertion(authorizationHeader));
+    }
+
+    /**
+     * Extracts the SAML assertion from an Authorization header.
+     *
+     * @throws AuthenticationException if the header doesn't contain a base64-encoded SAML assertion.
+     */
+    private static String decodeSamlAssertion(final String authorizationHeader) {
         // Extract the payload from the Authorization header
         final String payload;
         if (authorizationHeader.startsWith("Bearer ")) {
@@ -115,18 +210,13 @@ public class RequestHeadersForwarder {
         }
 
         if (payload.startsWith("PHNhbWwyOkFzc2") || payload.startsWith("PD94bW") || payload.startsWith("PHNhbWw6QXNzZXJ0aW9u")) {
-            // It is an encoded SAML assertion, convert it to a WS-Security header
-            log.debug("Converting encoded SAML assertion to WS-Security header");
-
             String converted = new String(Base64.getDecoder().decode(payload));
             if (converted.startsWith("<?xml")) {
                 converted = converted.substring(converted.indexOf(">") + 1);
             }
-
-            setWsseHeader(exchange, converted);
-        } else {
-            throw new AuthenticationException("The Authorization header is not in a supported format (invalid parameters)");
+            return converted;
         }
+        throw new AuthenticationException("The Authorization header is not in a supported format (invalid parameters)");
     }
 
     private static String getNodeValue(final Element in,
@@ -151,4 +241,23 @@ public class RequestHeadersForwarder {
         final Node attr = lst.item(0).getAttributes().getNamedItem(attribute);
         return attr != null ? attr.getTextContent() : "";
     }
+
+    /**
+     * A parsed WS-Security header and the user name derived from its assertion. The element is shared between
+     * exchanges, each exchange gets its own copy.
+     */
+    private record ParsedSecurityHeader(Element security, String userName) {
+        Element copySecurity() {
+            final Document document;
+            try {
+                document = XmlUtils.safeDocumentBuilder().newDocument();
+            } catch (final ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            }
+            // The DOM implementation is not thread-safe, even for reading
+            synchronized (this.security) {
+                return (Element) document.importNode(this.security, true);
+            }
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution.
+ * <p>
+ * The first caller for a key runs the loader on its own thread; the callers that arrive while it is running wait for
+ * its result (or its exception) instead of running the loader again. Once the execution has completed, the next call
+ * for the same key runs the loader again: results are not cached here.
+ * </p>
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the results.
+ **/
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Runs the loader, or waits for the in-flight execution of the same key.
+     *
+     * @param key     The key identifying the execution.
+     * @param loader  The loader to run if there is no execution in flight.
+     * @param timeout The maximum time to wait for an in-flight execution.
+     * @return the result of the loader.
+     * @throws TimeoutException if the in-flight execution did not complete in time.
+     * @throws Exception        the exception thrown by the loader (an {@link Error} thrown by the loader is rethrown
+     *                          as is).
+     */
+    public V execute(final K key,
+                     final Callable<V> loader,
+                     final Duration timeout) throws Exception {
+        final var future = new CompletableFuture<V>();
+        final var existing = this.inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            this.coalesced.increment();
+            return this.await(key, existing, timeout);
+        }
+
+        try {
+            final V result = loader.call();
+            future.complete(result);
+            return result;
+        } catch (final Throwable e) {
+            // Errors too, otherwise the followers would wait until their timeout
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the number of calls that waited for an in-flight execution instead of running the loader.
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * Registers the counter of coalesced calls in the given registry.
+     *
+     * @param registry The meter registry.
+     * @param name     The name of the coalesced operation, used as the {@code operation} tag.
+     */
+    public void bindTo(final MeterRegistry registry, final String name) {
+        FunctionCounter.builder("mag.singleflight.coalesced", this, SingleFlight::getCoalescedCount)
+                .tag("operation", name)
+                .register(registry);
+    }
+
+    private V await(final K key,
+                    final CompletableFuture<V> future,
+                    final Duration timeout) throws Exception {
+        try {
+            return future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            throw new TimeoutException("Timed out after %s waiting for the in-flight execution of '%s'".formatted(
+                    timeout, key));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof final Exception cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof final Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
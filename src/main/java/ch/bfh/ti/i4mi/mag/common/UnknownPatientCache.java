@@ -0,0 +1,154 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe negative cache of the patient identifiers that the MPI doesn't know.
+ * <p>
+ * It prevents a client that keeps querying an unknown patient from causing one PIX query per request. The entries
+ * have their own (short) time-to-live, and can be invalidated as soon as the identifier is seen in an MPI response.
+ * </p>
+ **/
+public class UnknownPatientCache {
+
+    // Map: keys are the patient identifiers (root|extension), values are the expiration times (epoch millis).
+    private final Map<String, Long> unknownIdentifiers = new ConcurrentHashMap<>();
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final Clock clock;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public UnknownPatientCache(final Duration ttl, final int maxSize) {
+        this(ttl, maxSize, Clock.systemUTC());
+    }
+
+    UnknownPatientCache(final Duration ttl, final int maxSize, final Clock clock) {
+        this.ttlMillis = ttl.toMillis();
+        this.maxSize = maxSize;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns whether the negative cache is enabled, i.e. its TTL is positive.
+     */
+    public boolean isEnabled() {
+        return this.ttlMillis > 0 && this.maxSize > 0;
+    }
+
+    /**
+     * Returns whether the identifier is known to be unknown by the MPI.
+     */
+    public boolean isUnknown(final String identifier) {
+        if (!this.isEnabled()) {
+            return false;
+        }
+        final Long expiresAt = this.unknownIdentifiers.get(identifier);
+        if (expiresAt == null) {
+            this.misses.increment();
+            return false;
+        }
+        if (this.clock.millis() >= expiresAt) {
+            if (this.unknownIdentifiers.remove(identifier, expiresAt)) {
+                this.evictions.increment();
+            }
+            this.misses.increment();
+            return false;
+        }
+        this.hits.increment();
+        return true;
+    }
+
+    /**
+     * Records that the identifier is unknown by the MPI.
+     */
+    public void markUnknown(final String identifier) {
+        if (!this.isEnabled()) {
+            return;
+        }
+        if (this.unknownIdentifiers.size() >= this.maxSize) {
+            this.evictExpired();
+            if (this.unknownIdentifiers.size() >= this.maxSize) {
+                // Still full: the identifier is not cached, the next request will query the MPI again
+                return;
+            }
+        }
+        this.unknownIdentifiers.put(identifier, this.clock.millis() + this.ttlMillis);
+    }
+
+    /**
+     * Removes the identifier from the negative cache, because it has been seen in an MPI response.
+     */
+    public void invalidate(final String identifier) {
+        if (this.unknownIdentifiers.remove(identifier) != null) {
+            this.invalidations.increment();
+        }
+    }
+
+    public int size() {
+        return this.unknownIdentifiers.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    public long getInvalidationCount() {
+        return this.invalidations.sum();
+    }
+
+    /**
+     * Registers the cache size, hit, miss, eviction and invalidation counters in the given registry.
+     *
+     * @param registry The meter registry.
+     * @param name     The cache name, used as the {@code cache} tag.
+     */
+    public void bindTo(final MeterRegistry registry, final String name) {
+        Gauge.builder("mag.cache.size", this, UnknownPatientCache::size)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.hits", this, UnknownPatientCache::getHitCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.misses", this, UnknownPatientCache::getMissCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.evictions", this, UnknownPatientCache::getEvictionCount)
+                .tag("cache", name)
+                .register(registry);
+        FunctionCounter.builder("mag.cache.invalidations", this, UnknownPatientCache::getInvalidationCount)
+                .tag("cache", name)
+                .register(registry);
+    }
+
+    private void evictExpired() {
+        final long now = this.clock.millis();
+        this.unknownIdentifiers.entrySet().removeIf(entry -> {
+            final boolean expired = now >= entry.getValue();
+            if (expired) {
+                this.evictions.increment();
+            }
+            return expired;
+        });
+    }
+}
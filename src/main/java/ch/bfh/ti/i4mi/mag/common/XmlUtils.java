@@ -6,6 +6,9 @@ import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -13,11 +16,17 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayOutputStream;
+import java.io.Reader;
 
 public class XmlUtils {
 
     private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newDefaultInstance();
     private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newDefaultInstance();
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newDefaultFactory();
+
+    // The factories are not thread-safe, but the builders and transformers they create can be reused by their thread
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = new ThreadLocal<>();
+    private static final ThreadLocal<Transformer> TRANSFORMERS = new ThreadLocal<>();
 
     static {
         try {
@@ -33,6 +42,10 @@ public class XmlUtils {
 
             TRANSFORMER_FACTORY.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
             TRANSFORMER_FACTORY.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+
+            XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
         } catch (ParserConfigurationException e) {
             throw new RuntimeException(e);
         }
@@ -58,6 +71,31 @@ public class XmlUtils {
         return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
     }
 
+    /**
+     * Returns a {@link DocumentBuilder} with the same configuration as {@link #newSafeDocumentBuilder()}, reset and
+     * reused by the calling thread. It must not be kept or shared with other threads.
+     * <p>
+     * Platform threads each keep their own builder, so that they don't contend on the factory lock. Virtual threads
+     * are short-lived and get a new builder.
+     * </p>
+     *
+     * @return a configured {@link DocumentBuilder}.
+     * @throws ParserConfigurationException if the parser is not Xerces2 compatible.
+     */
+    public static DocumentBuilder safeDocumentBuilder() throws ParserConfigurationException {
+        if (Thread.currentThread().isVirtual()) {
+            return newSafeDocumentBuilder();
+        }
+        DocumentBuilder builder = DOCUMENT_BUILDERS.get();
+        if (builder == null) {
+            builder = newSafeDocumentBuilder();
+            DOCUMENT_BUILDERS.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
     /**
      * Initializes and configures a {@link Transformer}.
      *
@@ -68,11 +106,44 @@ public class XmlUtils {
         return TRANSFORMER_FACTORY.newTransformer();
     }
 
+    /**
+     * Returns a {@link Transformer} with the same configuration as {@link #newTransformer()}, reset and reused by the
+     * calling thread. It must not be kept or shared with other threads.
+     *
+     * @return a configured {@link Transformer}.
+     * @throws TransformerConfigurationException if it is not possible to create a {@link Transformer} instance.
+     * @see #safeDocumentBuilder()
+     */
+    public static Transformer transformer() throws TransformerConfigurationException {
+        if (Thread.currentThread().isVirtual()) {
+            return newTransformer();
+        }
+        Transformer transformer = TRANSFORMERS.get();
+        if (transformer == null) {
+            transformer = newTransformer();
+            TRANSFORMERS.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        return transformer;
+    }
+
+    /**
+     * Initializes a {@link XMLStreamReader} that doesn't support DTDs nor external entities.
+     *
+     * @param reader The source of the XML document.
+     * @return a configured {@link XMLStreamReader}.
+     * @throws XMLStreamException if the reader cannot be created.
+     */
+    public static XMLStreamReader newSafeXmlStreamReader(final Reader reader) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(reader);
+    }
+
     public static String serialize(final Node inputNode) throws Exception {
         final var serializerOutput = new ByteArrayOutputStream();
         final var sourceObject = new DOMSource(inputNode);
         final var targetObject = new StreamResult(serializerOutput);
-        final Transformer serializer = newTransformer();
+        final Transformer serializer = transformer();
         serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
         serializer.transform(sourceObject, targetObject);
         return serializerOutput.toString();
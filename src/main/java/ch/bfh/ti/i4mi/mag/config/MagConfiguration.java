@@ -6,7 +6,9 @@ import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.RestfulServerConfiguration;
 import ch.bfh.ti.i4mi.mag.common.TcpSyslogSender;
 import ch.bfh.ti.i4mi.mag.config.props.MagProps;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
 import ch.bfh.ti.i4mi.mag.fhir.MagCapabilityStatementProvider;
+import ch.bfh.ti.i4mi.mag.fhir.SnapshotPagingProvider;
 import jakarta.servlet.Filter;
 import lombok.NonNull;
 import org.openehealth.ipf.boot.atna.ApplicationStartEventListener;
@@ -47,6 +49,15 @@ public class MagConfiguration {
         return new HardcodedServerAddressStrategy(magProps.getFhirBaseUrl());
     }
 
+    @Bean
+    @ConditionalOnProperty(value = "mag.xds.paging.enabled", havingValue = "true", matchIfMissing = true)
+    public SnapshotPagingProvider snapshotPagingProvider(final MagXdsProps xdsProps, final RestfulServer fhirServer) {
+        // This enables the _count parameter and the next/previous links of the FHIR searches (e.g. ITI-67)
+        final var pagingProvider = new SnapshotPagingProvider(xdsProps.getPaging());
+        fhirServer.setPagingProvider(pagingProvider);
+        return pagingProvider;
+    }
+
     @Bean
     @ConditionalOnMissingBean(name = "corsFilterRegistration")
     @ConditionalOnWebApplication
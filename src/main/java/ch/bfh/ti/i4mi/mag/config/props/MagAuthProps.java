@@ -2,6 +2,10 @@ package ch.bfh.ti.i4mi.mag.config.props;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import static ch.bfh.ti.i4mi.mag.common.JavaUtils.hidePasswordInToString;
 
 @ConfigurationProperties(prefix = "mag.auth")
@@ -10,6 +14,9 @@ public class MagAuthProps {
     private String sts;
     private String stsIssuer;
     private MagAuthTcuProps tcu;
+    private MagAuthAssertionCacheProps assertionCache = new MagAuthAssertionCacheProps();
+    private MagAuthValidationProps validation = new MagAuthValidationProps();
+    private int securityHeaderCacheMaxSize = 10_000;
 
     public String getSts() {
         return this.sts;
@@ -35,12 +42,39 @@ public class MagAuthProps {
         this.tcu = tcu;
     }
 
+    public MagAuthAssertionCacheProps getAssertionCache() {
+        return this.assertionCache;
+    }
+
+    public void setAssertionCache(final MagAuthAssertionCacheProps assertionCache) {
+        this.assertionCache = assertionCache;
+    }
+
+    public MagAuthValidationProps getValidation() {
+        return this.validation;
+    }
+
+    public void setValidation(final MagAuthValidationProps validation) {
+        this.validation = validation;
+    }
+
+    public int getSecurityHeaderCacheMaxSize() {
+        return this.securityHeaderCacheMaxSize;
+    }
+
+    public void setSecurityHeaderCacheMaxSize(final int securityHeaderCacheMaxSize) {
+        this.securityHeaderCacheMaxSize = securityHeaderCacheMaxSize;
+    }
+
     @Override
     public String toString() {
         return "MagAuthProps{" +
                 "sts='" + sts + '\'' +
                 ", stsIssuer='" + stsIssuer + '\'' +
                 ", tcu=" + tcu +
+                ", assertionCache=" + assertionCache +
+                ", validation=" + validation +
+                ", securityHeaderCacheMaxSize=" + securityHeaderCacheMaxSize +
                 '}';
     }
 
@@ -53,6 +87,11 @@ public class MagAuthProps {
         private String keystoreAlias;
         private String oid;
         private boolean autoInjectInIti65;
+        private boolean reuseAssertion = true;
+        private Duration xuaRefreshAhead = Duration.ZERO;
+        private Duration xuaExpiryMargin = Duration.ofSeconds(30);
+        private int xuaCacheMaxSize = 10_000;
+        private Duration fetchWaitTimeout = Duration.ofSeconds(30);
 
         public String getPrincipalName() {
             return this.principalName;
@@ -110,6 +149,46 @@ public class MagAuthProps {
             this.autoInjectInIti65 = autoInjectInIti65;
         }
 
+        public boolean isReuseAssertion() {
+            return this.reuseAssertion;
+        }
+
+        public void setReuseAssertion(final boolean reuseAssertion) {
+            this.reuseAssertion = reuseAssertion;
+        }
+
+        public Duration getXuaRefreshAhead() {
+            return this.xuaRefreshAhead;
+        }
+
+        public void setXuaRefreshAhead(final Duration xuaRefreshAhead) {
+            this.xuaRefreshAhead = xuaRefreshAhead;
+        }
+
+        public Duration getXuaExpiryMargin() {
+            return this.xuaExpiryMargin;
+        }
+
+        public void setXuaExpiryMargin(final Duration xuaExpiryMargin) {
+            this.xuaExpiryMargin = xuaExpiryMargin;
+        }
+
+        public int getXuaCacheMaxSize() {
+            return this.xuaCacheMaxSize;
+        }
+
+        public void setXuaCacheMaxSize(final int xuaCacheMaxSize) {
+            this.xuaCacheMaxSize = xuaCacheMaxSize;
+        }
+
+        public Duration getFetchWaitTimeout() {
+            return this.fetchWaitTimeout;
+        }
+
+        public void setFetchWaitTimeout(final Duration fetchWaitTimeout) {
+            this.fetchWaitTimeout = fetchWaitTimeout;
+        }
+
         @Override
         public String toString() {
             return "MagAuthTcuProps{" +
@@ -120,6 +199,101 @@ public class MagAuthProps {
                     ", keystoreAlias='" + keystoreAlias + '\'' +
                     ", oid='" + oid + '\'' +
                     ", autoInjectInIti65=" + autoInjectInIti65 +
+                    ", reuseAssertion=" + reuseAssertion +
+                    ", xuaRefreshAhead=" + xuaRefreshAhead +
+                    ", xuaExpiryMargin=" + xuaExpiryMargin +
+                    ", xuaCacheMaxSize=" + xuaCacheMaxSize +
+                    ", fetchWaitTimeout=" + fetchWaitTimeout +
+                    '}';
+        }
+    }
+
+    public static class MagAuthAssertionCacheProps {
+
+        private int maxSize = 10_000;
+        private Duration expiryMargin = Duration.ofSeconds(30);
+
+        public int getMaxSize() {
+            return this.maxSize;
+        }
+
+        public void setMaxSize(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Duration getExpiryMargin() {
+            return this.expiryMargin;
+        }
+
+        public void setExpiryMargin(final Duration expiryMargin) {
+            this.expiryMargin = expiryMargin;
+        }
+
+        @Override
+        public String toString() {
+            return "MagAuthAssertionCacheProps{" +
+                    "maxSize=" + maxSize +
+                    ", expiryMargin=" + expiryMargin +
+                    '}';
+        }
+    }
+
+    public static class MagAuthValidationProps {
+
+        private boolean enabled;
+        private StoreProps truststore;
+        private List<String> trustedIssuers = new ArrayList<>();
+        private Duration clockSkew = Duration.ofMinutes(1);
+        private int cacheMaxSize = 10_000;
+
+        public boolean isEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public StoreProps getTruststore() {
+            return this.truststore;
+        }
+
+        public void setTruststore(final StoreProps truststore) {
+            this.truststore = truststore;
+        }
+
+        public List<String> getTrustedIssuers() {
+            return this.trustedIssuers;
+        }
+
+        public void setTrustedIssuers(final List<String> trustedIssuers) {
+            this.trustedIssuers = trustedIssuers;
+        }
+
+        public Duration getClockSkew() {
+            return this.clockSkew;
+        }
+
+        public void setClockSkew(final Duration clockSkew) {
+            this.clockSkew = clockSkew;
+        }
+
+        public int getCacheMaxSize() {
+            return this.cacheMaxSize;
+        }
+
+        public void setCacheMaxSize(final int cacheMaxSize) {
+            this.cacheMaxSize = cacheMaxSize;
+        }
+
+        @Override
+        public String toString() {
+            return "MagAuthValidationProps{" +
+                    "enabled=" + enabled +
+                    ", truststore=" + truststore +
+                    ", trustedIssuers=" + trustedIssuers +
+                    ", clockSkew=" + clockSkew +
+                    ", cacheMaxSize=" + cacheMaxSize +
                     '}';
         }
     }
@@ -2,6 +2,8 @@ package ch.bfh.ti.i4mi.mag.config.props;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.time.Duration;
+
 @ConfigurationProperties(prefix = "mag.mpi")
 public class MagMpiProps {
 
@@ -14,6 +16,7 @@ public class MagMpiProps {
     private boolean chPdqmConstraints;
     private boolean chEprspidAsPatientId;
     private String localPatientIdAssigningAuthority;
+    private MagMpiPatientIdCacheProps patientIdCache = new MagMpiPatientIdCacheProps();
 
     public boolean isHttps() {
         return this.https;
@@ -87,6 +90,14 @@ public class MagMpiProps {
         this.localPatientIdAssigningAuthority = localPatientIDAssigningAuthority;
     }
 
+    public MagMpiPatientIdCacheProps getPatientIdCache() {
+        return this.patientIdCache;
+    }
+
+    public void setPatientIdCache(final MagMpiPatientIdCacheProps patientIdCache) {
+        this.patientIdCache = patientIdCache;
+    }
+
     @Override
     public String toString() {
         return "MagMpiProps{" +
@@ -99,6 +110,7 @@ public class MagMpiProps {
                 ", chPdqmConstraints=" + chPdqmConstraints +
                 ", chEprspidAsPatientId=" + chEprspidAsPatientId +
                 ", localPatientIdAssigningAuthority='" + localPatientIdAssigningAuthority + '\'' +
+                ", patientIdCache=" + patientIdCache +
                 '}';
     }
 
@@ -152,4 +164,114 @@ public class MagMpiProps {
                     '}';
         }
     }
+
+    public static class MagMpiPatientIdCacheProps {
+
+        private Duration ttl = Duration.ofMinutes(5);
+        private Duration refreshAhead = Duration.ZERO;
+        private int maxSize = 50_000;
+        private Duration queryWaitTimeout = Duration.ofSeconds(30);
+        private int maxParallelQueries = 8;
+        private Duration unknownTtl = Duration.ofSeconds(30);
+        private int unknownMaxSize = 10_000;
+        private String persistenceDirectory;
+        private Duration compactionInterval = Duration.ofMinutes(10);
+        private Duration flushInterval = Duration.ofSeconds(1);
+
+        public Duration getTtl() {
+            return this.ttl;
+        }
+
+        public void setTtl(final Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public Duration getRefreshAhead() {
+            return this.refreshAhead;
+        }
+
+        public void setRefreshAhead(final Duration refreshAhead) {
+            this.refreshAhead = refreshAhead;
+        }
+
+        public int getMaxSize() {
+            return this.maxSize;
+        }
+
+        public void setMaxSize(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Duration getQueryWaitTimeout() {
+            return this.queryWaitTimeout;
+        }
+
+        public void setQueryWaitTimeout(final Duration queryWaitTimeout) {
+            this.queryWaitTimeout = queryWaitTimeout;
+        }
+
+        public int getMaxParallelQueries() {
+            return this.maxParallelQueries;
+        }
+
+        public void setMaxParallelQueries(final int maxParallelQueries) {
+            this.maxParallelQueries = maxParallelQueries;
+        }
+
+        public Duration getUnknownTtl() {
+            return this.unknownTtl;
+        }
+
+        public void setUnknownTtl(final Duration unknownTtl) {
+            this.unknownTtl = unknownTtl;
+        }
+
+        public int getUnknownMaxSize() {
+            return this.unknownMaxSize;
+        }
+
+        public void setUnknownMaxSize(final int unknownMaxSize) {
+            this.unknownMaxSize = unknownMaxSize;
+        }
+
+        public String getPersistenceDirectory() {
+            return this.persistenceDirectory;
+        }
+
+        public void setPersistenceDirectory(final String persistenceDirectory) {
+            this.persistenceDirectory = persistenceDirectory;
+        }
+
+        public Duration getCompactionInterval() {
+            return this.compactionInterval;
+        }
+
+        public void setCompactionInterval(final Duration compactionInterval) {
+            this.compactionInterval = compactionInterval;
+        }
+
+        public Duration getFlushInterval() {
+            return this.flushInterval;
+        }
+
+        public void setFlushInterval(final Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        @Override
+        public String toString() {
+            return "MagMpiPatientIdCacheProps{" +
+                    "ttl=" + ttl +
+                    ", refreshAhead=" + refreshAhead +
+                    ", maxSize=" + maxSize +
+                    ", queryWaitTimeout=" + queryWaitTimeout +
+                    ", maxParallelQueries=" + maxParallelQueries +
+                    ", unknownTtl=" + unknownTtl +
+                    ", unknownMaxSize=" + unknownMaxSize +
+                    ", persistenceDirectory='" + persistenceDirectory + '\'' +
+                    ", compactionInterval=" + compactionInterval +
+                    ", flushInterval=" + flushInterval +
+                    '}';
+        }
+    }
 }
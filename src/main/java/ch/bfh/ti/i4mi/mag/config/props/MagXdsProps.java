@@ -1,6 +1,11 @@
 package ch.bfh.ti.i4mi.mag.config.props;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.convert.DurationUnit;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 
 @ConfigurationProperties(prefix = "mag.xds")
 public class MagXdsProps {
@@ -15,6 +20,23 @@ public class MagXdsProps {
     private String iti57;
     private String retrieve;
     private boolean chMhdConstraints;
+    // Whether the metadata of the document is queried for each ITI-68 request, so that all responses carry an ETag
+    private boolean retrieveEtag;
+    // The maximum time to wait for the ITI-18 response of the internal community
+    private Duration iti18Timeout = Duration.ofSeconds(30);
+    // The maximum time to wait for the XCA ITI-38 response of the external communities
+    private Duration xca38Timeout = Duration.ofSeconds(60);
+    // The maximum time to wait for the ITI-43 response of the internal community, in a batch retrieve
+    private Duration iti43Timeout = Duration.ofSeconds(60);
+    // The maximum time to wait for the XCA ITI-39 response of an external community, in a batch retrieve
+    private Duration xca39Timeout = Duration.ofSeconds(120);
+    private MagXdsPagingProps paging = new MagXdsPagingProps();
+    private MagXdsObjectRefQueryProps objectRefQuery = new MagXdsObjectRefQueryProps();
+    private MagXdsQueryCacheProps queryCache = new MagXdsQueryCacheProps();
+    private MagXdsTranslationProps translation = new MagXdsTranslationProps();
+    private MagXdsDocumentCacheProps documentCache = new MagXdsDocumentCacheProps();
+    private MagXdsBatchRetrieveProps batchRetrieve = new MagXdsBatchRetrieveProps();
+    private MagXdsSpoolingProps spooling = new MagXdsSpoolingProps();
 
     public boolean isHttps() {
         return this.https;
@@ -96,6 +118,102 @@ public class MagXdsProps {
         this.chMhdConstraints = chMhdConstraints;
     }
 
+    public boolean isRetrieveEtag() {
+        return this.retrieveEtag;
+    }
+
+    public void setRetrieveEtag(final boolean retrieveEtag) {
+        this.retrieveEtag = retrieveEtag;
+    }
+
+    public Duration getIti18Timeout() {
+        return this.iti18Timeout;
+    }
+
+    public void setIti18Timeout(final Duration iti18Timeout) {
+        this.iti18Timeout = iti18Timeout;
+    }
+
+    public Duration getXca38Timeout() {
+        return this.xca38Timeout;
+    }
+
+    public void setXca38Timeout(final Duration xca38Timeout) {
+        this.xca38Timeout = xca38Timeout;
+    }
+
+    public Duration getIti43Timeout() {
+        return this.iti43Timeout;
+    }
+
+    public void setIti43Timeout(final Duration iti43Timeout) {
+        this.iti43Timeout = iti43Timeout;
+    }
+
+    public Duration getXca39Timeout() {
+        return this.xca39Timeout;
+    }
+
+    public void setXca39Timeout(final Duration xca39Timeout) {
+        this.xca39Timeout = xca39Timeout;
+    }
+
+    public MagXdsPagingProps getPaging() {
+        return this.paging;
+    }
+
+    public void setPaging(final MagXdsPagingProps paging) {
+        this.paging = paging;
+    }
+
+    public MagXdsObjectRefQueryProps getObjectRefQuery() {
+        return this.objectRefQuery;
+    }
+
+    public void setObjectRefQuery(final MagXdsObjectRefQueryProps objectRefQuery) {
+        this.objectRefQuery = objectRefQuery;
+    }
+
+    public MagXdsQueryCacheProps getQueryCache() {
+        return this.queryCache;
+    }
+
+    public void setQueryCache(final MagXdsQueryCacheProps queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public MagXdsTranslationProps getTranslation() {
+        return this.translation;
+    }
+
+    public void setTranslation(final MagXdsTranslationProps translation) {
+        this.translation = translation;
+    }
+
+    public MagXdsDocumentCacheProps getDocumentCache() {
+        return this.documentCache;
+    }
+
+    public void setDocumentCache(final MagXdsDocumentCacheProps documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    public MagXdsBatchRetrieveProps getBatchRetrieve() {
+        return this.batchRetrieve;
+    }
+
+    public void setBatchRetrieve(final MagXdsBatchRetrieveProps batchRetrieve) {
+        this.batchRetrieve = batchRetrieve;
+    }
+
+    public MagXdsSpoolingProps getSpooling() {
+        return this.spooling;
+    }
+
+    public void setSpooling(final MagXdsSpoolingProps spooling) {
+        this.spooling = spooling;
+    }
+
     @Override
     public String toString() {
         return "MagXdsProps{" +
@@ -109,6 +227,321 @@ public class MagXdsProps {
                 ", iti57='" + iti57 + '\'' +
                 ", retrieve='" + retrieve + '\'' +
                 ", chMhdConstraints=" + chMhdConstraints +
+                ", retrieveEtag=" + retrieveEtag +
+                ", iti18Timeout=" + iti18Timeout +
+                ", xca38Timeout=" + xca38Timeout +
+                ", iti43Timeout=" + iti43Timeout +
+                ", xca39Timeout=" + xca39Timeout +
+                ", paging=" + paging +
+                ", objectRefQuery=" + objectRefQuery +
+                ", queryCache=" + queryCache +
+                ", translation=" + translation +
+                ", documentCache=" + documentCache +
+                ", batchRetrieve=" + batchRetrieve +
+                ", spooling=" + spooling +
                 '}';
     }
+
+    public static class MagXdsPagingProps {
+
+        private boolean enabled = true;
+        // 0 means that all results are returned if the client doesn't specify _count
+        private int defaultPageSize = 0;
+        private int maxPageSize = 500;
+        private Duration ttl = Duration.ofMinutes(10);
+        private int maxSnapshots = 200;
+        private int maxResources = 50_000;
+
+        public boolean isEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getDefaultPageSize() {
+            return this.defaultPageSize;
+        }
+
+        public void setDefaultPageSize(final int defaultPageSize) {
+            this.defaultPageSize = defaultPageSize;
+        }
+
+        public int getMaxPageSize() {
+            return this.maxPageSize;
+        }
+
+        public void setMaxPageSize(final int maxPageSize) {
+            this.maxPageSize = maxPageSize;
+        }
+
+        public Duration getTtl() {
+            return this.ttl;
+        }
+
+        public void setTtl(final Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public int getMaxSnapshots() {
+            return this.maxSnapshots;
+        }
+
+        public void setMaxSnapshots(final int maxSnapshots) {
+            this.maxSnapshots = maxSnapshots;
+        }
+
+        public int getMaxResources() {
+            return this.maxResources;
+        }
+
+        public void setMaxResources(final int maxResources) {
+            this.maxResources = maxResources;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsPagingProps{" +
+                    "enabled=" + enabled +
+                    ", defaultPageSize=" + defaultPageSize +
+                    ", maxPageSize=" + maxPageSize +
+                    ", ttl=" + ttl +
+                    ", maxSnapshots=" + maxSnapshots +
+                    ", maxResources=" + maxResources +
+                    '}';
+        }
+    }
+
+    public static class MagXdsObjectRefQueryProps {
+
+        private boolean enabled;
+        // The maximum number of entries per GetDocuments query
+        private int batchSize = 50;
+        // How long the references found by a search are kept for its following pages
+        private Duration ttl = Duration.ofMinutes(10);
+        private int maxSize = 1_000;
+
+        public boolean isEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getBatchSize() {
+            return this.batchSize;
+        }
+
+        public void setBatchSize(final int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getTtl() {
+            return this.ttl;
+        }
+
+        public void setTtl(final Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public int getMaxSize() {
+            return this.maxSize;
+        }
+
+        public void setMaxSize(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsObjectRefQueryProps{" +
+                    "enabled=" + enabled +
+                    ", batchSize=" + batchSize +
+                    ", ttl=" + ttl +
+                    ", maxSize=" + maxSize +
+                    '}';
+        }
+    }
+
+    public static class MagXdsQueryCacheProps {
+
+        private boolean enabled;
+        // How long a query result is reused, in seconds if no unit is given
+        @DurationUnit(ChronoUnit.SECONDS)
+        private Duration ttl = Duration.ofSeconds(30);
+        private int maxSize = 1_000;
+
+        public boolean isEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getTtl() {
+            return this.ttl;
+        }
+
+        public void setTtl(final Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public int getMaxSize() {
+            return this.maxSize;
+        }
+
+        public void setMaxSize(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsQueryCacheProps{" +
+                    "enabled=" + enabled +
+                    ", ttl=" + ttl +
+                    ", maxSize=" + maxSize +
+                    '}';
+        }
+    }
+
+    public static class MagXdsTranslationProps {
+
+        // The number of DocumentEntries from which a response is translated in parallel; 0 disables it
+        private int parallelThreshold = 0;
+        // The number of translation threads; 0 means the number of processors
+        private int threads = 0;
+
+        public int getParallelThreshold() {
+            return this.parallelThreshold;
+        }
+
+        public void setParallelThreshold(final int parallelThreshold) {
+            this.parallelThreshold = parallelThreshold;
+        }
+
+        public int getThreads() {
+            return this.threads;
+        }
+
+        public void setThreads(final int threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsTranslationProps{" +
+                    "parallelThreshold=" + parallelThreshold +
+                    ", threads=" + threads +
+                    '}';
+        }
+    }
+
+    public static class MagXdsDocumentCacheProps {
+
+        private boolean enabled;
+        // The directory where the retrieved documents are stored
+        private String directory;
+        // The maximum size of all cached documents
+        private DataSize maxSize = DataSize.ofGigabytes(1);
+        // The maximum size of a cached document; larger documents are not cached
+        private DataSize maxEntrySize = DataSize.ofMegabytes(20);
+
+        public boolean isEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return this.directory;
+        }
+
+        public void setDirectory(final String directory) {
+            this.directory = directory;
+        }
+
+        public DataSize getMaxSize() {
+            return this.maxSize;
+        }
+
+        public void setMaxSize(final DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public DataSize getMaxEntrySize() {
+            return this.maxEntrySize;
+        }
+
+        public void setMaxEntrySize(final DataSize maxEntrySize) {
+            this.maxEntrySize = maxEntrySize;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsDocumentCacheProps{" +
+                    "enabled=" + enabled +
+                    ", directory='" + directory + '\'' +
+                    ", maxSize=" + maxSize +
+                    ", maxEntrySize=" + maxEntrySize +
+                    '}';
+        }
+    }
+
+    public static class MagXdsBatchRetrieveProps {
+
+        // The maximum number of documents retrieved by a batch request
+        private int maxDocuments = 20;
+
+        public int getMaxDocuments() {
+            return this.maxDocuments;
+        }
+
+        public void setMaxDocuments(final int maxDocuments) {
+            this.maxDocuments = maxDocuments;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsBatchRetrieveProps{" +
+                    "maxDocuments=" + maxDocuments +
+                    '}';
+        }
+    }
+
+    public static class MagXdsSpoolingProps {
+
+        // The documents of an ITI-65 request from this size are moved to temporary files; 0 to disable
+        private DataSize threshold = DataSize.ofMegabytes(1);
+        // The directory of the temporary files, or null for a mag-spool directory in the system temporary directory
+        private String directory;
+
+        public DataSize getThreshold() {
+            return this.threshold;
+        }
+
+        public void setThreshold(final DataSize threshold) {
+            this.threshold = threshold;
+        }
+
+        public String getDirectory() {
+            return this.directory;
+        }
+
+        public void setDirectory(final String directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public String toString() {
+            return "MagXdsSpoolingProps{" +
+                    "threshold=" + threshold +
+                    ", directory='" + directory + '\'' +
+                    '}';
+        }
+    }
 }
@@ -0,0 +1,161 @@
+package ch.bfh.ti.i4mi.mag.fhir;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ch.bfh.ti.i4mi.mag.common.JavaUtils;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A HAPI paging provider that keeps snapshots of the search results, e.g. the DocumentReferences translated from an
+ * ITI-18/ITI-38 response, so that the following pages are served without querying the registries again.
+ * <p>
+ * The snapshots expire after a fixed time, and the oldest ones are evicted when there are too many snapshots or
+ * resources. A search with more results than the maximum number of resources is refused, as it can't be paged. A
+ * snapshot can only be read with the same Authorization header as the search that created it.
+ * </p>
+ **/
+public class SnapshotPagingProvider extends BasePagingProvider implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotPagingProvider.class);
+    // The page size used when none is configured: larger than any registry response
+    private static final int UNLIMITED_PAGE_SIZE = 100_000;
+
+    // Map: keys are the snapshot IDs, values are the snapshots, from the oldest to the newest.
+    private final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<>();
+    private final long ttlMillis;
+    private final int maxSnapshots;
+    private final int maxResources;
+    private final Clock clock;
+    // The number of resources in all snapshots
+    private int resources;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SnapshotPagingProvider(final MagXdsProps.MagXdsPagingProps pagingProps) {
+        this(pagingProps, Clock.systemUTC());
+    }
+
+    SnapshotPagingProvider(final MagXdsProps.MagXdsPagingProps pagingProps,
+                           final Clock clock) {
+        this.ttlMillis = pagingProps.getTtl().toMillis();
+        this.maxSnapshots = pagingProps.getMaxSnapshots();
+        this.maxResources = pagingProps.getMaxResources();
+        this.clock = clock;
+        this.setMaximumPageSize(pagingProps.getMaxPageSize());
+        this.setDefaultPageSize((pagingProps.getDefaultPageSize() > 0)
+                                        ? pagingProps.getDefaultPageSize() : UNLIMITED_PAGE_SIZE);
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder("mag.cache.size", this, SnapshotPagingProvider::size)
+                .tag("cache", "search-snapshot")
+                .register(registry);
+        FunctionCounter.builder("mag.cache.hits", this.hits, LongAdder::sum)
+                .tag("cache", "search-snapshot")
+                .register(registry);
+        FunctionCounter.builder("mag.cache.misses", this.misses, LongAdder::sum)
+                .tag("cache", "search-snapshot")
+                .register(registry);
+        FunctionCounter.builder("mag.cache.evictions", this.evictions, LongAdder::sum)
+                .tag("cache", "search-snapshot")
+                .register(registry);
+    }
+
+    @Override
+    public synchronized @Nullable IBundleProvider retrieveResultList(final @Nullable RequestDetails requestDetails,
+                                                                     final String searchId) {
+        final var snapshot = this.snapshots.get(searchId);
+        if (snapshot == null || snapshot.expiresAt() <= this.clock.millis()) {
+            this.misses.increment();
+            return null;
+        }
+        if (!Objects.equals(snapshot.authorizationDigest(), authorizationDigest(requestDetails))) {
+            log.debug("The snapshot {} was requested with another Authorization header", searchId);
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return snapshot.results();
+    }
+
+    @Override
+    public synchronized String storeResultList(final @Nullable RequestDetails requestDetails,
+                                               final IBundleProvider results) {
+        final long now = this.clock.millis();
+        final int size = Objects.requireNonNullElse(results.size(), 0);
+        if (size > this.maxResources) {
+            // It would evict all other snapshots and still exceed the limit
+            log.warn("Refused to store a search snapshot with {} results, the maximum is {}", size, this.maxResources);
+            throw new InvalidRequestException(
+                    "The search has %d results, more than the %d that can be paged. Please narrow the search."
+                            .formatted(size, this.maxResources));
+        }
+        this.evict(now, size);
+
+        final String searchId = UUID.randomUUID().toString();
+        this.snapshots.put(searchId, new Snapshot(results, size, now + this.ttlMillis,
+                                                  authorizationDigest(requestDetails)));
+        this.resources += size;
+        log.debug("Stored the search snapshot {} with {} results", searchId, size);
+        return searchId;
+    }
+
+    public synchronized int size() {
+        return this.snapshots.size();
+    }
+
+    /**
+     * Removes the expired snapshots, then the oldest ones until there's room for a new snapshot of the given size.
+     */
+    private void evict(final long now, final int newSize) {
+        final Iterator<Map.Entry<String, Snapshot>> iterator = this.snapshots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Snapshot snapshot = iterator.next().getValue();
+            final boolean full = this.snapshots.size() >= this.maxSnapshots
+                    || this.resources + newSize > this.maxResources;
+            // The snapshots are ordered by expiration time: stop at the first one that is kept
+            if (!full && snapshot.expiresAt() > now) {
+                break;
+            }
+            iterator.remove();
+            this.resources -= snapshot.size();
+            this.evictions.increment();
+        }
+    }
+
+    /**
+     * Returns the digest of the Authorization header of the request, or {@code null} if it has none.
+     */
+    private static @Nullable String authorizationDigest(final @Nullable RequestDetails requestDetails) {
+        if (requestDetails == null) {
+            return null;
+        }
+        final String authorization = requestDetails.getHeader("Authorization");
+        return (authorization != null) ? JavaUtils.sha256(authorization) : null;
+    }
+
+    private record Snapshot(IBundleProvider results,
+                            int size,
+                            long expiresAt,
+                            @Nullable String authorizationDigest) {
+    }
+}
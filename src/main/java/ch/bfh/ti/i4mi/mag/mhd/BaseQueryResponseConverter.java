@@ -28,11 +28,13 @@ import org.openehealth.ipf.commons.ihe.xds.core.metadata.AssigningAuthority;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Author;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.CXiAssigningAuthority;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Code;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Identifiable;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.LocalizedString;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Name;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Person;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.ReferenceId;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.SubmissionSet;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Telecom;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Timestamp;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Timestamp.Precision;
@@ -42,7 +44,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import static ch.bfh.ti.i4mi.mag.MagConstants.EPR_SPID_OID;
 import static ch.bfh.ti.i4mi.mag.mhd.Utils.isUnprefixedOid;
@@ -401,6 +408,18 @@ public abstract class BaseQueryResponseConverter extends BaseResponseConverter i
      * @return
      */
     public Reference transformPatient(Identifiable patient) {
+        return this.transformPatient(patient, Map.of());
+    }
+
+    /**
+     * XDS Identifiable -> FHIR Patient Reference, using the EPR-SPIDs already resolved by
+     * {@link #resolveEprSpids(QueryResponse)}.
+     *
+     * @param patient
+     * @param resolvedEprSpids a map: keys are XAD-PIDs, values are EPR-SPIDs.
+     * @return
+     */
+    public Reference transformPatient(final Identifiable patient, final Map<String, String> resolvedEprSpids) {
         final String givenXadOid = patient.getAssigningAuthority().getUniversalId();
         final String givenXadId = patient.getId();
         if (!this.mpiOidsProps.getMpiPid().equals(givenXadOid)) {
@@ -412,7 +431,10 @@ public abstract class BaseQueryResponseConverter extends BaseResponseConverter i
             throw new UnknownPatientException(message);
         }
         try {
-            final var eprSpid = this.patientIdMappingService.getEprSpid(givenXadId);
+            String eprSpid = resolvedEprSpids.get(givenXadId);
+            if (eprSpid == null) {
+                eprSpid = this.patientIdMappingService.getEprSpid(givenXadId);
+            }
             final var reference = new Reference();
             reference.getIdentifier().setSystem("urn:oid:" + EPR_SPID_OID);
             reference.getIdentifier().setValue(eprSpid);
@@ -427,6 +449,38 @@ public abstract class BaseQueryResponseConverter extends BaseResponseConverter i
         }
     }
 
+    /**
+     * Resolves in one batch the EPR-SPIDs of all patients referenced by the DocumentEntries and SubmissionSets of a
+     * query response, instead of resolving them one by one while translating the entries.
+     *
+     * @param response The XDS query response.
+     * @return a map: keys are XAD-PIDs, values are EPR-SPIDs.
+     */
+    protected Map<String, String> resolveEprSpids(final QueryResponse response) {
+        final Set<String> xadPids = new HashSet<>();
+        final var mpiPidOid = this.mpiOidsProps.getMpiPid();
+        Stream.concat(
+                response.getDocumentEntries().stream().map(DocumentEntry::getPatientId),
+                response.getSubmissionSets().stream().map(SubmissionSet::getPatientId)
+        )
+                .filter(Objects::nonNull)
+                // Patient IDs from other assigning authorities are rejected later by transformPatient()
+                .filter(patientId -> patientId.getAssigningAuthority() != null
+                        && mpiPidOid.equals(patientId.getAssigningAuthority().getUniversalId()))
+                .forEach(patientId -> xadPids.add(patientId.getId()));
+        if (xadPids.isEmpty()) {
+            return Map.of();
+        }
+
+        try {
+            return this.patientIdMappingService.getEprSpids(xadPids);
+        } catch (final Exception e) {
+            final var message = "Failed to map XAD-PIDs to EPR-SPIDs for patient IDs %s".formatted(xadPids);
+            log.warn(message, e);
+            throw new UnknownPatientException(message, e);
+        }
+    }
+
     /**
      * XDS Identifiable -> FHIR CodeableConcept
      *
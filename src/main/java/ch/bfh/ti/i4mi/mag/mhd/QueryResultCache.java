@@ -0,0 +1,219 @@
+package ch.bfh.ti.i4mi.mag.mhd;
+
+import ch.bfh.ti.i4mi.mag.common.ExpiringCache;
+import ch.bfh.ti.i4mi.mag.common.JavaUtils;
+import ch.bfh.ti.i4mi.mag.config.props.MagProps;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.Nullable;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Identifiable;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.FindDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+import org.openehealth.ipf.platform.camel.ihe.xds.core.converters.EbXML30Converters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * A short-lived cache of the ITI-18/XCA ITI-38 query results, for the clients that run the same search again and
+ * again (e.g. on refresh).
+ * <p>
+ * The results are keyed by the normalized query and the principal (the digest of the Authorization header), so they
+ * are never shared between users. The results of a patient are invalidated when the gateway forwards a write for that
+ * patient (ITI-65, CH:MHD-1); the results of the queries without a patient ID are invalidated by any write. A query
+ * that was running during a write is not cached.
+ * </p>
+ **/
+@Component
+public class QueryResultCache implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+    // The patient key of the queries without a patient ID
+    private static final String NO_PATIENT = "";
+
+    // Keys are the digests of the normalized query and principal, values are the cached results
+    private final ExpiringCache<String, Entry> entries;
+    private final long ttlMillis;
+    private final Clock clock;
+    // Incremented by each write, so that a query that was running meanwhile is not cached
+    private final AtomicLong writes = new AtomicLong();
+
+    @Autowired
+    public QueryResultCache(final MagProps magProps) {
+        this(magProps.getXds().getQueryCache(), Clock.systemUTC());
+    }
+
+    QueryResultCache(final MagXdsProps.MagXdsQueryCacheProps queryCacheProps,
+                     final Clock clock) {
+        this.entries = new ExpiringCache<>(queryCacheProps.isEnabled() ? queryCacheProps.getMaxSize() : 0, clock);
+        this.ttlMillis = queryCacheProps.getTtl().toMillis();
+        this.clock = clock;
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.entries.bindTo(registry, "query-result");
+    }
+
+    public boolean isEnabled() {
+        return this.entries.isEnabled();
+    }
+
+    /**
+     * Prepares the lookup of a query. It shall be created before the query is sent, so that a concurrent write is
+     * detected.
+     *
+     * @param queryRegistry The query.
+     * @param principal     The identity of the user, e.g. a digest of the Authorization header.
+     */
+    public Lookup lookup(final QueryRegistry queryRegistry, final @Nullable String principal) {
+        final String patient = (queryRegistry.getQuery() instanceof final FindDocumentsQuery query)
+                ? patientKey(query.getPatientId()) : NO_PATIENT;
+        final String key = JavaUtils.sha256(Objects.requireNonNullElse(principal, "") + '\u0000'
+                                                    + normalize(queryRegistry));
+        return new Lookup(key, patient, this.writes.get(), this.clock.millis());
+    }
+
+    /**
+     * Returns a copy of the cached results, or {@code null} if they're not cached.
+     */
+    public @Nullable QueryResponse get(final Lookup lookup) {
+        final var entry = this.entries.get(lookup.key());
+        return (entry != null) ? copyOf(entry.response()) : null;
+    }
+
+    /**
+     * Caches the results of a successful query, unless a write has been forwarded since the lookup was created.
+     */
+    public void put(final Lookup lookup, final QueryResponse response) {
+        if (!this.isEnabled() || response.getStatus() != Status.SUCCESS || this.writes.get() != lookup.writes()) {
+            return;
+        }
+        // The TTL starts with the query, so that the results are never older than the TTL
+        final var entry = new Entry(copyOf(response), lookup.patient());
+        this.entries.put(lookup.key(), entry, lookup.startedAt() + this.ttlMillis);
+        if (this.writes.get() != lookup.writes()) {
+            // A write has been forwarded meanwhile, and may not have seen this entry
+            this.entries.remove(lookup.key(), entry);
+        }
+    }
+
+    /**
+     * Invalidates the cached results of a patient, and those of the queries without a patient ID. It shall be called
+     * after the write has been forwarded.
+     *
+     * @param patientId The patient ID of the written metadata, or {@code null} to invalidate all results.
+     */
+    public void invalidate(final @Nullable Identifiable patientId) {
+        if (!this.isEnabled()) {
+            return;
+        }
+        this.writes.incrementAndGet();
+        final String patient = (patientId != null) ? patientKey(patientId) : null;
+        final int removed = this.entries.removeIf(entry -> patient == null
+                || patient.equals(entry.patient())
+                || NO_PATIENT.equals(entry.patient()));
+        log.debug("Invalidated {} cached query results of the patient {}", removed, patient);
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns a normalized form of the query: its ebXML slots, sorted by name and value (including the values of the
+     * lists, e.g. {@code ('a','b')}), so that the order of the search parameters doesn't matter.
+     */
+    static String normalize(final QueryRegistry queryRegistry) {
+        final var request = EbXML30Converters.convert(queryRegistry);
+        final var adhocQuery = request.getAdhocQuery();
+        final String slots = adhocQuery.getSlot().stream()
+                .map(slot -> slot.getName() + '=' + ((slot.getValueList() != null)
+                        ? slot.getValueList().getValue().stream()
+                                .flatMap(value -> splitList(value).stream())
+                                .sorted()
+                                .collect(Collectors.joining("|"))
+                        : ""))
+                .sorted()
+                .collect(Collectors.joining("\n"));
+        return adhocQuery.getId() + '\n'
+                + Objects.requireNonNullElse(adhocQuery.getHome(), "") + '\n'
+                + request.getResponseOption().getReturnType() + '\n'
+                + slots;
+    }
+
+    /**
+     * Splits a slot value in the list format, e.g. {@code ('a','b')}, into its elements. Other values are returned as
+     * is.
+     */
+    static List<String> splitList(final String value) {
+        final String trimmed = value.trim();
+        if (!trimmed.startsWith("(") || !trimmed.endsWith(")")) {
+            return List.of(value);
+        }
+        final List<String> elements = new ArrayList<>();
+        final var element = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 1; i < trimmed.length() - 1; ++i) {
+            final char c = trimmed.charAt(i);
+            if (c == '\'') {
+                // An escaped quote ('') toggles twice
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                elements.add(element.toString().trim());
+                element.setLength(0);
+                continue;
+            }
+            element.append(c);
+        }
+        elements.add(element.toString().trim());
+        return elements;
+    }
+
+    static String patientKey(final @Nullable Identifiable patientId) {
+        if (patientId == null) {
+            return NO_PATIENT;
+        }
+        final var authority = patientId.getAssigningAuthority();
+        return patientId.getId() + "^^^&" + ((authority != null) ? authority.getUniversalId() : "") + "&ISO";
+    }
+
+    /**
+     * Returns a copy of the response; the metadata objects are shared, they're not modified by the translation.
+     */
+    private static QueryResponse copyOf(final QueryResponse response) {
+        final var copy = new QueryResponse(response.getStatus());
+        copy.getDocumentEntries().addAll(response.getDocumentEntries());
+        copy.getSubmissionSets().addAll(response.getSubmissionSets());
+        copy.getFolders().addAll(response.getFolders());
+        copy.getAssociations().addAll(response.getAssociations());
+        copy.getReferences().addAll(response.getReferences());
+        copy.getDocuments().addAll(response.getDocuments());
+        copy.getErrors().addAll(response.getErrors());
+        return copy;
+    }
+
+    /**
+     * The lookup of a query.
+     *
+     * @param key       The digest of the normalized query and principal.
+     * @param patient   The patient key of the query.
+     * @param writes    The number of writes when the lookup was created.
+     * @param startedAt The time the lookup was created, in milliseconds since the epoch.
+     */
+    public record Lookup(String key, String patient, long writes, long startedAt) {
+    }
+
+    private record Entry(QueryResponse response, String patient) {
+    }
+}
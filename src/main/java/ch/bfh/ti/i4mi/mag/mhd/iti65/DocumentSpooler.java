@@ -0,0 +1,96 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti65;
+
+import ch.bfh.ti.i4mi.mag.common.PrivateFiles;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import jakarta.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Moves the content of the large documents of an ITI-65 request to temporary files, so that their bytes are released
+ * while the ITI-41 request is sent (possibly several times, see the confidentiality code retries). It doesn't lower
+ * the peak memory of the request: the FHIR Bundle has already been parsed in memory when the documents are spooled.
+ * <p>
+ * The size and SHA-1 hash of the document are computed while it's written. The files contain patient data: on POSIX
+ * file systems, the directory and the files are only accessible to the owner ({@code 700} and {@code 600}).
+ * </p>
+ **/
+class DocumentSpooler {
+    private static final String FILE_PREFIX = "mag-iti65-";
+    private static final String FILE_SUFFIX = ".bin";
+    // The directory in the system temporary directory, if none is configured
+    private static final String DEFAULT_DIRECTORY_NAME = "mag-spool";
+
+    private final long threshold;
+    private final Path directory;
+
+    /**
+     * Creates the spooler, and its directory if the spooling is enabled.
+     *
+     * @throws UncheckedIOException if the directory cannot be created, or is not owned by the MAG.
+     */
+    DocumentSpooler(final MagXdsProps.MagXdsSpoolingProps spoolingProps) {
+        this.threshold = spoolingProps.getThreshold().toBytes();
+        this.directory = (spoolingProps.getDirectory() != null)
+                ? Path.of(spoolingProps.getDirectory())
+                : Path.of(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME);
+        if (this.threshold > 0) {
+            try {
+                PrivateFiles.createDirectory(this.directory);
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Unable to create the spooling directory " + this.directory, e);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the content is large enough to be spooled.
+     */
+    boolean shouldSpool(final @Nullable byte[] content) {
+        return this.threshold > 0 && content != null && content.length >= this.threshold;
+    }
+
+    Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Writes the content to a new temporary file. The caller shall delete it once the request is done.
+     *
+     * @throws IOException if the file cannot be written; it's then deleted.
+     */
+    SpooledDocument spool(final byte[] content) throws IOException {
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final Path file = PrivateFiles.createTempFile(this.directory, FILE_PREFIX, FILE_SUFFIX);
+        try (final OutputStream out = new DigestOutputStream(Files.newOutputStream(file), sha1)) {
+            out.write(content);
+        } catch (final IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return new SpooledDocument(file, content.length, HexFormat.of().formatHex(sha1.digest()));
+    }
+
+    /**
+     * A document written to a temporary file.
+     *
+     * @param file The temporary file.
+     * @param size The size of the document, in bytes.
+     * @param hash The SHA-1 hash of the document, in lowercase hexadecimal (as the XDS hash attribute).
+     */
+    record SpooledDocument(Path file, long size, String hash) {
+    }
+}
@@ -26,8 +26,11 @@ import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
 import ch.bfh.ti.i4mi.mag.mhd.SchemeMapper;
 import com.sun.istack.ByteArrayDataSource;
 import jakarta.activation.DataHandler;
+import jakarta.activation.FileDataSource;
 import jakarta.annotation.Nullable;
 import org.apache.camel.Body;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.apache.commons.codec.binary.Hex;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Address;
@@ -50,6 +53,8 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 
 import static ch.bfh.ti.i4mi.mag.MagConstants.EPR_SPID_OID;
@@ -69,6 +74,7 @@ public class Iti65RequestConverter extends BaseRequestConverter {
     private final PatientIdMappingService patientIdMappingService;
     private final MagXdsProps xdsProps;
     private final String mpiOid;
+    private final DocumentSpooler documentSpooler;
 
     public Iti65RequestConverter(final SchemeMapper schemeMapper,
                                  final PatientIdMappingService patientIdMappingService,
@@ -77,15 +83,17 @@ public class Iti65RequestConverter extends BaseRequestConverter {
         this.patientIdMappingService = patientIdMappingService;
         this.xdsProps = magProps.getXds();
         this.mpiOid = magProps.getMpi().getOids().getMpiPid();
+        this.documentSpooler = new DocumentSpooler(this.xdsProps.getSpooling());
     }
 
     /**
      * convert ITI-65 to ITI-41 request
      *
      * @param requestBundle
+     * @param exchange      The exchange, which deletes the spooled documents when it's done.
      * @return
      */
-    public ProvideAndRegisterDocumentSet convert(@Body Bundle requestBundle) throws Exception {
+    public ProvideAndRegisterDocumentSet convert(@Body Bundle requestBundle, Exchange exchange) throws Exception {
 
         SubmissionSet submissionSet = new SubmissionSet();
 
@@ -188,8 +196,12 @@ public class Iti65RequestConverter extends BaseRequestConverter {
                 // get binary content from attachment.data or from referenced Binary resource
                 Attachment attachment = documentReference.getContentFirstRep().getAttachment();
                 if (attachment.hasData()) {
-                    doc.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment.getData(),
-                                                                               attachment.getContentType())));
+                    final byte[] content = attachment.getData();
+                    doc.setDataHandler(this.toDataHandler(content, attachment.getContentType(), entry, exchange));
+                    if (this.documentSpooler.shouldSpool(content)) {
+                        // The content is on the disk, release the decoded and base64 content of the request
+                        attachment.setDataElement(null);
+                    }
                 } else if (attachment.hasUrl()) {
                     String contentURL = attachment.getUrl();
                     Resource binaryContent = resources.get(contentURL);
@@ -198,7 +210,11 @@ public class Iti65RequestConverter extends BaseRequestConverter {
                         if (binary.hasContentType() && !binary.getContentType().equals(contentType))
                             throw new InvalidRequestException(
                                     "ContentType in Binary and in DocumentReference must match");
-                        doc.setDataHandler(new DataHandler(new ByteArrayDataSource(binary.getData(), contentType)));
+                        final byte[] content = binary.getData();
+                        doc.setDataHandler(this.toDataHandler(content, contentType, entry, exchange));
+                        if (this.documentSpooler.shouldSpool(content)) {
+                            binary.setDataElement(null);
+                        }
                         Identifier masterIdentifier = documentReference.getMasterIdentifier();
                         binary.setUserData("masterIdentifier", masterIdentifier.getValue());
                     }
@@ -210,6 +226,43 @@ public class Iti65RequestConverter extends BaseRequestConverter {
         return builder.build();
     }
 
+    /**
+     * Returns the data handler of a document. A large document is moved to a temporary file, deleted when the exchange
+     * is done, so that the caller can release its bytes during the ITI-41 request; its size and hash are then set if
+     * they're missing.
+     */
+    private DataHandler toDataHandler(final byte[] content,
+                                      final String contentType,
+                                      final DocumentEntry entry,
+                                      final Exchange exchange) throws IOException {
+        if (!this.documentSpooler.shouldSpool(content)) {
+            return new DataHandler(new ByteArrayDataSource(content, contentType));
+        }
+        final var spooled = this.documentSpooler.spool(content);
+        exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(final Exchange exchange) {
+                try {
+                    Files.deleteIfExists(spooled.file());
+                } catch (final IOException e) {
+                    log.warn("Unable to delete the spooled document {}", spooled.file(), e);
+                }
+            }
+        });
+        if (entry.getSize() == null) {
+            entry.setSize(spooled.size());
+        }
+        if (entry.getHash() == null) {
+            entry.setHash(spooled.hash());
+        }
+        return new DataHandler(new FileDataSource(spooled.file().toFile()) {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+        });
+    }
+
     /**
      * wrap string in localized string
      *
@@ -20,6 +20,7 @@ import ch.bfh.ti.i4mi.mag.auth.TcuXuaService;
 import ch.bfh.ti.i4mi.mag.common.*;
 import ch.bfh.ti.i4mi.mag.config.props.MagProps;
 import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import ch.bfh.ti.i4mi.mag.mhd.QueryResultCache;
 import ch.bfh.ti.i4mi.mag.mhd.Utils;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
@@ -58,11 +59,13 @@ class Iti65RouteBuilder extends MagRouteBuilder {
     private final Iti65ResponseConverter iti65ResponseConverter;
     private final TcuXuaService tcuXuaService;
     private final PatientIdMappingService patientIdMappingService;
+    private final QueryResultCache queryResultCache;
 
     public Iti65RouteBuilder(final MagProps magProps,
                              final Iti65ResponseConverter iti65ResponseConverter,
                              final Optional<TcuXuaService> tcuXuaService,
                              final PatientIdMappingService patientIdMappingService,
+                             final QueryResultCache queryResultCache,
                              final RequestHeadersForwarder requestHeadersForwarder,
                              final TraceparentHandler traceparentHandler) {
         super(magProps, requestHeadersForwarder, traceparentHandler);
@@ -70,6 +73,7 @@ class Iti65RouteBuilder extends MagRouteBuilder {
         this.iti65ResponseConverter = iti65ResponseConverter;
         this.tcuXuaService = tcuXuaService.orElse(null);
         this.patientIdMappingService = patientIdMappingService;
+        this.queryResultCache = queryResultCache;
     }
 
     @Override
@@ -89,10 +93,10 @@ class Iti65RouteBuilder extends MagRouteBuilder {
                     .log(LoggingLevel.INFO, log, "Received ITI-65 Provide Document Bundle request")
                     .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
                     //.process(itiRequestValidator())
-                    //.process(RequestHeadersForwarder.checkAuthorization(this.xdsProps.isChMhdConstraints()))
+                    .process(this.requestHeadersForwarder.checkAuthorization(false))
                     // translate, forward, translate back
                     .process(Utils.storeBodyToHeader("BundleRequest"))
-                    .bean(Iti65RequestConverter.class)
+                    .bean(Iti65RequestConverter.class, "convert")
                     .process(maybeInjectTcuXuaProcessor())
                     .process(this.requestHeadersForwarder.forward())
 
@@ -141,17 +145,34 @@ class Iti65RouteBuilder extends MagRouteBuilder {
                         .log(LoggingLevel.TRACE, log, "${body}")
                     .endDoTry()
 
+                    .process(this.invalidateQueryResults())
                     .process(this.traceparentHandler.updateHeaderForFhir())
                     .process(translateToFhir(this.iti65ResponseConverter, Response.class))
                     .log(LoggingLevel.DEBUG, log, "Finished generating the ITI-65 response")
                     .process(loggingResponseProcessor(LoggingLevel.TRACE, log))
                 .doCatch(Exception.class)
+                    // The documents may have been published before the failure
+                    .process(this.invalidateQueryResults())
                     .setBody(simple("${exception}"))
                     .process(this.errorFromException())
                 .end();
         // @formatter:on
     }
 
+    /**
+     * Invalidates the cached query results of the patient of the published documents.
+     */
+    private Processor invalidateQueryResults() {
+        return exchange -> {
+            final var request = exchange.getMessage().getHeader("ProvideAndRegisterDocumentSet",
+                                                                ProvideAndRegisterDocumentSet.class);
+            if (request != null) {
+                this.queryResultCache.invalidate(
+                        (request.getSubmissionSet() != null) ? request.getSubmissionSet().getPatientId() : null);
+            }
+        };
+    }
+
     private Processor maybeInjectTcuXuaProcessor() {
         if (this.tcuXuaService != null) {
             return exchange -> {
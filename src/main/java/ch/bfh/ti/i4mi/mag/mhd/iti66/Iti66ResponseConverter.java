@@ -72,6 +72,8 @@ public class Iti66ResponseConverter extends BaseQueryResponseConverter {
         if (input != null && Status.SUCCESS.equals(input.getStatus())) {
             Map<String, ListResource> targetList = new HashMap<String, ListResource>();
             if (input.getSubmissionSets() != null) {
+                // Resolve all patient IDs at once, instead of once per SubmissionSet
+                final Map<String, String> eprSpids = this.resolveEprSpids(input);
                 for (SubmissionSet submissionSet : input.getSubmissionSets()) {
                     ListResource documentManifest = new ListResource();
 
@@ -129,7 +131,7 @@ public class Iti66ResponseConverter extends BaseQueryResponseConverter {
                     // patientId -> subject Reference(Patient| Practitioner| Group| Device) [0..1], Reference(Patient)
                     // We received the XAD-PID, we need the EPR-SPID
                     if (submissionSet.getPatientId() != null) {
-                        documentManifest.setSubject(this.transformPatient(submissionSet.getPatientId()));
+                        documentManifest.setSubject(this.transformPatient(submissionSet.getPatientId(), eprSpids));
                     }
 
                     // submissionTime -> created dateTime [0..1]
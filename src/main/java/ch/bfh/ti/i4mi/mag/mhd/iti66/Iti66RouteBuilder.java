@@ -65,7 +65,7 @@ class Iti66RouteBuilder extends MagRouteBuilder {
                 .errorHandler(noErrorHandler())
                 .log(LoggingLevel.INFO, log, "Received ITI-66 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
-                //.process(RequestHeadersForwarder.checkAuthorization(this.xdsProps.isChMhdConstraints()))
+                .process(this.requestHeadersForwarder.checkAuthorization(this.xdsProps.isChMhdConstraints()))
                 .process(this.requestHeadersForwarder.forward())
                 .choice()
                     .when(header(Constants.FHIR_REQUEST_PARAMETERS).isNotNull())
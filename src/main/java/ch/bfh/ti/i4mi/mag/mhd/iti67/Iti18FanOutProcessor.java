@@ -0,0 +1,82 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import ch.bfh.ti.i4mi.mag.mhd.QueryResultCache;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+
+/**
+ * This processor sends the same ITI-18 request to the ITI-18 and XCA-38 endpoints asynchronously,
+ * then merges the responses.
+ * <p>
+ * Both requests are sent in parallel, each with its own deadline: a community that doesn't answer in time is reported
+ * as not reached, and the response of the other one is still returned. The route is continued on the continuation
+ * executor once both requests have completed or timed out. The MHD consumer is synchronous, so the servlet thread
+ * still waits for the route to complete; the deadlines are what bound that wait.
+ * </p>
+ * <p>
+ * When the query result cache is enabled, a cached result is returned without sending the requests, and a
+ * successful result is cached.
+ * </p>
+ *
+ * TODO: why do we still have two requests here? The XCA endpoint should contain all results
+ **/
+class Iti18FanOutProcessor extends AsyncProcessorSupport {
+    private static final Logger log = LoggerFactory.getLogger(Iti18FanOutProcessor.class);
+
+    private final QuerySender querySender;
+    private final QueryResultCache queryResultCache;
+    private final Executor continuationExecutor;
+    // The exchange property that identifies the user for the query result cache
+    private final String principalProperty;
+
+    Iti18FanOutProcessor(final QuerySender querySender,
+                         final QueryResultCache queryResultCache,
+                         final Executor continuationExecutor,
+                         final String principalProperty) {
+        this.querySender = querySender;
+        this.queryResultCache = queryResultCache;
+        this.continuationExecutor = continuationExecutor;
+        this.principalProperty = principalProperty;
+    }
+
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        final Object request = exchange.getMessage().getBody();
+        final QueryResultCache cache = this.queryResultCache;
+        final QueryResultCache.Lookup lookup = (cache.isEnabled() && request instanceof final QueryRegistry query)
+                ? cache.lookup(query, exchange.getProperty(this.principalProperty, String.class)) : null;
+        if (lookup != null) {
+            final var cachedResponse = cache.get(lookup);
+            if (cachedResponse != null) {
+                log.debug("Found the query results in the cache");
+                exchange.getMessage().setBody(cachedResponse);
+                callback.done(true);
+                return true;
+            }
+        }
+
+        final var future18 = this.querySender.sendToIti18(exchange, request);
+        final var future38 = this.querySender.sendToXca38(exchange, request);
+
+        future18.thenCombine(future38, this.querySender::mergeResponses)
+                .whenCompleteAsync((mergedResponse, exception) -> {
+                    if (exception != null) {
+                        exchange.setException(exception);
+                    } else {
+                        mergedResponse.setStatus(QuerySender.calculateStatus(mergedResponse));
+                        if (lookup != null) {
+                            cache.put(lookup, mergedResponse);
+                        }
+                        exchange.getMessage().setBody(mergedResponse);
+                    }
+                    callback.done(false);
+                }, this.continuationExecutor);
+        return false;
+    }
+}
@@ -21,6 +21,8 @@ import ch.bfh.ti.i4mi.mag.config.props.MagProps;
 import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
 import ch.bfh.ti.i4mi.mag.mhd.BaseQueryResponseConverter;
 import ch.bfh.ti.i4mi.mag.mhd.SchemeMapper;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.hl7.fhir.r4.model.Attachment;
@@ -67,6 +69,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ITI-67 from ITI-18 response converter
@@ -78,12 +86,38 @@ public class Iti67ResponseConverter extends BaseQueryResponseConverter {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(Iti67ResponseConverter.class);
 
     private final MagXdsProps xdsProps;
+    // The number of DocumentEntries from which a response is translated in parallel
+    private final int parallelThreshold;
+    private final int translationThreads;
+    private final @Nullable ExecutorService translationExecutor;
 
     public Iti67ResponseConverter(final MagProps magProps,
                                   final SchemeMapper schemeMapper,
                                   final PatientIdMappingService patientIdMappingService) {
         super(magProps.getMpi(), schemeMapper, patientIdMappingService);
         this.xdsProps = magProps.getXds();
+
+        final var translationProps = this.xdsProps.getTranslation();
+        this.parallelThreshold = translationProps.getParallelThreshold();
+        this.translationThreads = (translationProps.getThreads() > 0)
+                ? translationProps.getThreads() : Runtime.getRuntime().availableProcessors();
+        if (this.parallelThreshold > 0 && this.translationThreads > 1) {
+            // A bounded pool: when it's saturated, the request threads translate their entries themselves
+            this.translationExecutor = new ThreadPoolExecutor(
+                    this.translationThreads, this.translationThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(this.translationThreads * 4),
+                    Thread.ofPlatform().name("iti67-translation-", 0).daemon().factory(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else {
+            this.translationExecutor = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.translationExecutor != null) {
+            this.translationExecutor.shutdownNow();
+        }
     }
 
     @Override
@@ -126,10 +160,22 @@ public class Iti67ResponseConverter extends BaseQueryResponseConverter {
 
 
             if (input.getDocumentEntries() != null) {
-                for (DocumentEntry documentEntry : input.getDocumentEntries()) {
-                    DocumentReference documentReference = translateDocumentEntry(documentEntry, relatesToMapping);
-                    if (documentReference != null) {
-                        list.add(documentReference);
+                // Resolve all patient IDs at once, instead of once per DocumentEntry
+                final Map<String, String> eprSpids = this.resolveEprSpids(input);
+                if (this.translationExecutor != null && input.getDocumentEntries().size() >= this.parallelThreshold) {
+                    for (DocumentReference documentReference : this.translateInParallel(input.getDocumentEntries(),
+                                                                                        relatesToMapping,
+                                                                                        eprSpids)) {
+                        if (documentReference != null) {
+                            list.add(documentReference);
+                        }
+                    }
+                } else {
+                    for (DocumentEntry documentEntry : input.getDocumentEntries()) {
+                        DocumentReference documentReference = translateDocumentEntry(documentEntry, relatesToMapping, eprSpids);
+                        if (documentReference != null) {
+                            list.add(documentReference);
+                        }
                     }
                 }
             }
@@ -139,8 +185,52 @@ public class Iti67ResponseConverter extends BaseQueryResponseConverter {
         return list;
     }
 
+    /**
+     * Translates the DocumentEntries in chunks, one per translation thread; the first chunk is translated by the
+     * calling thread. The association and patient ID maps are only read, and shared by all chunks.
+     *
+     * @return the DocumentReferences, in the order of the DocumentEntries. Skipped entries are {@code null}.
+     */
+    private DocumentReference[] translateInParallel(final List<DocumentEntry> documentEntries,
+                                                    final Map<String, List<DocumentReferenceRelatesToComponent>> relatesToMapping,
+                                                    final Map<String, String> eprSpids) {
+        final var documentReferences = new DocumentReference[documentEntries.size()];
+        final int chunkSize = Math.ceilDiv(documentEntries.size(), this.translationThreads);
+        final List<Future<?>> futures = new ArrayList<>(this.translationThreads);
+        try {
+            for (int from = chunkSize; from < documentEntries.size(); from += chunkSize) {
+                final int chunkFrom = from;
+                final int chunkTo = Math.min(from + chunkSize, documentEntries.size());
+                futures.add(this.translationExecutor.submit(() -> {
+                    for (int i = chunkFrom; i < chunkTo; ++i) {
+                        documentReferences[i] = translateDocumentEntry(documentEntries.get(i), relatesToMapping, eprSpids);
+                    }
+                }));
+            }
+            for (int i = 0; i < Math.min(chunkSize, documentEntries.size()); ++i) {
+                documentReferences[i] = translateDocumentEntry(documentEntries.get(i), relatesToMapping, eprSpids);
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof final RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Failed to translate the DocumentEntries", e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while translating the DocumentEntries", e);
+        } finally {
+            // Stop the other chunks if one has failed
+            futures.forEach(future -> future.cancel(true));
+        }
+        return documentReferences;
+    }
+
     private DocumentReference translateDocumentEntry(DocumentEntry documentEntry,
-                                                     Map<String, List<DocumentReferenceRelatesToComponent>> relatesToMapping) {
+                                                     Map<String, List<DocumentReferenceRelatesToComponent>> relatesToMapping,
+                                                     Map<String, String> eprSpids) {
         DocumentReference documentReference = new DocumentReference();
 
         if (documentEntry.getExtraMetadata() != null) {
@@ -206,7 +296,7 @@ public class Iti67ResponseConverter extends BaseQueryResponseConverter {
         // Reference(Patient)
         // We received the XAD-PID, we need the EPR-SPID
         if (documentEntry.getPatientId() != null) {
-            documentReference.setSubject(this.transformPatient(documentEntry.getPatientId()));
+            documentReference.setSubject(this.transformPatient(documentEntry.getPatientId(), eprSpids));
         }
 
         // creationTime -> date instant [0..1]
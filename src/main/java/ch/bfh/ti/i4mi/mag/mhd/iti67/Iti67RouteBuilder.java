@@ -16,26 +16,36 @@
 
 package ch.bfh.ti.i4mi.mag.mhd.iti67;
 
+import ch.bfh.ti.i4mi.mag.common.FhirExchanges;
+import ch.bfh.ti.i4mi.mag.common.JavaUtils;
 import ch.bfh.ti.i4mi.mag.common.MagRouteBuilder;
 import ch.bfh.ti.i4mi.mag.common.RequestHeadersForwarder;
 import ch.bfh.ti.i4mi.mag.common.TraceparentHandler;
 import ch.bfh.ti.i4mi.mag.config.props.MagProps;
 import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import ch.bfh.ti.i4mi.mag.mhd.QueryResultCache;
 import ch.bfh.ti.i4mi.mag.mhd.Utils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import jakarta.annotation.Nullable;
-import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.Processor;
 import org.apache.camel.ProducerTemplate;
 import org.hl7.fhir.r4.model.DocumentReference;
 import org.openehealth.ipf.commons.ihe.fhir.Constants;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Identifiable;
 import org.openehealth.ipf.commons.ihe.xds.core.responses.*;
 import org.openehealth.ipf.commons.ihe.xds.core.stub.ebrs30.lcm.SubmitObjectsRequest;
+import org.openehealth.ipf.platform.camel.ihe.xds.core.converters.EbXML30Converters;
 import org.slf4j.Logger;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 
 import static org.apache.camel.support.builder.PredicateBuilder.and;
 import static org.openehealth.ipf.platform.camel.ihe.fhir.core.FhirCamelTranslators.translateToFhir;
@@ -45,20 +55,35 @@ import static org.openehealth.ipf.platform.camel.ihe.fhir.core.FhirCamelTranslat
  */
 @Component
 @ConditionalOnProperty({"mag.xds.iti-18", "mag.xds.xca-38", "mag.xds.iti-57"})
-class Iti67RouteBuilder extends MagRouteBuilder {
+class Iti67RouteBuilder extends MagRouteBuilder implements MeterBinder {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(Iti67RouteBuilder.class);
+    // The exchange property that identifies a search in the ObjectRef query mode
+    private static final String SEARCH_KEY_PROPERTY = "Iti67SearchKey";
+    // The exchange property that identifies the user for the query result cache
+    private static final String PRINCIPAL_PROPERTY = "Iti67Principal";
+    // The exchange property that marks a CH:MHD-1 update
+    private static final String UPDATE_PROPERTY = "Iti67Update";
+    // The exchange property that holds the patient ID of a CH:MHD-1 update
+    private static final String UPDATED_PATIENT_ID_PROPERTY = "Iti67UpdatedPatientId";
     private final MagXdsProps xdsProps;
     private final Iti67ResponseConverter iti67ResponseConverter;
     private final Iti67RequestUpdateConverter iti67RequestUpdateConverter;
     private final Iti67FromIti57ResponseConverter iti67FromIti57ResponseConverter;
+    private final QueryResultCache queryResultCache;
 
     private final String iti18Endpoint;
     private final String xca38Endpoint;
+    private final QueryResponseMerger queryResponseMerger = new QueryResponseMerger();
+
+    private QuerySender querySender;
+    // The executor that continues the route once both responses have been received or have timed out
+    private ExecutorService continuationExecutor;
 
     public Iti67RouteBuilder(final MagProps magProps,
                              final Iti67ResponseConverter iti67ResponseConverter,
                              final Iti67RequestUpdateConverter iti67RequestUpdateConverter,
                              final Iti67FromIti57ResponseConverter iti67FromIti57ResponseConverter,
+                             final QueryResultCache queryResultCache,
                              final RequestHeadersForwarder requestHeadersForwarder,
                              final TraceparentHandler traceparentHandler) {
         super(magProps, requestHeadersForwarder, traceparentHandler);
@@ -66,6 +91,7 @@ class Iti67RouteBuilder extends MagRouteBuilder {
         this.iti67ResponseConverter = iti67ResponseConverter;
         this.iti67RequestUpdateConverter = iti67RequestUpdateConverter;
         this.iti67FromIti57ResponseConverter = iti67FromIti57ResponseConverter;
+        this.queryResultCache = queryResultCache;
 
         this.iti18Endpoint = this.buildOutgoingEndpoint("xds-iti18",
                                                         this.xdsProps.getIti18(),
@@ -75,18 +101,40 @@ class Iti67RouteBuilder extends MagRouteBuilder {
                                                         this.xdsProps.isHttps());
     }
 
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.queryResponseMerger.bindTo(registry);
+    }
+
     @Override
     public void configure() throws Exception {
         log.debug("Configuring ITI-67 route");
+        // The producer template and the executor are shared by all requests, and stopped with the Camel context
+        final ProducerTemplate producerTemplate = getContext().createProducerTemplate();
+        getContext().addService(producerTemplate, true);
+        this.querySender = new QuerySender(producerTemplate,
+                                           this.iti18Endpoint,
+                                           this.xdsProps.getIti18Timeout(),
+                                           this.xca38Endpoint,
+                                           this.xdsProps.getXca38Timeout(),
+                                           this.queryResponseMerger);
+        this.continuationExecutor = getContext().getExecutorServiceManager()
+                .newCachedThreadPool(this, "ITI-67 fan-out");
         final String iti57Endpoint = this.buildOutgoingEndpoint("xds-iti57",
                                                                 this.xdsProps.getIti57(),
                                                                 this.xdsProps.isHttps());
 
+        final boolean objectRefQuery = this.xdsProps.getObjectRefQuery().isEnabled();
+
         // @formatter:off
-        from("mhd-iti67:find-document-references?audit=false")
+        // In the ObjectRef query mode, the bundle is lazy-loaded: the route is called for the count, then per page
+        from("mhd-iti67:find-document-references?audit=false"
+                     + (objectRefQuery ? "&lazyLoadBundles=true&cacheBundles=true" : ""))
                 .routeId("in-mhd-iti67")
                 .errorHandler(noErrorHandler())
-                //.process(this.requestHeadersForwarder.checkAuthorization(this.xdsProps.isChMhdConstraints()))
+                .process(this.prepareObjectRefQuery(objectRefQuery))
+                .process(this.capturePrincipal())
+                .process(this.requestHeadersForwarder.checkAuthorization(this.xdsProps.isChMhdConstraints()))
                 .process(this.requestHeadersForwarder.forward())
                 .doTry()
                     .choice()
@@ -98,11 +146,15 @@ class Iti67RouteBuilder extends MagRouteBuilder {
                             .bean(Iti67RequestConverter.class)
                             .log(LoggingLevel.DEBUG, log, "Sending an ITI-18 request to " + xca38Endpoint)
                             .log(LoggingLevel.TRACE, log, "${body}")
-                            .process(sendToIti18Endpoints())
+                            .process(objectRefQuery
+                                     ? new ObjectRefQueryProcessor(this.querySender, this.xdsProps.getObjectRefQuery(),
+                                                                   this.continuationExecutor, SEARCH_KEY_PROPERTY)
+                                     : new Iti18FanOutProcessor(this.querySender, this.queryResultCache,
+                                                                this.continuationExecutor, PRINCIPAL_PROPERTY))
                             .log(LoggingLevel.DEBUG, log, "Got a response")
                             .log(LoggingLevel.TRACE, log, "${body}")
                             .process(this.traceparentHandler.updateHeaderForFhir())
-                            .process(translateToFhir(iti67ResponseConverter, QueryResponse.class))
+                            .process(this.translateQueryResponse())
                             .log(LoggingLevel.DEBUG, log, "Finished generating the ITI-67 response")
                             .log(LoggingLevel.TRACE, log, "${body}")
                         // It is a read request for a specific resource. Disabled for now
@@ -117,6 +169,7 @@ class Iti67RouteBuilder extends MagRouteBuilder {
                         // It is an update request: CH:MHD-1
                         .when(and(header("FhirHttpUri").isNotNull(), header("FhirHttpMethod").isEqualTo("PUT")))
                             .log(LoggingLevel.INFO, log, "Received CH:MHD-1 request")
+                            .setProperty(UPDATE_PROPERTY, constant(true))
                             .log(LoggingLevel.TRACE, log, "Request search parameters: ${headers}")
                             .log(LoggingLevel.TRACE, log, "Request body: ${body}")
                             .process(exchange -> {
@@ -125,9 +178,11 @@ class Iti67RouteBuilder extends MagRouteBuilder {
                                         documentReference);
                                 exchange.getMessage().setBody(submitObjectsRequest);
                             })
+                            .setProperty(UPDATED_PATIENT_ID_PROPERTY).exchange(this::findUpdatedPatientId)
                             .log(LoggingLevel.DEBUG, log, "Sending an ITI-57 request to " + iti57Endpoint)
                             .log(LoggingLevel.TRACE, log, "${body}")
                             .to(iti57Endpoint)
+                            .process(this.invalidateQueryResults())
                             .log(LoggingLevel.DEBUG, log, "Got a response")
                             .log(LoggingLevel.TRACE, log, "${body}")
                             .process(this.traceparentHandler.updateHeaderForFhir())
@@ -191,6 +246,8 @@ class Iti67RouteBuilder extends MagRouteBuilder {
                     .end()
                 .endDoTry()
                 .doCatch(Exception.class)
+                    // The metadata may have been updated before the failure
+                    .process(this.invalidateQueryResults())
                     .setBody(simple("${exception}"))
                     .process(this.errorFromException())
                 .end();
@@ -198,78 +255,84 @@ class Iti67RouteBuilder extends MagRouteBuilder {
     }
 
     /**
-     * This processor sends the same ITI-18 request to the ITI-18 and XCA-38 endpoints asynchronously,
-     * then merges the responses.
-     *
-     * TODO: why do we still have two requests here? The XCA endpoint should contain all results
+     * Prepares a request for the ObjectRef query mode, before its Authorization header is consumed:
+     * <ul>
+     *     <li>the incoming HTTP headers are copied, as the lazy-loading bundle provider shares them between the calls
+     *     of the same search;</li>
+     *     <li>the search is identified by a digest of its query and Authorization header.</li>
+     * </ul>
      */
-    private Processor sendToIti18Endpoints() {
+    private Processor prepareObjectRefQuery(final boolean objectRefQuery) {
+        if (!objectRefQuery) {
+            return _ -> {
+            };
+        }
         return exchange -> {
-            final CamelContext context = exchange.getContext();
-            final ProducerTemplate producerTemplate = context.createProducerTemplate();
-
-            // Asynchronous call to internal routes
-            final var futureExchange18 = producerTemplate.asyncSend(this.iti18Endpoint, exchange.copy());
-            final var futureExchange38 = producerTemplate.asyncSend(this.xca38Endpoint, exchange);
-
-            // Wait for both to complete
-            CompletableFuture.allOf(futureExchange18, futureExchange38).join();
-            final var response18 = futureExchange18.get().getIn().getBody(QueryResponse.class);
-            final var response38 = futureExchange38.get().getIn().getBody(QueryResponse.class);
-
-            // Merge the two responses
-            final var mergedResponse = this.mergeResponses(response18, response38);
-            mergedResponse.setStatus(this.calculateStatus(mergedResponse));
-            exchange.getMessage().setBody(mergedResponse);
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> httpHeaders =
+                    exchange.getMessage().getHeader(Constants.HTTP_INCOMING_HEADERS, Map.class);
+            if (httpHeaders != null) {
+                final Map<String, Object> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                copy.putAll(httpHeaders);
+                exchange.getMessage().setHeader(Constants.HTTP_INCOMING_HEADERS, copy);
+            }
+            final String authorization = FhirExchanges.readRequestHttpHeader(
+                    RequestHeadersForwarder.AUTHORIZATION_HEADER, exchange, false);
+            exchange.setProperty(SEARCH_KEY_PROPERTY, JavaUtils.sha256(
+                    exchange.getMessage().getHeader(Constants.HTTP_QUERY, "", String.class) + '\u0000'
+                            + Objects.requireNonNullElse(authorization, "")));
         };
     }
 
-    private QueryResponse mergeResponses(final @Nullable QueryResponse response18, final @Nullable QueryResponse response38) {
-        if (response18 != null && response38 != null) {
-            response18.getDocumentEntries().addAll(response38.getDocumentEntries());
-            response18.getErrors().addAll(response38.getErrors());
-            response18.getDocuments().addAll(response38.getDocuments());
-            response18.getReferences().addAll(response38.getReferences());
-            response18.getAssociations().addAll(response38.getAssociations());
-            response18.getSubmissionSets().addAll(response38.getSubmissionSets());
-            return response18;
-        } else if (response18 != null) {
-            response18.getErrors().add(this.communityNotReached("external communities"));
-            return response18;
-        } else if (response38 != null) {
-            response38.getErrors().add(this.communityNotReached("internal community"));
-            return response38;
+    /**
+     * Keeps a digest of the Authorization header, before it is consumed, to key the cached query results.
+     */
+    private Processor capturePrincipal() {
+        if (!this.queryResultCache.isEnabled()) {
+            return _ -> {
+            };
         }
-
-        final var response = new QueryResponse();
-        response.getErrors().add(this.communityNotReached("internal and external communities"));
-        return response;
+        return exchange -> {
+            final String authorization = FhirExchanges.readRequestHttpHeader(
+                    RequestHeadersForwarder.AUTHORIZATION_HEADER, exchange, false);
+            exchange.setProperty(PRINCIPAL_PROPERTY, (authorization != null) ? JavaUtils.sha256(authorization) : null);
+        };
     }
 
-    private ErrorInfo communityNotReached(final String communityName) {
-        return new ErrorInfo(
-                ErrorCode.UNAVAILABLE_COMMUNITY,
-                "The %s could not be reached".formatted(communityName),
-                Severity.ERROR,
-                null,
-                null
-        );
+    /**
+     * Returns the patient ID of the metadata update, or {@code null} if it can't be found.
+     */
+    private @Nullable Identifiable findUpdatedPatientId(final Exchange exchange) {
+        if (!this.queryResultCache.isEnabled()) {
+            return null;
+        }
+        final var submissionSet = EbXML30Converters.convert(
+                exchange.getMessage().getBody(SubmitObjectsRequest.class)).getSubmissionSet();
+        return (submissionSet != null) ? submissionSet.getPatientId() : null;
     }
 
-    private Status calculateStatus(final QueryResponse response) {
-        final var nbErrors =
-                response.getErrors().stream().filter(error -> error.getSeverity() == Severity.ERROR).count();
-        final var nbResults = response.getDocumentEntries().size()
-                + response.getSubmissionSets().size()
-                + response.getReferences().size()
-                + response.getAssociations().size()
-                + response.getDocuments().size();
+    /**
+     * Invalidates the cached query results of the patient of a CH:MHD-1 update. Nothing is done for the other
+     * requests.
+     */
+    private Processor invalidateQueryResults() {
+        return exchange -> {
+            if (exchange.getProperty(UPDATE_PROPERTY, false, Boolean.class)) {
+                this.queryResultCache.invalidate(
+                        exchange.getProperty(UPDATED_PATIENT_ID_PROPERTY, Identifiable.class));
+            }
+        };
+    }
 
-        if (nbErrors > 0 && nbResults > 0) {
-            return Status.PARTIAL_SUCCESS;
-        } else if (nbErrors > 0) {
-            return Status.FAILURE;
-        }
-        return Status.SUCCESS;
+    /**
+     * Translates the query response to DocumentReferences. The total count of a lazy-loaded search is kept as is.
+     */
+    private Processor translateQueryResponse() {
+        final Processor translator = translateToFhir(this.iti67ResponseConverter, QueryResponse.class);
+        return exchange -> {
+            if (!(exchange.getMessage().getBody() instanceof Integer)) {
+                translator.process(exchange);
+            }
+        };
     }
 }
@@ -0,0 +1,208 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import ch.bfh.ti.i4mi.mag.common.ExpiringCache;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.openehealth.ipf.commons.ihe.fhir.Constants;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.ObjectReference;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.GetDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.QueryReturnType;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorInfo;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * This processor runs the ITI-67 search in two phases, when the ObjectRef query mode is enabled:
+ * <ol>
+ *     <li>the query is sent to the ITI-18 and XCA-38 endpoints with the ObjectRef return type, to get the
+ *     references of all matching entries. They are kept for the following pages of the same search;</li>
+ *     <li>the metadata of the entries of the requested page is fetched with GetDocuments queries, in batches sent
+ *     in parallel: to the ITI-18 endpoint for the local entries, to the XCA-38 endpoint for the others.</li>
+ * </ol>
+ * The route is called by the lazy-loading bundle provider, first for the total count, then for each page. It is
+ * continued on the continuation executor once all requests of a phase have completed or timed out.
+ **/
+class ObjectRefQueryProcessor extends AsyncProcessorSupport {
+    private static final Logger log = LoggerFactory.getLogger(ObjectRefQueryProcessor.class);
+
+    private final QuerySender querySender;
+    private final MagXdsProps.MagXdsObjectRefQueryProps objectRefQueryProps;
+    private final Executor continuationExecutor;
+    // The exchange property that identifies a search
+    private final String searchKeyProperty;
+    // The references found by the searches. Keys are the search keys.
+    private final ExpiringCache<String, FoundReferences> foundReferences;
+
+    ObjectRefQueryProcessor(final QuerySender querySender,
+                            final MagXdsProps.MagXdsObjectRefQueryProps objectRefQueryProps,
+                            final Executor continuationExecutor,
+                            final String searchKeyProperty) {
+        this.querySender = querySender;
+        this.objectRefQueryProps = objectRefQueryProps;
+        this.continuationExecutor = continuationExecutor;
+        this.searchKeyProperty = searchKeyProperty;
+        this.foundReferences = new ExpiringCache<>(objectRefQueryProps.getMaxSize());
+    }
+
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        final QueryRegistry queryRegistry;
+        try {
+            queryRegistry = exchange.getMessage().getMandatoryBody(QueryRegistry.class);
+        } catch (final InvalidPayloadException exception) {
+            exchange.setException(exception);
+            callback.done(true);
+            return true;
+        }
+        final String searchKey = exchange.getProperty(this.searchKeyProperty, String.class);
+
+        final CompletableFuture<?> result;
+        if (exchange.getMessage().getHeader(Constants.FHIR_REQUEST_SIZE_ONLY, false, Boolean.class)) {
+            // A new search: the references are always queried again
+            result = this.findReferences(exchange, queryRegistry, searchKey)
+                    .thenApply(found -> found.references().size());
+        } else {
+            // A page of a lazy-loaded search reuses the references found for the total count
+            final boolean isPageRequest = exchange.getMessage().getHeader(Constants.FHIR_FROM_INDEX) != null;
+            final FoundReferences cached = isPageRequest ? this.foundReferences.get(searchKey) : null;
+            result = ((cached != null)
+                    ? CompletableFuture.completedFuture(cached)
+                    : this.findReferences(exchange, queryRegistry, searchKey))
+                    .thenCompose(found -> this.fetchPage(exchange, found));
+        }
+
+        result.whenCompleteAsync((body, exception) -> {
+            if (exception != null) {
+                exchange.setException(exception);
+            } else {
+                exchange.getMessage().setBody(body);
+            }
+            callback.done(false);
+        }, this.continuationExecutor);
+        return false;
+    }
+
+    /**
+     * Runs the query with the ObjectRef return type, and keeps the deduplicated references.
+     */
+    private CompletableFuture<FoundReferences> findReferences(final Exchange exchange,
+                                                              final QueryRegistry queryRegistry,
+                                                              final String searchKey) {
+        queryRegistry.setReturnType(QueryReturnType.OBJECT_REF);
+        final var future18 = this.querySender.sendToIti18(exchange, queryRegistry);
+        final var future38 = this.querySender.sendToXca38(exchange, queryRegistry);
+        return future18.thenCombine(future38, (response18, response38) -> {
+            final List<ObjectReference> references = new ArrayList<>();
+            final List<ErrorInfo> errors = new ArrayList<>();
+            if (response18 != null) {
+                references.addAll(response18.getReferences());
+                errors.addAll(response18.getErrors());
+            } else {
+                errors.add(QuerySender.communityNotReached("internal community"));
+            }
+            if (response38 != null) {
+                // The local entries may also be found through XCA: the local reference is preferred
+                QueryResponseMerger.mergeInto(references, response38.getReferences(), ObjectReference::getId,
+                                              reference -> (reference.getHome() == null) ? 1 : 0);
+                errors.addAll(response38.getErrors());
+            } else {
+                errors.add(QuerySender.communityNotReached("external communities"));
+            }
+            log.debug("Found {} references", references.size());
+
+            final var found = new FoundReferences(references, errors);
+            this.foundReferences.put(searchKey, found,
+                                     System.currentTimeMillis() + this.objectRefQueryProps.getTtl().toMillis());
+            return found;
+        });
+    }
+
+    /**
+     * Fetches the metadata of the entries of the requested page, and adds the errors of the search.
+     */
+    private CompletableFuture<QueryResponse> fetchPage(final Exchange exchange,
+                                                       final FoundReferences found) {
+        final int size = found.references().size();
+        final int fromIndex = Math.min(exchange.getMessage().getHeader(Constants.FHIR_FROM_INDEX, 0,
+                                                                       Integer.class), size);
+        final int toIndex = Math.max(fromIndex, Math.min(exchange.getMessage().getHeader(Constants.FHIR_TO_INDEX, size,
+                                                                                          Integer.class), size));
+        return this.fetchMetadata(exchange, found.references().subList(fromIndex, toIndex))
+                .thenApply(response -> {
+                    response.getErrors().addAll(found.errors());
+                    response.setStatus(QuerySender.calculateStatus(response));
+                    return response;
+                });
+    }
+
+    /**
+     * Fetches the metadata of the referenced entries with GetDocuments queries, sent in parallel.
+     */
+    private CompletableFuture<QueryResponse> fetchMetadata(final Exchange exchange,
+                                                           final List<ObjectReference> references) {
+        final int batchSize = Math.max(1, this.objectRefQueryProps.getBatchSize());
+        // Map: keys are the home community IDs ("" for the local entries), values are the entry UUIDs
+        final Map<String, List<String>> uuidsByHome = new LinkedHashMap<>();
+        for (final var reference : references) {
+            uuidsByHome.computeIfAbsent(Objects.requireNonNullElse(reference.getHome(), ""), _ -> new ArrayList<>())
+                    .add(reference.getId());
+        }
+
+        final List<CompletableFuture<QueryResponse>> futures = new ArrayList<>();
+        uuidsByHome.forEach((home, uuids) -> {
+            for (int i = 0; i < uuids.size(); i += batchSize) {
+                final var query = new GetDocumentsQuery();
+                query.setUuids(new ArrayList<>(uuids.subList(i, Math.min(i + batchSize, uuids.size()))));
+                if (!home.isEmpty()) {
+                    query.setHomeCommunityId(home);
+                }
+                final var queryRegistry = new QueryRegistry(query);
+                queryRegistry.setReturnType(QueryReturnType.LEAF_CLASS);
+                futures.add(home.isEmpty()
+                                    ? this.querySender.sendToIti18(exchange, queryRegistry)
+                                    : this.querySender.sendToXca38(exchange, queryRegistry));
+            }
+        });
+
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenApply(_ -> {
+            final var merged = new QueryResponse(Status.SUCCESS);
+            for (final var future : futures) {
+                // The futures are completed, and never exceptionally
+                final var response = future.join();
+                if (response == null) {
+                    merged.getErrors().add(QuerySender.communityNotReached("community"));
+                } else {
+                    this.querySender.getQueryResponseMerger().merge(merged, response);
+                }
+            }
+
+            // Keep the order of the references
+            final Map<String, Integer> order = new HashMap<>(references.size());
+            for (int i = 0; i < references.size(); ++i) {
+                order.put(references.get(i).getId(), i);
+            }
+            merged.getDocumentEntries().sort(Comparator.comparingInt(
+                    entry -> order.getOrDefault(entry.getEntryUuid(), Integer.MAX_VALUE)));
+            return merged;
+        });
+    }
+
+    private record FoundReferences(List<ObjectReference> references, List<ErrorInfo> errors) {
+    }
+}
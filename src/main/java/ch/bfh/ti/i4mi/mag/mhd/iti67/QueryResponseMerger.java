@@ -0,0 +1,155 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Association;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.SubmissionSet;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.XDSMetaClass;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Merges the ITI-18 response of the internal community with the XCA ITI-38 response of the external communities.
+ * <p>
+ * When the internal registry is also reachable through XCA, the same objects are returned by both. The document
+ * entries, submission sets and associations are deduplicated by entryUUID; of two copies, the most complete one is
+ * kept (e.g. the one with the home community ID).
+ * </p>
+ **/
+class QueryResponseMerger {
+    private static final Logger log = LoggerFactory.getLogger(QueryResponseMerger.class);
+
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * Registers the counter of removed duplicates in the given registry.
+     */
+    void bindTo(final MeterRegistry registry) {
+        FunctionCounter.builder("mag.xds.query.duplicates", this.duplicates, LongAdder::sum)
+                .description("The number of duplicate objects removed when merging the internal and external results")
+                .register(registry);
+    }
+
+    /**
+     * Merges the second response into the first one, and returns the first one.
+     */
+    QueryResponse merge(final QueryResponse response18, final QueryResponse response38) {
+        int removed = 0;
+        removed += mergeInto(response18.getDocumentEntries(), response38.getDocumentEntries(),
+                             DocumentEntry::getEntryUuid, QueryResponseMerger::completeness);
+        removed += mergeInto(response18.getSubmissionSets(), response38.getSubmissionSets(),
+                             SubmissionSet::getEntryUuid, QueryResponseMerger::completeness);
+        removed += mergeInto(response18.getAssociations(), response38.getAssociations(),
+                             Association::getEntryUuid, QueryResponseMerger::completeness);
+        response18.getErrors().addAll(response38.getErrors());
+        response18.getDocuments().addAll(response38.getDocuments());
+        response18.getReferences().addAll(response38.getReferences());
+
+        if (removed > 0) {
+            log.debug("Removed {} duplicates while merging the ITI-18 and ITI-38 responses", removed);
+            this.duplicates.add(removed);
+        }
+        return response18;
+    }
+
+    long getDuplicateCount() {
+        return this.duplicates.sum();
+    }
+
+    /**
+     * Adds the objects of the second list to the first one, unless an object with the same entryUUID is already
+     * present; in that case, the most complete of both is kept at the position of the first one. The objects without
+     * an entryUUID are always added.
+     *
+     * @return the number of duplicates that were removed.
+     */
+    static <T> int mergeInto(final List<T> target,
+                             final List<T> source,
+                             final Function<T, String> entryUuid,
+                             final ToIntFunction<T> completeness) {
+        if (source.isEmpty()) {
+            return 0;
+        }
+        // Map: keys are the entryUUIDs, values are the indices in the merged list
+        final Map<String, Integer> indices = new LinkedHashMap<>(target.size() + source.size());
+        final List<T> merged = new ArrayList<>(target.size() + source.size());
+        int removed = 0;
+        for (final T object : Stream.concat(target.stream(), source.stream()).toList()) {
+            final String uuid = entryUuid.apply(object);
+            final Integer index = (uuid != null) ? indices.get(uuid) : null;
+            if (index == null) {
+                if (uuid != null) {
+                    indices.put(uuid, merged.size());
+                }
+                merged.add(object);
+                continue;
+            }
+            ++removed;
+            if (completeness.applyAsInt(object) > completeness.applyAsInt(merged.get(index))) {
+                merged.set(index, object);
+            }
+        }
+        target.clear();
+        target.addAll(merged);
+        return removed;
+    }
+
+    /**
+     * Returns the number of metadata attributes that are set.
+     */
+    static int completeness(final XDSMetaClass object) {
+        int completeness = countNonNull(
+                object.getHomeCommunityId(),
+                object.getTitle(),
+                object.getComments(),
+                object.getAvailabilityStatus(),
+                object.getPatientId(),
+                object.getLogicalUuid(),
+                object.getVersion()
+        );
+        completeness += object.getExtraMetadata() != null ? object.getExtraMetadata().size() : 0;
+        if (object instanceof final DocumentEntry documentEntry) {
+            completeness += countNonNull(
+                    documentEntry.getRepositoryUniqueId(),
+                    documentEntry.getUniqueId(),
+                    documentEntry.getMimeType(),
+                    documentEntry.getHash(),
+                    documentEntry.getSize(),
+                    documentEntry.getCreationTime(),
+                    documentEntry.getSourcePatientId(),
+                    documentEntry.getClassCode(),
+                    documentEntry.getTypeCode(),
+                    documentEntry.getFormatCode()
+            );
+            completeness += documentEntry.getAuthors().size();
+            completeness += documentEntry.getConfidentialityCodes().size();
+        }
+        return completeness;
+    }
+
+    static int completeness(final Association association) {
+        return countNonNull(
+                association.getSourceUuid(),
+                association.getTargetUuid(),
+                association.getAssociationType(),
+                association.getLabel(),
+                association.getAvailabilityStatus()
+        ) + (association.getExtraMetadata() != null ? association.getExtraMetadata().size() : 0);
+    }
+
+    private static int countNonNull(final Object... values) {
+        return (int) Stream.of(values).filter(Objects::nonNull).count();
+    }
+}
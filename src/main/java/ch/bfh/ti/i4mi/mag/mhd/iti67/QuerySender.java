@@ -0,0 +1,145 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import jakarta.annotation.Nullable;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorCode;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorInfo;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Severity;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends the XDS queries of the ITI-67 route to the internal community (ITI-18) and to the external communities
+ * (XCA ITI-38), each with its own deadline, through a producer template shared by all requests.
+ **/
+class QuerySender {
+    private static final Logger log = LoggerFactory.getLogger(QuerySender.class);
+
+    private final ProducerTemplate producerTemplate;
+    private final String iti18Endpoint;
+    private final Duration iti18Timeout;
+    private final String xca38Endpoint;
+    private final Duration xca38Timeout;
+    private final QueryResponseMerger queryResponseMerger;
+
+    QuerySender(final ProducerTemplate producerTemplate,
+                final String iti18Endpoint,
+                final Duration iti18Timeout,
+                final String xca38Endpoint,
+                final Duration xca38Timeout,
+                final QueryResponseMerger queryResponseMerger) {
+        this.producerTemplate = producerTemplate;
+        this.iti18Endpoint = iti18Endpoint;
+        this.iti18Timeout = iti18Timeout;
+        this.xca38Endpoint = xca38Endpoint;
+        this.xca38Timeout = xca38Timeout;
+        this.queryResponseMerger = queryResponseMerger;
+    }
+
+    QueryResponseMerger getQueryResponseMerger() {
+        return this.queryResponseMerger;
+    }
+
+    /**
+     * Sends the query to the internal community.
+     *
+     * @see #send(String, Exchange, Object, Duration)
+     */
+    CompletableFuture<QueryResponse> sendToIti18(final Exchange exchange, final Object body) {
+        return this.send(this.iti18Endpoint, exchange, body, this.iti18Timeout);
+    }
+
+    /**
+     * Sends the query to the external communities.
+     *
+     * @see #send(String, Exchange, Object, Duration)
+     */
+    CompletableFuture<QueryResponse> sendToXca38(final Exchange exchange, final Object body) {
+        return this.send(this.xca38Endpoint, exchange, body, this.xca38Timeout);
+    }
+
+    /**
+     * Sends a copy of the exchange, with the given body, to the endpoint. The future is completed with the response,
+     * or with {@code null} if the request has failed or has not completed in time. A late response doesn't alter the
+     * original exchange.
+     */
+    private CompletableFuture<QueryResponse> send(final String endpoint,
+                                                  final Exchange exchange,
+                                                  final Object body,
+                                                  final Duration timeout) {
+        final Exchange request = exchange.copy();
+        request.getMessage().setBody(body);
+        return this.producerTemplate.asyncSend(endpoint, request)
+                .thenApply(response -> {
+                    if (response.getException() != null) {
+                        log.warn("The request to {} has failed", endpoint, response.getException());
+                        return null;
+                    }
+                    return response.getMessage().getBody(QueryResponse.class);
+                })
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .exceptionally(exception -> {
+                    if (exception instanceof TimeoutException) {
+                        log.warn("No response from {} within {}", endpoint, timeout);
+                    } else {
+                        log.warn("The request to {} has failed", endpoint, exception);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Merges the responses of the internal and external communities. A missing response is reported as an error.
+     */
+    QueryResponse mergeResponses(final @Nullable QueryResponse response18,
+                                 final @Nullable QueryResponse response38) {
+        if (response18 != null && response38 != null) {
+            return this.queryResponseMerger.merge(response18, response38);
+        } else if (response18 != null) {
+            response18.getErrors().add(communityNotReached("external communities"));
+            return response18;
+        } else if (response38 != null) {
+            response38.getErrors().add(communityNotReached("internal community"));
+            return response38;
+        }
+
+        final var response = new QueryResponse();
+        response.getErrors().add(communityNotReached("internal and external communities"));
+        return response;
+    }
+
+    static ErrorInfo communityNotReached(final String communityName) {
+        return new ErrorInfo(
+                ErrorCode.UNAVAILABLE_COMMUNITY,
+                "The %s could not be reached".formatted(communityName),
+                Severity.ERROR,
+                null,
+                null
+        );
+    }
+
+    static Status calculateStatus(final QueryResponse response) {
+        final var nbErrors =
+                response.getErrors().stream().filter(error -> error.getSeverity() == Severity.ERROR).count();
+        final var nbResults = response.getDocumentEntries().size()
+                + response.getSubmissionSets().size()
+                + response.getReferences().size()
+                + response.getAssociations().size()
+                + response.getDocuments().size();
+
+        if (nbErrors > 0 && nbResults > 0) {
+            return Status.PARTIAL_SUCCESS;
+        } else if (nbErrors > 0) {
+            return Status.FAILURE;
+        }
+        return Status.SUCCESS;
+    }
+}
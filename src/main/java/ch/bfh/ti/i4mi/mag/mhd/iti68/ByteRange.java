@@ -0,0 +1,80 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti68;
+
+import jakarta.annotation.Nullable;
+
+/**
+ * A byte range of a document, requested with the HTTP {@code Range} header (RFC 9110, section 14).
+ * <p>
+ * Only a single range is supported: a request with multiple ranges is answered with the whole document, which the
+ * RFC allows.
+ * </p>
+ *
+ * @param first The position of the first byte.
+ * @param last  The position of the last byte, included.
+ **/
+record ByteRange(long first, long last) {
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Parses the Range header against the length of the document.
+     *
+     * @param header The value of the Range header.
+     * @param length The length of the document.
+     * @return the range, which may not be satisfiable, or {@code null} if the header is absent, invalid or not
+     * supported; the whole document is then sent.
+     */
+    static @Nullable ByteRange parse(final @Nullable String header, final long length) {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        final String spec = header.substring(BYTES_UNIT.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        final String firstPos = spec.substring(0, dash).trim();
+        final String lastPos = spec.substring(dash + 1).trim();
+        try {
+            if (firstPos.isEmpty()) {
+                // A suffix range: the last N bytes
+                final long suffixLength = Long.parseLong(lastPos);
+                if (suffixLength < 0) {
+                    return null;
+                }
+                return new ByteRange(Math.max(0, length - suffixLength), length - 1);
+            }
+            final long first = Long.parseLong(firstPos);
+            if (first < 0) {
+                return null;
+            }
+            if (lastPos.isEmpty()) {
+                return new ByteRange(first, length - 1);
+            }
+            final long last = Long.parseLong(lastPos);
+            if (last < first) {
+                return null;
+            }
+            return new ByteRange(first, Math.min(last, length - 1));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the range overlaps the document. If not, the request is answered with a 416 status.
+     */
+    boolean isSatisfiable() {
+        return this.first <= this.last;
+    }
+
+    long length() {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header of the partial response.
+     */
+    String toContentRange(final long documentLength) {
+        return "bytes %d-%d/%d".formatted(this.first, this.last, documentLength);
+    }
+}
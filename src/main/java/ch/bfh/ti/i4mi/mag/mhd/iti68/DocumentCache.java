@@ -0,0 +1,314 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti68;
+
+import ch.bfh.ti.i4mi.mag.common.JavaUtils;
+import ch.bfh.ti.i4mi.mag.common.PrivateFiles;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.annotation.Nullable;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.DocumentReference;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local disk cache of the retrieved documents, for the documents that are downloaded again and again (e.g. the
+ * same report opened by several clients).
+ * <p>
+ * A document is identified by its repository unique ID, home community ID and unique ID; its content never changes,
+ * so a cached document never expires. Each document is stored in its own file, named by the digest of its
+ * identifiers. The least recently used documents are evicted when the total size exceeds the configured maximum, and
+ * the documents larger than the maximum entry size are not cached.
+ * </p>
+ * <p>
+ * The cache doesn't check the access rights: the caller shall check that the user is still allowed to see the
+ * document before serving it from the cache. The index is kept in memory, the files left by a previous run are
+ * deleted at startup.
+ * </p>
+ **/
+class DocumentCache implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(DocumentCache.class);
+    private static final String FILE_SUFFIX = ".doc";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path directory;
+    private final long maxSize;
+    private final long maxEntrySize;
+
+    // Map: keys are the digests of the document identifiers, values are the cached documents, from the least to the
+    // most recently used. Guarded by this.
+    private final LinkedHashMap<String, CachedDocument> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Opens the cache in the configured directory, creating the directory if needed. The documents contain patient
+     * data: on POSIX file systems, the directory and the files are only accessible to the owner.
+     *
+     * @throws UncheckedIOException if the directory cannot be created, or is not owned by the MAG.
+     */
+    DocumentCache(final MagXdsProps.MagXdsDocumentCacheProps documentCacheProps) {
+        this.directory = Path.of(Objects.requireNonNull(documentCacheProps.getDirectory(),
+                                                        "mag.xds.document-cache.directory is not set"));
+        this.maxSize = documentCacheProps.getMaxSize().toBytes();
+        this.maxEntrySize = Math.min(documentCacheProps.getMaxEntrySize().toBytes(), this.maxSize);
+        try {
+            PrivateFiles.createDirectory(this.directory);
+            try (final var files = Files.list(this.directory)) {
+                for (final var file : (Iterable<Path>) files::iterator) {
+                    final String fileName = file.getFileName().toString();
+                    if (fileName.endsWith(FILE_SUFFIX) || fileName.endsWith(TEMPORARY_FILE_SUFFIX)) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Unable to open the document cache in " + this.directory, e);
+        }
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder("mag.cache.size", this, DocumentCache::entryCount)
+                .tag("cache", "document")
+                .register(registry);
+        Gauge.builder("mag.cache.bytes", this, DocumentCache::size)
+                .tag("cache", "document")
+                .register(registry);
+        FunctionCounter.builder("mag.cache.hits", this.hits, LongAdder::sum)
+                .tag("cache", "document")
+                .register(registry);
+        FunctionCounter.builder("mag.cache.misses", this.misses, LongAdder::sum)
+                .tag("cache", "document")
+                .register(registry);
+        FunctionCounter.builder("mag.cache.evictions", this.evictions, LongAdder::sum)
+                .tag("cache", "document")
+                .register(registry);
+    }
+
+    /**
+     * Opens the cached document, or returns {@code null} if it's not cached.
+     * <p>
+     * The file is opened while holding the lock, so that it can't be evicted in between: once open, it can be read to
+     * the end even if it's evicted meanwhile, as the eviction only unlinks it. If the file has been deleted by someone
+     * else, the entry is removed and {@code null} is returned, so that the document is retrieved again. The caller
+     * shall close the stream of the data handler.
+     * </p>
+     */
+    synchronized @Nullable OpenedDocument open(final DocumentKey key) {
+        final String digest = key.digest();
+        final var cached = this.entries.get(digest);
+        if (cached == null) {
+            this.misses.increment();
+            return null;
+        }
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(cached.file().toFile());
+        } catch (final FileNotFoundException e) {
+            log.warn("The cached document {} has been deleted", cached.file());
+            this.entries.remove(digest);
+            this.size -= cached.length();
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        final String contentType = Objects.requireNonNullElse(cached.mimeType(), "application/octet-stream");
+        return new OpenedDocument(new DataHandler(new StreamDataSource(in, contentType)), cached.length(),
+                                  cached.mimeType());
+    }
+
+    /**
+     * Stores a retrieved document, and replaces its data handler with one that reads the cached file, so that the
+     * document is read once from the repository.
+     * <p>
+     * If the document turns out to be larger than the maximum entry size, it's not cached: the data handler is then
+     * replaced with one that reads the bytes already copied, then the rest of the original stream.
+     * </p>
+     *
+     * @param key      The identifiers of the requested document.
+     * @param document The retrieved document.
+     * @throws IOException if the document cannot be read or stored.
+     */
+    void put(final DocumentKey key, final RetrievedDocument document) throws IOException {
+        final DataHandler dataHandler = document.getDataHandler();
+        if (dataHandler == null) {
+            return;
+        }
+        final InputStream in = dataHandler.getInputStream();
+        final long knownLength = Iti68ResponseConverter.contentLength(dataHandler, in);
+        if (knownLength > this.maxEntrySize
+                || Files.getFileStore(this.directory).getUsableSpace() < this.maxEntrySize) {
+            // Not worth copying, or the disk is full
+            document.setDataHandler(new DataHandler(new StreamDataSource(in, dataHandler.getContentType())));
+            return;
+        }
+
+        final String digest = key.digest();
+        final Path temporary = PrivateFiles.createTempFile(this.directory, digest, TEMPORARY_FILE_SUFFIX);
+        long length = 0;
+        try (final OutputStream out = Files.newOutputStream(temporary)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (length <= this.maxEntrySize && (read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                length += read;
+            }
+        } catch (final IOException e) {
+            in.close();
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        if (length > this.maxEntrySize) {
+            log.debug("The document {} is larger than {} bytes, it's not cached", key.uniqueId(), this.maxEntrySize);
+            final var replay = new SequenceInputStream(
+                    Files.newInputStream(temporary, StandardOpenOption.DELETE_ON_CLOSE), in);
+            document.setDataHandler(new DataHandler(new StreamDataSource(replay, dataHandler.getContentType())));
+            return;
+        }
+        in.close();
+
+        final Path file = this.directory.resolve(digest + FILE_SUFFIX);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The file is opened by the cache, it can't be evicted before being read
+        final FileInputStream cached = this.register(digest, new CachedDocument(file, length, document.getMimeType()));
+        document.setDataHandler(new DataHandler(new StreamDataSource(cached, dataHandler.getContentType())));
+    }
+
+    /**
+     * Returns whether the document is cached, without counting a hit or a miss.
+     */
+    synchronized boolean contains(final DocumentKey key) {
+        return this.entries.containsKey(key.digest());
+    }
+
+    synchronized int entryCount() {
+        return this.entries.size();
+    }
+
+    synchronized long size() {
+        return this.size;
+    }
+
+    /**
+     * Adds the document to the index, evicts the least recently used documents if needed, and opens the file of the
+     * document. The file is opened while holding the lock, as in {@link #open(DocumentKey)}, so that a concurrent
+     * registration can't evict it before it's read.
+     */
+    private synchronized FileInputStream register(final String digest,
+                                                  final CachedDocument cached) throws FileNotFoundException {
+        final var in = new FileInputStream(cached.file().toFile());
+        final var previous = this.entries.put(digest, cached);
+        if (previous != null) {
+            this.size -= previous.length();
+        }
+        this.size += cached.length();
+
+        final var iterator = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && iterator.hasNext()) {
+            final Map.Entry<String, CachedDocument> eldest = iterator.next();
+            if (eldest.getValue() == cached) {
+                continue;
+            }
+            iterator.remove();
+            this.size -= eldest.getValue().length();
+            this.evictions.increment();
+            try {
+                // A response that is reading the file can still finish, the file is only unlinked
+                Files.deleteIfExists(eldest.getValue().file());
+            } catch (final IOException e) {
+                log.warn("Unable to delete the cached document {}", eldest.getValue().file(), e);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * The identifiers of a retrieved document.
+     */
+    record DocumentKey(String repositoryUniqueId, @Nullable String homeCommunityId, String uniqueId) {
+
+        static DocumentKey of(final DocumentReference reference) {
+            return new DocumentKey(reference.getRepositoryUniqueId(),
+                                   reference.getHomeCommunityId(),
+                                   reference.getDocumentUniqueId());
+        }
+
+        String digest() {
+            return JavaUtils.sha256(this.repositoryUniqueId + '\u0000'
+                                            + Objects.requireNonNullElse(this.homeCommunityId, "") + '\u0000'
+                                            + this.uniqueId);
+        }
+    }
+
+    /**
+     * A cached document.
+     *
+     * @param file     The file that holds the content.
+     * @param length   The length of the content, in bytes.
+     * @param mimeType The MIME type of the document.
+     */
+    record CachedDocument(Path file, long length, @Nullable String mimeType) {
+    }
+
+    /**
+     * A cached document, opened for reading.
+     *
+     * @param dataHandler The data handler, whose stream reads the cached file.
+     * @param length      The length of the content, in bytes.
+     * @param mimeType    The MIME type of the document.
+     */
+    record OpenedDocument(DataHandler dataHandler, long length, @Nullable String mimeType) {
+    }
+
+    /**
+     * A data source that reads a stream once.
+     */
+    private record StreamDataSource(InputStream in, String contentType) implements DataSource {
+
+        @Override
+        public InputStream getInputStream() {
+            return this.in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        @Override
+        public String getName() {
+            return "";
+        }
+    }
+}
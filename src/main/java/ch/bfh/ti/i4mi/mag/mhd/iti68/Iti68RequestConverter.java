@@ -23,6 +23,8 @@ import org.apache.camel.Headers;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
 import org.openehealth.ipf.commons.ihe.xds.core.requests.RetrieveDocumentSet;
 
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -60,4 +62,63 @@ public class Iti68RequestConverter extends BaseRequestConverter {
         retrieveDocumentSet.addReferenceTo(documentEntry);
         return retrieveDocumentSet;
     }
+
+    /**
+     * Converts the parameters of a batch retrieve to one ITI-43/XCA-39 request per community.
+     * <p>
+     * The parameter uniqueId is repeated for each document. The parameters repositoryUniqueId and homeCommunityId are
+     * either repeated for each document, in the same order, or given once for all documents.
+     * </p>
+     *
+     * @param parameters   The query parameters.
+     * @param maxDocuments The maximum number of documents.
+     * @return the requests, keyed by home community ID.
+     */
+    public static Map<String, RetrieveDocumentSet> queryParametersToRetrieveDocumentSets(
+            final Map<String, Object> parameters,
+            final int maxDocuments) {
+        final List<String> uniqueIds = parameterValues(parameters, "uniqueId");
+        final List<String> repositoryUniqueIds = parameterValues(parameters, "repositoryUniqueId");
+        final List<String> homeCommunityIds = parameterValues(parameters, "homeCommunityId");
+        if (uniqueIds.isEmpty()) {
+            throw new InvalidRequestException("Missing required parameter: uniqueId");
+        }
+        if (uniqueIds.size() > maxDocuments) {
+            throw new InvalidRequestException("Too many documents requested, the maximum is " + maxDocuments);
+        }
+        checkCount("repositoryUniqueId", repositoryUniqueIds, uniqueIds.size());
+        checkCount("homeCommunityId", homeCommunityIds, uniqueIds.size());
+
+        final Map<String, RetrieveDocumentSet> requests = new LinkedHashMap<>();
+        for (int i = 0; i < uniqueIds.size(); ++i) {
+            final var documentEntry = new DocumentEntry();
+            documentEntry.setUniqueId(uniqueIds.get(i));
+            documentEntry.setRepositoryUniqueId(repositoryUniqueIds.get((repositoryUniqueIds.size() == 1) ? 0 : i));
+            documentEntry.setHomeCommunityId(homeCommunityIds.get((homeCommunityIds.size() == 1) ? 0 : i));
+            requests.computeIfAbsent(documentEntry.getHomeCommunityId(), _ -> new RetrieveDocumentSet())
+                    .addReferenceTo(documentEntry);
+        }
+        return requests;
+    }
+
+    /**
+     * Returns the values of a query parameter; the servlet binding sets a list if the parameter is repeated.
+     */
+    private static List<String> parameterValues(final Map<String, Object> parameters, final String name) {
+        return switch (parameters.get(name)) {
+            case final String value -> List.of(value);
+            case final List<?> values -> values.stream().map(String::valueOf).toList();
+            case null, default -> List.of();
+        };
+    }
+
+    private static void checkCount(final String name, final List<String> values, final int documentCount) {
+        if (values.isEmpty()) {
+            throw new InvalidRequestException("Missing required parameter: " + name);
+        }
+        if (values.size() != 1 && values.size() != documentCount) {
+            throw new InvalidRequestException(
+                    "The parameter %s shall be given once or for each document".formatted(name));
+        }
+    }
 }
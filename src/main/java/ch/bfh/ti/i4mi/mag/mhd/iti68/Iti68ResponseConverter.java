@@ -17,18 +17,38 @@
 package ch.bfh.ti.i4mi.mag.mhd.iti68;
 
 import ch.bfh.ti.i4mi.mag.mhd.BaseResponseConverter;
+import jakarta.activation.DataHandler;
+import jakarta.activation.FileDataSource;
+import jakarta.annotation.Nullable;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.apache.camel.Body;
 import org.apache.camel.Exchange;
+import org.apache.camel.ExchangeProperty;
 import org.apache.camel.Headers;
 import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorInfo;
 import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocument;
 import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocumentSet;
 import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
 
 /**
  * ITI-68 from ITI-43 response converter
@@ -37,19 +57,81 @@ import java.util.Map;
  *
  */
 public class Iti68ResponseConverter extends BaseResponseConverter {
+    // The exchange properties that hold the servlet request and response of the ITI-68 request
+    static final String HTTP_SERVLET_REQUEST_PROPERTY = "Iti68HttpServletRequest";
+    static final String HTTP_SERVLET_RESPONSE_PROPERTY = "Iti68HttpServletResponse";
+    // The exchange property that holds the hash of the requested document, as returned by its registry
+    static final String DOCUMENT_HASH_PROPERTY = "Iti68DocumentHash";
+    // The exchange property that holds the uniqueIds of the documents not returned by a batch retrieve
+    static final String MISSING_DOCUMENTS_PROPERTY = "Iti68MissingDocuments";
+    // The header of the batch retrieve response that lists the uniqueIds of the documents not returned
+    static final String MISSING_DOCUMENTS_HEADER = "X-Missing-Documents";
 
+    /**
+     * Returns the retrieved document as a stream, which is copied to the HTTP response by the servlet binding with a
+     * fixed-size buffer, instead of being read in memory. The Content-Length is set if the size of the document is
+     * known.
+     * <p>
+     * A single byte range can be requested with the Range header; the response is then a 206 Partial Content. If the
+     * size of the document is not known, it's first spooled to a temporary file. The ETag header is only set if the
+     * hash of the document has been returned by its registry.
+     * </p>
+     */
     public static Object retrievedDocumentSetToHttResponse(@Body RetrievedDocumentSet retrievedDocumentSet,
-                                                           @Headers Map<String, Object> headers) throws IOException {
+                                                           @Headers Map<String, Object> headers,
+                                                           Exchange exchange) throws IOException {
 
         if (Status.SUCCESS.equals(retrievedDocumentSet.getStatus())) {
             List<RetrievedDocument> documentResponses = retrievedDocumentSet.getDocuments();
             if (documentResponses.size() == 1) {
                 RetrievedDocument documentResponse = documentResponses.get(0);
-                final InputStream in = documentResponse.getDataHandler().getInputStream();
-                byte[] byteArray = org.apache.commons.io.IOUtils.toByteArray(in);
+                final DataHandler dataHandler = documentResponse.getDataHandler();
+                InputStream in = dataHandler.getInputStream();
+                long contentLength = contentLength(dataHandler, in);
+                final var httpRequest = exchange.getProperty(HTTP_SERVLET_REQUEST_PROPERTY, HttpServletRequest.class);
+                final var httpResponse = exchange.getProperty(HTTP_SERVLET_RESPONSE_PROPERTY, HttpServletResponse.class);
                 headers.clear();
                 headers.put("Content-Type", documentResponse.getMimeType());
-                return byteArray;
+                headers.put("Accept-Ranges", "bytes");
+                final String entityTag = entityTag(exchange.getProperty(DOCUMENT_HASH_PROPERTY, String.class));
+                if (entityTag != null) {
+                    headers.put("ETag", entityTag);
+                }
+
+                final String rangeHeader = (httpRequest != null && isRangeApplicable(httpRequest, entityTag))
+                        ? httpRequest.getHeader("Range") : null;
+                if (ByteRange.parse(rangeHeader, Long.MAX_VALUE) != null) {
+                    if (contentLength < 0) {
+                        // The length is needed to resolve the range
+                        final Path spool = Files.createTempFile("mag-iti68-", ".bin");
+                        try {
+                            try (final InputStream document = in) {
+                                Files.copy(document, spool, StandardCopyOption.REPLACE_EXISTING);
+                            }
+                            contentLength = Files.size(spool);
+                            in = Files.newInputStream(spool, StandardOpenOption.DELETE_ON_CLOSE);
+                        } catch (final IOException | RuntimeException e) {
+                            Files.deleteIfExists(spool);
+                            throw e;
+                        }
+                    }
+                    final ByteRange range = Objects.requireNonNull(ByteRange.parse(rangeHeader, contentLength));
+                    if (!range.isSatisfiable()) {
+                        in.close();
+                        headers.put(Exchange.HTTP_RESPONSE_CODE, 416);
+                        headers.put("Content-Range", "bytes */" + contentLength);
+                        setContentLength(httpResponse, 0);
+                        return null;
+                    }
+                    in.skipNBytes(range.first());
+                    headers.put(Exchange.HTTP_RESPONSE_CODE, 206);
+                    headers.put("Content-Range", range.toContentRange(contentLength));
+                    setContentLength(httpResponse, range.length());
+                    return new LimitedInputStream(in, range.length());
+                }
+
+                setContentLength(httpResponse, contentLength);
+                return in;
             }
         } else {
             headers.put(Exchange.HTTP_RESPONSE_CODE, 400);
@@ -63,4 +145,194 @@ public class Iti68ResponseConverter extends BaseResponseConverter {
 
         return null;
     }
+
+    /**
+     * Returns the documents retrieved by a batch request as a {@code multipart/mixed} stream (RFC 2046). Each part has
+     * the Content-Type of the document and its uniqueId as Content-ID. The documents are streamed one after the other,
+     * they're not read in memory.
+     * <p>
+     * The documents that have not been retrieved, because their community failed, didn't answer in time or returned an
+     * error for them, are left out and listed in the {@code X-Missing-Documents} header, separated by commas; the
+     * client can retrieve them with ITI-68 to get the error. If no document has been retrieved, the errors are
+     * returned with a 400 status, as for ITI-68.
+     * </p>
+     */
+    public static Object retrievedDocumentSetsToMultipart(@Body List<RetrievedDocumentSet> retrievedDocumentSets,
+                                                          @Headers Map<String, Object> headers,
+                                                          @ExchangeProperty(MISSING_DOCUMENTS_PROPERTY)
+                                                          @Nullable List<String> missingUniqueIds) throws IOException {
+        headers.clear();
+        if (missingUniqueIds != null && !missingUniqueIds.isEmpty()) {
+            headers.put(MISSING_DOCUMENTS_HEADER, String.join(",", missingUniqueIds));
+        }
+        final List<RetrievedDocument> documents = retrievedDocumentSets.stream()
+                .flatMap(retrievedDocumentSet -> retrievedDocumentSet.getDocuments().stream())
+                .toList();
+        if (documents.isEmpty()) {
+            headers.put(Exchange.HTTP_RESPONSE_CODE, 400);
+            final StringBuilder result = new StringBuilder();
+            for (final RetrievedDocumentSet retrievedDocumentSet : retrievedDocumentSets) {
+                for (final ErrorInfo error : retrievedDocumentSet.getErrors()) {
+                    result.append(error.getCodeContext());
+                }
+            }
+            if (result.isEmpty()) {
+                // No community has answered in time
+                result.append("The documents could not be retrieved");
+            }
+            return result;
+        }
+
+        final String boundary = UUID.randomUUID().toString();
+        headers.put("Content-Type", "multipart/mixed; boundary=" + boundary);
+        final List<InputStream> parts = new ArrayList<>(2 * documents.size() + 1);
+        String delimiter = "--" + boundary;
+        for (final RetrievedDocument document : documents) {
+            final String mimeType = Objects.requireNonNullElse(document.getMimeType(), "application/octet-stream");
+            final String partHeaders = delimiter + "\r\n"
+                    + "Content-Type: " + mimeType + "\r\n"
+                    + "Content-ID: <" + document.getRequestData().getDocumentUniqueId() + ">\r\n"
+                    + "\r\n";
+            parts.add(new ByteArrayInputStream(partHeaders.getBytes(StandardCharsets.US_ASCII)));
+            parts.add(document.getDataHandler().getInputStream());
+            delimiter = "\r\n--" + boundary;
+        }
+        parts.add(new ByteArrayInputStream((delimiter + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * Answers a request whose If-None-Match header matches the entity tag of the document: the client already has it.
+     */
+    public static void notModified(final Exchange exchange) {
+        final String entityTag = entityTag(exchange.getProperty(DOCUMENT_HASH_PROPERTY, String.class));
+        exchange.getMessage().removeHeaders("*");
+        exchange.getMessage().setHeader(Exchange.HTTP_RESPONSE_CODE, 304);
+        exchange.getMessage().setHeader("ETag", entityTag);
+        exchange.getMessage().setBody(null);
+    }
+
+    /**
+     * Returns whether the If-None-Match header of the request matches the entity tag of the document. It never
+     * matches if the hash of the document has not been returned by its registry.
+     */
+    public static boolean isNotModified(final Exchange exchange) {
+        final var httpRequest = exchange.getProperty(HTTP_SERVLET_REQUEST_PROPERTY, HttpServletRequest.class);
+        if (httpRequest == null) {
+            return false;
+        }
+        final String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        final String entityTag = entityTag(exchange.getProperty(DOCUMENT_HASH_PROPERTY, String.class));
+        if (ifNoneMatch == null || entityTag == null) {
+            return false;
+        }
+        for (final String tag : ifNoneMatch.split(",")) {
+            // If-None-Match uses the weak comparison
+            final String trimmed = tag.trim();
+            if (entityTag.equals(trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the entity tag of a document, or {@code null} if its hash is not known.
+     * <p>
+     * The tag is the SHA-1 hash of the document, as set in its DocumentEntry, so that it only changes with the
+     * content. It's never derived from the request parameters.
+     * </p>
+     */
+    static @Nullable String entityTag(final @Nullable String hash) {
+        return (hash != null && !hash.isBlank()) ? '"' + hash.trim().toLowerCase(Locale.ROOT) + '"' : null;
+    }
+
+    /**
+     * Returns whether the Range header shall be applied: the If-Range header, if any, shall match the entity tag.
+     */
+    private static boolean isRangeApplicable(final HttpServletRequest httpRequest,
+                                             final @Nullable String entityTag) {
+        final String ifRange = httpRequest.getHeader("If-Range");
+        return ifRange == null || ifRange.trim().equals(entityTag);
+    }
+
+    private static void setContentLength(final @Nullable HttpServletResponse httpResponse, final long contentLength) {
+        if (contentLength >= 0 && httpResponse != null) {
+            httpResponse.setContentLengthLong(contentLength);
+        }
+    }
+
+    /**
+     * Returns the size of the document, or {@code -1} if it's not known without reading it.
+     */
+    static long contentLength(final DataHandler dataHandler, final InputStream in) {
+        if (dataHandler.getDataSource() instanceof final FileDataSource fileDataSource) {
+            return fileDataSource.getFile().length();
+        }
+        if (in instanceof final FileInputStream fileInputStream) {
+            // An open file, e.g. from the document cache, keeps its size even if it's deleted meanwhile
+            try {
+                return fileInputStream.getChannel().size();
+            } catch (final IOException e) {
+                return -1;
+            }
+        }
+        if (in instanceof final ByteArrayInputStream byteArrayInputStream) {
+            return byteArrayInputStream.available();
+        }
+        return -1;
+    }
+
+    /**
+     * An input stream that ends after the given number of bytes.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(final InputStream in, final long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int b = super.read();
+            if (b >= 0) {
+                --this.remaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read(buffer, offset, (int) Math.min(length, this.remaining));
+            if (read > 0) {
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
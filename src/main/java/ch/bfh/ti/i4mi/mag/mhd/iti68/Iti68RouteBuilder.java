@@ -21,24 +21,64 @@ import ch.bfh.ti.i4mi.mag.common.RequestHeadersForwarder;
 import ch.bfh.ti.i4mi.mag.common.TraceparentHandler;
 import ch.bfh.ti.i4mi.mag.config.props.MagProps;
 import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.Nullable;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.http.common.HttpMessage;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.DocumentReference;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.RetrieveDocumentSet;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.GetDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.QueryReturnType;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocument;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocumentSet;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
 /**
  * IHE MHD: Retrieve Document [ITI-68] for Document Responder see also https://oehf.github.io/ipf-docs/docs/ihe/iti68/
  * https://oehf.github.io/ipf-docs/docs/boot-fhir/ https://camel.apache.org/components/latest/servlet-component.html
  */
 @Component
 @ConditionalOnProperty({"mag.xds.iti-43", "mag.xds.xca-39"})
-class Iti68RouteBuilder extends MagRouteBuilder {
+class Iti68RouteBuilder extends MagRouteBuilder implements MeterBinder {
     private static final Logger log = LoggerFactory.getLogger(Iti68RouteBuilder.class);
+    // The exchange properties that hold the identifiers of the requested document, whether its registry has returned
+    // it to the user, and whether it's served from the document cache
+    private static final String DOCUMENT_KEY_PROPERTY = "Iti68DocumentKey";
+    private static final String DOCUMENT_VISIBLE_PROPERTY = "Iti68DocumentVisible";
+    private static final String FROM_CACHE_PROPERTY = "Iti68FromCache";
 
     private final MagXdsProps xdsProps;
     private final boolean isChMhdConstraints;
     private final String localHomeCommunityId;
+    private final @Nullable DocumentCache documentCache;
+    private String xds43Endpoint;
+    private String xca39Endpoint;
+    private String iti18Endpoint;
+    private String xca38Endpoint;
+    private ProducerTemplate producerTemplate;
 
     public Iti68RouteBuilder(final MagProps magProps,
                              final RequestHeadersForwarder requestHeadersForwarder,
@@ -47,17 +87,40 @@ class Iti68RouteBuilder extends MagRouteBuilder {
         this.xdsProps = magProps.getXds();
         this.isChMhdConstraints = xdsProps.isChMhdConstraints();
         this.localHomeCommunityId = magProps.getHomeCommunityId();
+        this.documentCache = this.xdsProps.getDocumentCache().isEnabled()
+                ? new DocumentCache(this.xdsProps.getDocumentCache()) : null;
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        if (this.documentCache != null) {
+            this.documentCache.bindTo(registry);
+        }
     }
 
     @Override
     public void configure() throws Exception {
         log.debug("Configuring ITI-68 route");
-        final String xds43Endpoint = this.buildOutgoingEndpoint("xds-iti43",
-                                                                this.xdsProps.getIti43(),
-                                                                this.xdsProps.isHttps());
-        final String xca39Endpoint = this.buildOutgoingEndpoint("xca-iti39",
-                                                                this.xdsProps.getXca39(),
-                                                                this.xdsProps.isHttps());
+        this.xds43Endpoint = this.buildOutgoingEndpoint("xds-iti43",
+                                                        this.xdsProps.getIti43(),
+                                                        this.xdsProps.isHttps());
+        this.xca39Endpoint = this.buildOutgoingEndpoint("xca-iti39",
+                                                        this.xdsProps.getXca39(),
+                                                        this.xdsProps.isHttps());
+        // The producer template is shared by all requests, and stopped with the Camel context
+        this.producerTemplate = getContext().createProducerTemplate();
+        getContext().addService(this.producerTemplate, true);
+        // The registries are queried for the metadata of the document, see checkMetadata()
+        if (this.xdsProps.getIti18() != null && this.xdsProps.getXca38() != null) {
+            this.iti18Endpoint = this.buildOutgoingEndpoint("xds-iti18",
+                                                            this.xdsProps.getIti18(),
+                                                            this.xdsProps.isHttps());
+            this.xca38Endpoint = this.buildOutgoingEndpoint("xca-iti38",
+                                                            this.xdsProps.getXca38(),
+                                                            this.xdsProps.isHttps());
+        } else if (this.documentCache != null) {
+            throw new IllegalStateException("The document cache requires mag.xds.iti-18 and mag.xds.xca-38");
+        }
 
         // @formatter:off
         from("mhd-iti68:camel/xdsretrieve?audit=false")
@@ -67,25 +130,46 @@ class Iti68RouteBuilder extends MagRouteBuilder {
                 .log(LoggingLevel.INFO, log, "Received ITI-68 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
                 .doTry()
-                    //.process(this.requestHeadersForwarder.checkAuthorization(this.isChMhdConstraints))
+                    // Keep the servlet request and response, the message is replaced by the ITI-43/XCA-39 response
+                    .process(exchange -> {
+                        if (exchange.getIn() instanceof final HttpMessage httpMessage) {
+                            exchange.setProperty(Iti68ResponseConverter.HTTP_SERVLET_REQUEST_PROPERTY,
+                                                 httpMessage.getRequest());
+                            exchange.setProperty(Iti68ResponseConverter.HTTP_SERVLET_RESPONSE_PROPERTY,
+                                                 httpMessage.getResponse());
+                        }
+                    })
+                    .process(this.requestHeadersForwarder.checkAuthorization(this.isChMhdConstraints))
                     .process(this.requestHeadersForwarder.forward())
 
                     // translate, forward, translate back
                     .bean(Iti68RequestConverter.class)
+                    .process(this::checkMetadata)
+                    // The client already has this version of the document: the repository isn't queried
+                    .choice()
+                        .when(Iti68ResponseConverter::isNotModified)
+                            .log(LoggingLevel.DEBUG, log, "The document has not been modified")
+                            .process(Iti68ResponseConverter::notModified)
+                            .stop()
+                    .end()
+                    .process(this::serveFromCache)
                     .choice()
+                        .when(exchangeProperty(FROM_CACHE_PROPERTY).isEqualTo(true))
+                            .log(LoggingLevel.DEBUG, log, "Serving the document from the cache")
                         .when(header("homeCommunityId").isEqualTo(this.localHomeCommunityId))
-                            .log(LoggingLevel.DEBUG, log, "Sending an ITI-43 request to " + xds43Endpoint)
+                            .log(LoggingLevel.DEBUG, log, "Sending an ITI-43 request to " + this.xds43Endpoint)
                             .log(LoggingLevel.TRACE, log, "${body}")
-                            .to(xds43Endpoint)
+                            .to(this.xds43Endpoint)
                             .log(LoggingLevel.DEBUG, log, "Got a response")
                             .log(LoggingLevel.TRACE, log, "${body}")
                         .otherwise()
-                            .log(LoggingLevel.DEBUG, log, "Sending an ITI-XCA-43 request to " + xca39Endpoint)
+                            .log(LoggingLevel.DEBUG, log, "Sending an ITI-XCA-43 request to " + this.xca39Endpoint)
                             .log(LoggingLevel.TRACE, log, "${body}")
-                            .to(xca39Endpoint)
+                            .to(this.xca39Endpoint)
                             .log(LoggingLevel.DEBUG, log, "Got a response")
                             .log(LoggingLevel.TRACE, log, "${body}")
-                    .endDoTry()
+                    .end()
+                    .process(this::storeInCache)
                     .process(this.traceparentHandler.updateHeaderForFhir())
                     .bean(Iti68ResponseConverter.class, "retrievedDocumentSetToHttResponse")
                     .log(LoggingLevel.DEBUG, log, "Finished generating the ITI-68 response")
@@ -94,9 +178,205 @@ class Iti68RouteBuilder extends MagRouteBuilder {
                     .setBody(simple("${exception}"))
                     .process(this.errorFromException())
                 .end();
+
+        // Several documents in one request: one ITI-43/XCA-39 request per community, the documents are returned as
+        // a multipart stream
+        from("servlet://xdsretrieve-batch?httpMethodRestrict=GET")
+                .routeId("in-mhd-iti68-batch")
+                // pass back errors to the endpoint
+                .errorHandler(noErrorHandler())
+                .log(LoggingLevel.INFO, log, "Received ITI-68 batch request")
+                .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
+                .doTry()
+                    .process(this.requestHeadersForwarder.checkAuthorization(this.isChMhdConstraints))
+                    .process(this.requestHeadersForwarder.forward())
+                    .process(this::retrieveBatch)
+                    .process(this.traceparentHandler.updateHeaderForFhir())
+                    .bean(Iti68ResponseConverter.class, "retrievedDocumentSetsToMultipart")
+                    .log(LoggingLevel.DEBUG, log, "Finished generating the ITI-68 batch response")
+                    .process(loggingResponseProcessor(LoggingLevel.TRACE, log))
+                .doCatch(Exception.class)
+                    .setBody(simple("${exception}"))
+                    .process(this.errorFromException())
+                .end();
         // @formatter:on
         // if removing retrievedDocumentSetToHttResponse its given an AmbiguousMethodCallException with two same methods??
         // public java.lang.Object ch.bfh.ti.i4mi.mag.mhd.iti68.Iti68ResponseConverter.retrievedDocumentSetToHttResponse(org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocumentSet,java.util.Map) throws java.io.IOException,
         // public java.lang.Object ch.bfh.ti.i4mi.mag.mhd.iti68.Iti68ResponseConverter.retrievedDocumentSetToHttResponse(org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocumentSet,java.util.Map) throws java.io.IOException]
     }
+
+    /**
+     * Sends the ITI-43/XCA-39 requests of a batch retrieve concurrently, one per community, each with its own
+     * deadline, and replaces the body with the list of the responses. A failed or late request is left out; the
+     * uniqueIds of the documents that were not returned are kept in the
+     * {@link Iti68ResponseConverter#MISSING_DOCUMENTS_PROPERTY} property.
+     */
+    private void retrieveBatch(final Exchange exchange) {
+        final Map<String, RetrieveDocumentSet> requests = Iti68RequestConverter.queryParametersToRetrieveDocumentSets(
+                exchange.getMessage().getHeaders(), this.xdsProps.getBatchRetrieve().getMaxDocuments());
+
+        final List<CompletableFuture<RetrievedDocumentSet>> futures = new ArrayList<>(requests.size());
+        for (final var entry : requests.entrySet()) {
+            final boolean isLocal = this.localHomeCommunityId.equals(entry.getKey());
+            final String endpoint = isLocal ? this.xds43Endpoint : this.xca39Endpoint;
+            final Duration timeout = isLocal ? this.xdsProps.getIti43Timeout() : this.xdsProps.getXca39Timeout();
+            log.debug("Sending a request for {} documents to {}", entry.getValue().getDocuments().size(), endpoint);
+            futures.add(this.sendWithTimeout(endpoint, exchange, entry.getValue(), timeout));
+        }
+        // The futures are completed by their deadline, and never exceptionally
+        final List<RetrievedDocumentSet> responses = futures.stream()
+                .map(CompletableFuture::join)
+                .filter(Objects::nonNull)
+                .toList();
+
+        final Set<String> retrieved = responses.stream()
+                .flatMap(response -> response.getDocuments().stream())
+                .map(RetrievedDocument::getRequestData)
+                .filter(Objects::nonNull)
+                .map(DocumentReference::getDocumentUniqueId)
+                .collect(Collectors.toSet());
+        final List<String> missing = requests.values().stream()
+                .flatMap(request -> request.getDocuments().stream())
+                .map(DocumentReference::getDocumentUniqueId)
+                .filter(uniqueId -> !retrieved.contains(uniqueId))
+                .toList();
+        if (!missing.isEmpty()) {
+            log.info("{} of the {} requested documents could not be retrieved", missing.size(),
+                     missing.size() + retrieved.size());
+        }
+        exchange.setProperty(Iti68ResponseConverter.MISSING_DOCUMENTS_PROPERTY, missing);
+        exchange.getMessage().setBody(responses);
+    }
+
+    /**
+     * Sends a request asynchronously. The returned future completes with {@code null} if the request fails or
+     * doesn't complete within the timeout.
+     */
+    private CompletableFuture<RetrievedDocumentSet> sendWithTimeout(final String endpoint,
+                                                                    final Exchange exchange,
+                                                                    final RetrieveDocumentSet body,
+                                                                    final Duration timeout) {
+        final Exchange request = exchange.copy();
+        request.getMessage().setBody(body);
+        return this.producerTemplate.asyncSend(endpoint, request)
+                .thenApply(response -> {
+                    if (response.getException() != null) {
+                        log.warn("The request to {} has failed", endpoint, response.getException());
+                        return null;
+                    }
+                    return response.getMessage().getBody(RetrievedDocumentSet.class);
+                })
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .exceptionally(exception -> {
+                    if (exception instanceof TimeoutException) {
+                        log.warn("No response from {} within {}", endpoint, timeout);
+                    } else {
+                        log.warn("The request to {} has failed", endpoint, exception);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Queries the metadata of the requested document, when the request is conditional (If-None-Match, If-Range), the
+     * document is cached, or the entity tag is always returned (mag.xds.retrieve-etag). The GetDocuments query is sent with the user's credentials to the registry of the
+     * document's community, which enforces the access policies; it's far cheaper than retrieving the document.
+     * <p>
+     * If the registry returns the document, its hash is kept as the entity tag of the response, and the cached
+     * document may be served.
+     * </p>
+     */
+    private void checkMetadata(final Exchange exchange) {
+        final var request = exchange.getMessage().getBody(RetrieveDocumentSet.class);
+        final var key = DocumentCache.DocumentKey.of(request.getDocuments().getFirst());
+        exchange.setProperty(DOCUMENT_KEY_PROPERTY, key);
+        if (this.iti18Endpoint == null) {
+            return;
+        }
+        final var httpRequest = exchange.getProperty(Iti68ResponseConverter.HTTP_SERVLET_REQUEST_PROPERTY,
+                                                     HttpServletRequest.class);
+        final boolean isConditional = httpRequest != null
+                && (httpRequest.getHeader("If-None-Match") != null || httpRequest.getHeader("If-Range") != null);
+        if (!isConditional && !this.xdsProps.isRetrieveEtag()
+                && (this.documentCache == null || !this.documentCache.contains(key))) {
+            return;
+        }
+
+        final var documentEntry = this.queryDocumentEntry(exchange, key);
+        exchange.setProperty(DOCUMENT_VISIBLE_PROPERTY, documentEntry != null);
+        if (documentEntry != null && documentEntry.getHash() != null) {
+            exchange.setProperty(Iti68ResponseConverter.DOCUMENT_HASH_PROPERTY, documentEntry.getHash());
+        }
+    }
+
+    /**
+     * Returns the DocumentEntry of a document, or {@code null} if the registry doesn't return it to the user.
+     */
+    private @Nullable DocumentEntry queryDocumentEntry(final Exchange exchange, final DocumentCache.DocumentKey key) {
+        final var query = new GetDocumentsQuery();
+        query.setUniqueIds(List.of(key.uniqueId()));
+        final boolean isLocal = this.localHomeCommunityId.equals(key.homeCommunityId());
+        if (!isLocal) {
+            query.setHomeCommunityId(key.homeCommunityId());
+        }
+        final var queryRegistry = new QueryRegistry(query);
+        queryRegistry.setReturnType(QueryReturnType.LEAF_CLASS);
+
+        final String endpoint = isLocal ? this.iti18Endpoint : this.xca38Endpoint;
+        final Exchange request = exchange.copy();
+        request.getMessage().setBody(queryRegistry);
+        final Exchange response = this.producerTemplate.send(endpoint, request);
+        if (response.getException() != null) {
+            log.warn("The metadata query of the document {} has failed", key.uniqueId(), response.getException());
+            return null;
+        }
+        final var queryResponse = response.getMessage().getBody(QueryResponse.class);
+        if (queryResponse == null
+                || queryResponse.getStatus() != Status.SUCCESS
+                || queryResponse.getDocumentEntries().isEmpty()) {
+            log.debug("The document {} is not visible to the user", key.uniqueId());
+            return null;
+        }
+        return queryResponse.getDocumentEntries().getFirst();
+    }
+
+    /**
+     * Replaces the ITI-43/XCA-39 request with the cached document, if it's cached and still visible to the user.
+     */
+    private void serveFromCache(final Exchange exchange) {
+        if (this.documentCache == null || !exchange.getProperty(DOCUMENT_VISIBLE_PROPERTY, false, Boolean.class)) {
+            return;
+        }
+        final var key = exchange.getProperty(DOCUMENT_KEY_PROPERTY, DocumentCache.DocumentKey.class);
+        // The file is opened by the cache, it can't be evicted before being read
+        final var cached = this.documentCache.open(key);
+        if (cached == null) {
+            return;
+        }
+        final var reference = exchange.getMessage().getBody(RetrieveDocumentSet.class).getDocuments().getFirst();
+        final var document = new RetrievedDocument();
+        document.setRequestData(reference);
+        document.setMimeType(cached.mimeType());
+        document.setDataHandler(cached.dataHandler());
+        final var response = new RetrievedDocumentSet();
+        response.setStatus(Status.SUCCESS);
+        response.getDocuments().add(document);
+        exchange.getMessage().setBody(response);
+        exchange.setProperty(FROM_CACHE_PROPERTY, true);
+    }
+
+    /**
+     * Stores the retrieved document in the cache. The response then reads the cached file.
+     */
+    private void storeInCache(final Exchange exchange) throws IOException {
+        if (this.documentCache == null || exchange.getProperty(FROM_CACHE_PROPERTY, false, Boolean.class)) {
+            return;
+        }
+        final var response = exchange.getMessage().getBody(RetrievedDocumentSet.class);
+        if (response == null || response.getStatus() != Status.SUCCESS || response.getDocuments().size() != 1) {
+            return;
+        }
+        final var key = exchange.getProperty(DOCUMENT_KEY_PROPERTY, DocumentCache.DocumentKey.class);
+        this.documentCache.put(key, response.getDocuments().getFirst());
+    }
 }
@@ -47,7 +47,7 @@ public class Iti119RouteBuilder extends MagRouteBuilder {
                 .log(LoggingLevel.INFO, log, "Received ITI-119 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
                 .doTry()
-                //.process(RequestHeadersForwarder.checkAuthorization(this.mpiProps.isChPdqmConstraints()))
+                    .process(this.requestHeadersForwarder.checkAuthorization(false))
                     .process(this.requestHeadersForwarder.forward())
                     .bean(Iti119RequestConverter.class, "convert")
                     .log(LoggingLevel.DEBUG, log, "Sending an ITI-47 request to " + xds47Endpoint)
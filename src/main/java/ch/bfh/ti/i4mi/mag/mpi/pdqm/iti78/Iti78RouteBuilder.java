@@ -61,7 +61,7 @@ public class Iti78RouteBuilder extends MagRouteBuilder {
                 .errorHandler(noErrorHandler())
                 .log(LoggingLevel.INFO, log, "Received ITI-78 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
-                //.process(RequestHeadersForwarder.checkAuthorization(this.mpiProps.isChPdqmConstraints()))
+                .process(this.requestHeadersForwarder.checkAuthorization(false))
                 .process(this.requestHeadersForwarder.forward())
                 .choice()
                     .when(header(Constants.FHIR_REQUEST_PARAMETERS).isNotNull())
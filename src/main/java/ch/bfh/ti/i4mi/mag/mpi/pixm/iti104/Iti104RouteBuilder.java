@@ -17,6 +17,7 @@
 package ch.bfh.ti.i4mi.mag.mpi.pixm.iti104;
 
 import ch.bfh.ti.i4mi.mag.common.MagRouteBuilder;
+import ch.bfh.ti.i4mi.mag.common.PatientIdInterceptor;
 import ch.bfh.ti.i4mi.mag.common.RequestHeadersForwarder;
 import ch.bfh.ti.i4mi.mag.common.TraceparentHandler;
 import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
@@ -69,7 +70,7 @@ class Iti104RouteBuilder extends MagRouteBuilder {
                 .errorHandler(noErrorHandler())
                 .log(LoggingLevel.INFO, log, "Received ITI-104 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
-                //.process(this.requestHeadersForwarder.checkAuthorization(this.mpiProps.isChPdqmConstraints()))
+                .process(this.requestHeadersForwarder.checkAuthorization(false))
                 .process(this.requestHeadersForwarder.forward())
                 .process(Utils.keepBody())
                 .bean(Iti104RequestConverter.class)
@@ -82,6 +83,7 @@ class Iti104RouteBuilder extends MagRouteBuilder {
                     .process(Utils.keptBodyToHeader())
                     .process(Utils.storePreferHeader())
                     .process(translateToFhir(this.response104Converter, byte[].class))
+                    .bean(PatientIdInterceptor.class, "interceptIti104Request")
                     .process(this.traceparentHandler.updateHeaderForFhir())
                     .choice()
                         .when(header("Prefer").isEqualToIgnoreCase("return=Representation"))
@@ -94,6 +96,7 @@ class Iti104RouteBuilder extends MagRouteBuilder {
                             .log(LoggingLevel.DEBUG, log, "Got a response")
                             .log(LoggingLevel.TRACE, log, "${body}")
                             .bean(Iti47ResponseToFhirConverter.class, "convertForIti104")
+                            .bean(PatientIdInterceptor.class, "interceptBundleOfPatients")
                             .process(this.traceparentHandler.updateHeaderForFhir())
                             .process(Iti104ResponseConverter.addPatientToOutcome())
                         .endChoice()
@@ -65,7 +65,7 @@ class Iti83RouteBuilder extends MagRouteBuilder {
                 .errorHandler(noErrorHandler())
                 .log(LoggingLevel.INFO, log, "Received ITI-83 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
-                //.process(this.requestHeadersForwarder.checkAuthorization(this.mpiProps.isChPixmConstraints()))
+                .process(this.requestHeadersForwarder.checkAuthorization(false))
                 .process(this.requestHeadersForwarder.forward())
                 .process(Utils.keepBody())
                 .bean(Iti83RequestConverter.class)
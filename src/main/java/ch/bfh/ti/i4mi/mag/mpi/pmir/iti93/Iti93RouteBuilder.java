@@ -62,7 +62,7 @@ class Iti93RouteBuilder extends MagRouteBuilder {
                 .errorHandler(noErrorHandler())
                 .log(LoggingLevel.INFO, log, "Received ITI-93 request")
                 .process(loggingRequestProcessor(LoggingLevel.TRACE, log))
-                //.process(this.requestHeadersForwarder.checkAuthorization(this.mpiProps.isChPixmConstraints()))
+                .process(this.requestHeadersForwarder.checkAuthorization(false))
                 .process(this.requestHeadersForwarder.forward())
                 .process(Utils.keepBody())
                 .bean(Iti93RequestConverter.class)
@@ -26,17 +26,22 @@ import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
 import org.springframework.stereotype.Component;
 
+import static ch.bfh.ti.i4mi.mag.sts.XuaAssertionCache.CACHED_ASSERTION_PROPERTY;
+
 @Component
 public class AssertionFromIdpTokenRouteBuilder extends MagRouteBuilder {
 
     private final StsUtils utils;
+    private final XuaAssertionCache xuaAssertionCache;
 
     public AssertionFromIdpTokenRouteBuilder(final MagProps magProps,
                                              final StsUtils utils,
+                                             final XuaAssertionCache xuaAssertionCache,
                                              final RequestHeadersForwarder requestHeadersForwarder,
                                              final TraceparentHandler traceparentHandler) {
         super(magProps, requestHeadersForwarder, traceparentHandler);
         this.utils = utils;
+        this.xuaAssertionCache = xuaAssertionCache;
     }
 
     @Override
@@ -58,9 +63,17 @@ public class AssertionFromIdpTokenRouteBuilder extends MagRouteBuilder {
                     .setProperty("oauthrequest").method(this.utils, "emptyAuthRequest")
                     .bean(this.utils, "buildAssertionRequestFromIdp")
                     .bean(this.utils, "keepIdpAssertion")
-                    .bean(Iti40RequestGenerator.class, "buildAssertion")
-                    .removeHeaders("*", "scope")
-                    .to("direct:sts")
+                    .setProperty(CACHED_ASSERTION_PROPERTY).method(this.xuaAssertionCache, "lookup")
+                    .choice()
+                        .when(exchangeProperty(CACHED_ASSERTION_PROPERTY).isNotNull())
+                            .setBody(exchangeProperty(CACHED_ASSERTION_PROPERTY))
+                            .removeHeaders("*", "scope")
+                        .otherwise()
+                            .bean(Iti40RequestGenerator.class, "buildAssertion")
+                            .removeHeaders("*", "scope")
+                            .to("direct:sts")
+                            .bean(this.xuaAssertionCache, "store")
+                    .end()
                     .bean(this.utils, "generateOAuth2TokenResponse")
                     .log(LoggingLevel.DEBUG, log, "Finished generating the IUA-STS response")
                     .process(loggingResponseProcessor(LoggingLevel.TRACE, log))
@@ -0,0 +1,18 @@
+package ch.bfh.ti.i4mi.mag.sts;
+
+import jakarta.annotation.Nullable;
+
+import java.time.Instant;
+
+/**
+ * The few values of a SAML assertion the MAG needs, read without unmarshalling the assertion: the expiration is used to
+ * cache the assertion, the subject and issuer to log which assertion is cached.
+ *
+ * @param notOnOrAfter The Conditions/@NotOnOrAfter attribute, if any.
+ * @param subject      The Subject/NameID value, if any.
+ * @param issuer       The Issuer value, if any.
+ **/
+public record AssertionSummary(@Nullable Instant notOnOrAfter,
+                               @Nullable String subject,
+                               @Nullable String issuer) {
+}
@@ -1,28 +1,26 @@
 package ch.bfh.ti.i4mi.mag.sts;
 
 import ch.bfh.ti.i4mi.mag.common.XmlUtils;
+import jakarta.annotation.Nullable;
 import jakarta.xml.soap.SOAPBody;
 import jakarta.xml.soap.SOAPException;
 import jakarta.xml.soap.SOAPMessage;
-import net.shibboleth.shared.xml.XMLParserException;
-import net.shibboleth.shared.xml.impl.BasicParserPool;
 import org.apache.camel.Body;
 import org.apache.camel.ExchangeProperty;
 import org.apache.camel.Header;
 import org.apache.cxf.staxutils.StaxUtils;
-import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
-import org.opensaml.core.xml.io.Unmarshaller;
-import org.opensaml.core.xml.io.UnmarshallingException;
-import org.opensaml.saml.saml2.core.Assertion;
 import org.springframework.stereotype.Component;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import java.io.ByteArrayInputStream;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.OffsetDateTime;
 import java.util.Base64;
 
 import static org.opensaml.saml.common.xml.SAMLConstants.SAML20_NS;
@@ -38,28 +36,10 @@ public class StsUtils {
     public static final String ORGANIZATION_ID = "group_id=";
     public static final String ORGANIZATION_NAME = "group=";
 
-    /**
-     * The unmarshaller of Assertion elements.
-     */
-    private final Unmarshaller assertionUnmarshaller;
-
-    /**
-     * The SAML parser pool.
-     */
-    private final BasicParserPool samlParserPool;
-
-    public StsUtils() {
-        this.assertionUnmarshaller = XMLObjectProviderRegistrySupport
-                .getUnmarshallerFactory()
-                .getUnmarshaller(Assertion.DEFAULT_ELEMENT_NAME);
-        this.samlParserPool = new BasicParserPool();
-        this.samlParserPool.setNamespaceAware(true);
-    }
-
     public OAuth2TokenResponse generateOAuth2TokenResponse(final @ExchangeProperty("oauthrequest") AuthenticationRequest authRequest,
                                                            final @Body String assertion,
                                                            final @Header("scope") String scope)
-            throws XMLParserException, UnmarshallingException {
+            throws XMLStreamException {
 
         final String encoded = Base64.getEncoder().encodeToString(assertion.getBytes(StandardCharsets.UTF_8));
         final String idpAssertion = authRequest.getIdpAssertion();
@@ -79,21 +59,97 @@ public class StsUtils {
      *
      * @param assertionXml The XML representation of the Assertion.
      * @return a duration in seconds.
-     * @throws XMLParserException     if the Assertion cannot be parsed.
-     * @throws UnmarshallingException if the Assertion cannot be unmarshalled.
+     * @throws XMLStreamException if the Assertion cannot be parsed.
      */
-    private long computeExpiresInFromNotOnOrAfter(final String assertionXml)
-            throws XMLParserException, UnmarshallingException {
-        // Parse the assertion and extract the NotOnOrAfter attribute
-        final Element element = this.samlParserPool
-                .parse(new ByteArrayInputStream(assertionXml.getBytes(StandardCharsets.UTF_8)))
-                .getDocumentElement();
-        final Assertion assertion = (Assertion) this.assertionUnmarshaller.unmarshall(element);
-
-        final Instant notOnOrAfter = assertion.getConditions().getNotOnOrAfter();
+    private long computeExpiresInFromNotOnOrAfter(final String assertionXml) throws XMLStreamException {
+        final Instant notOnOrAfter = this.extractNotOnOrAfter(assertionXml);
+        if (notOnOrAfter == null) {
+            throw new XMLStreamException("The assertion has no NotOnOrAfter condition");
+        }
         return Duration.between(Instant.now(), notOnOrAfter).getSeconds();
     }
 
+    /**
+     * Extracts the Assertion's Conditions/@NotOnOrAfter attribute.
+     *
+     * @param assertionXml The XML representation of the Assertion.
+     * @return the instant at which the Assertion expires, or {@code null} if it has no NotOnOrAfter condition.
+     * @throws XMLStreamException if the Assertion cannot be parsed.
+     */
+    public @Nullable Instant extractNotOnOrAfter(final String assertionXml) throws XMLStreamException {
+        return this.summarize(assertionXml).notOnOrAfter();
+    }
+
+    /**
+     * Reads the expiration, subject and issuer of the first Assertion in an XML document (e.g. an Assertion or a
+     * whole STS response), in a single streaming pass. The document is read until the end of the Assertion, without
+     * building a DOM or unmarshalling the Assertion.
+     * <p>
+     * Only the children of the Assertion are considered, not those of the assertions it may embed (e.g. in its
+     * Advice).
+     * </p>
+     *
+     * @param xml The XML document.
+     * @return the summary of the Assertion.
+     * @throws XMLStreamException if the document cannot be parsed or contains no Assertion.
+     */
+    public AssertionSummary summarize(final String xml) throws XMLStreamException {
+        final XMLStreamReader reader = XmlUtils.newSafeXmlStreamReader(new StringReader(xml));
+        try {
+            // Skip to the Assertion
+            while (!isSamlStartElement(reader, "Assertion")) {
+                if (!reader.hasNext()) {
+                    throw new XMLStreamException("No Assertion found");
+                }
+                reader.next();
+            }
+
+            Instant notOnOrAfter = null;
+            String subject = null;
+            String issuer = null;
+            // The depth relative to the Assertion element
+            int depth = 0;
+            boolean inSubject = false;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 0) {
+                        break;
+                    }
+                    if (depth == 1) {
+                        inSubject = false;
+                    }
+                    --depth;
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    ++depth;
+                    if (depth == 1 && isSamlStartElement(reader, "Issuer")) {
+                        issuer = reader.getElementText().trim();
+                        --depth;
+                    } else if (depth == 1 && isSamlStartElement(reader, "Subject")) {
+                        inSubject = true;
+                    } else if (depth == 2 && inSubject && isSamlStartElement(reader, "NameID")) {
+                        subject = reader.getElementText().trim();
+                        --depth;
+                    } else if (depth == 1 && isSamlStartElement(reader, "Conditions")) {
+                        final String value = reader.getAttributeValue(null, "NotOnOrAfter");
+                        if (value != null) {
+                            notOnOrAfter = OffsetDateTime.parse(value.trim()).toInstant();
+                        }
+                    }
+                }
+            }
+            return new AssertionSummary(notOnOrAfter, subject, issuer);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isSamlStartElement(final XMLStreamReader reader, final String localName) {
+        return reader.isStartElement()
+                && localName.equals(reader.getLocalName())
+                && SAML20_NS.equals(reader.getNamespaceURI());
+    }
+
     public ErrorResponse handleError(final @Body AuthException in) {
         final var response = new ErrorResponse();
         response.setError(in.getError());
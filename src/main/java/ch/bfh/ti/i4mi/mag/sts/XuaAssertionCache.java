@@ -0,0 +1,128 @@
+package ch.bfh.ti.i4mi.mag.sts;
+
+import ch.bfh.ti.i4mi.mag.common.ExpiringCache;
+import ch.bfh.ti.i4mi.mag.common.JavaUtils;
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.Nullable;
+import org.apache.camel.Body;
+import org.apache.camel.ExchangeProperty;
+import org.apache.camel.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * A cache of the XUA assertions issued by the STS for the IUA-STS route (/assertion).
+ * <p>
+ * Clients often exchange the same IdP assertion with the same scope several times in a row (e.g. when a mobile app
+ * resumes). The issued XUA assertion is cached under a digest of the IdP assertion and the normalized scope, until its
+ * NotOnOrAfter condition minus a safety margin.
+ * </p>
+ * <p>
+ * A cache hit skips the STS, which would otherwise reject an expired IdP assertion. The expiration of an entry is thus
+ * capped at the NotOnOrAfter condition of the IdP assertion too, and the XUA assertion is not cached if the IdP
+ * assertion has no such condition.
+ * </p>
+ **/
+@Component
+public class XuaAssertionCache implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(XuaAssertionCache.class);
+
+    /**
+     * The exchange property containing the cached XUA assertion, if any.
+     */
+    public static final String CACHED_ASSERTION_PROPERTY = "CachedXuaAssertion";
+
+    // Keys are the digests of the IdP assertions and scopes, values are the cached XUA assertions.
+    private final ExpiringCache<String, String> assertions;
+    private final StsUtils stsUtils;
+    private final long expiryMarginMillis;
+
+    public XuaAssertionCache(final MagAuthProps authProps,
+                             final StsUtils stsUtils) {
+        this(authProps.getAssertionCache(), stsUtils, Clock.systemUTC());
+    }
+
+    XuaAssertionCache(final MagAuthProps.MagAuthAssertionCacheProps cacheProps,
+                      final StsUtils stsUtils,
+                      final Clock clock) {
+        this.stsUtils = stsUtils;
+        this.assertions = new ExpiringCache<>(cacheProps.getMaxSize(), clock);
+        this.expiryMarginMillis = cacheProps.getExpiryMargin().toMillis();
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        this.assertions.bindTo(registry, "xua-assertion");
+    }
+
+    /**
+     * Returns the cached XUA assertion issued for the same IdP assertion and scope, or {@code null}.
+     */
+    public @Nullable String lookup(final @ExchangeProperty("oauthrequest") AuthenticationRequest authRequest,
+                                   final @Header("scope") String scope) {
+        if (!this.assertions.isEnabled()) {
+            return null;
+        }
+        final var cached = this.assertions.get(cacheKey(authRequest.getIdpAssertion(), scope));
+        if (cached != null) {
+            log.debug("Using a cached XUA assertion");
+        }
+        return cached;
+    }
+
+    /**
+     * Caches the XUA assertion issued by the STS for the IdP assertion and scope, until the earliest NotOnOrAfter
+     * condition of both assertions.
+     */
+    public void store(final @ExchangeProperty("oauthrequest") AuthenticationRequest authRequest,
+                      final @Header("scope") String scope,
+                      final @Body String assertion) {
+        if (!this.assertions.isEnabled()) {
+            return;
+        }
+        final AssertionSummary xua;
+        final AssertionSummary idp;
+        try {
+            xua = this.stsUtils.summarize(assertion);
+            idp = this.stsUtils.summarize(authRequest.getIdpAssertion());
+        } catch (final Exception e) {
+            log.debug("Unable to read the NotOnOrAfter conditions of the assertions, the XUA assertion is not cached",
+                      e);
+            return;
+        }
+        if (xua.notOnOrAfter() == null || idp.notOnOrAfter() == null) {
+            log.debug("The XUA assertion of {} issued by {}, or the IdP assertion issued by {}, has no NotOnOrAfter "
+                              + "condition, it is not cached", xua.subject(), xua.issuer(), idp.issuer());
+            return;
+        }
+        final Instant notOnOrAfter = xua.notOnOrAfter().isBefore(idp.notOnOrAfter())
+                ? xua.notOnOrAfter()
+                : idp.notOnOrAfter();
+        log.debug("Caching the XUA assertion of {} issued by {} until {}", xua.subject(), xua.issuer(), notOnOrAfter);
+        this.put(cacheKey(authRequest.getIdpAssertion(), scope), assertion, notOnOrAfter);
+    }
+
+    void put(final String key, final String assertion, final Instant notOnOrAfter) {
+        this.assertions.put(key, assertion, notOnOrAfter.toEpochMilli() - this.expiryMarginMillis);
+    }
+
+    /**
+     * Computes the cache key: the SHA-256 digest of the IdP assertion and of the scope. The scope is normalized: its
+     * parts are sorted and separated by a single space, so that their order doesn't matter.
+     */
+    static String cacheKey(final String idpAssertion, final String scope) {
+        final String normalizedScope = Arrays.stream(scope.trim().split("\\s+"))
+                .filter(part -> !part.isEmpty())
+                .sorted()
+                .collect(Collectors.joining(" "));
+        return JavaUtils.sha256(idpAssertion + '\u0000' + normalizedScope);
+    }
+}
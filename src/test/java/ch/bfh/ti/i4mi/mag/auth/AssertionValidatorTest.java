@@ -0,0 +1,141 @@
+package ch.bfh.ti.i4mi.mag.auth;
+
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import ch.bfh.ti.i4mi.mag.config.props.StoreProps;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.config.InitializationService;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link AssertionValidator}.
+ * <p>
+ * The assertion fixtures are valid from 2026-01-01T10:00:00Z to 2026-01-01T10:05:00Z, and issued by
+ * {@code https://idp.example.com}. The trusted one is signed by the certificate of the test truststore.
+ * </p>
+ **/
+class AssertionValidatorTest {
+    private static final Instant VALID_INSTANT = Instant.parse("2026-01-01T10:02:00Z");
+
+    private static String signedAssertion;
+    private static String untrustedAssertion;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        InitializationService.initialize();
+        signedAssertion = fixture("signed-assertion.xml");
+        untrustedAssertion = fixture("untrusted-assertion.xml");
+    }
+
+    @Test
+    void testValidAssertionCached() throws Exception {
+        final var validator = validator(props(), VALID_INSTANT);
+        final var registry = new SimpleMeterRegistry();
+        validator.bindTo(registry);
+
+        validator.validate(signedAssertion);
+        validator.validate(signedAssertion);
+        assertEquals(1, registry.get("mag.cache.hits").tag("cache", "verified-assertion").functionCounter().count());
+        assertEquals(1, registry.get("mag.cache.size").tag("cache", "verified-assertion").gauge().value());
+    }
+
+    @Test
+    void testUnsignedAssertionRejected() throws Exception {
+        final var validator = validator(props(), VALID_INSTANT);
+        final String unsigned = signedAssertion.replaceAll("(?s)<ds:Signature .*</ds:Signature>", "");
+
+        assertRejected(validator, unsigned, "The assertion is not signed");
+    }
+
+    @Test
+    void testUntrustedCertificateRejected() throws Exception {
+        final var validator = validator(props(), VALID_INSTANT);
+
+        assertRejected(validator, untrustedAssertion, "The assertion is not signed by a trusted certificate");
+    }
+
+    @Test
+    void testTamperedAssertionRejected() throws Exception {
+        final var validator = validator(props(), VALID_INSTANT);
+        final String tampered = signedAssertion.replace(">7601000000000<", ">7601000000001<");
+        assertNotEquals(signedAssertion, tampered);
+
+        assertRejected(validator, tampered, "The assertion is not signed by a trusted certificate");
+        // The original assertion is still valid
+        validator.validate(signedAssertion);
+    }
+
+    @Test
+    void testUntrustedIssuerRejected() throws Exception {
+        final var props = props();
+        props.setTrustedIssuers(List.of("https://other-idp.example.com"));
+        assertRejected(validator(props, VALID_INSTANT), signedAssertion, "The assertion issuer is not trusted");
+
+        props.setTrustedIssuers(List.of("https://other-idp.example.com", "https://idp.example.com"));
+        validator(props, VALID_INSTANT).validate(signedAssertion);
+    }
+
+    @Test
+    void testValidityPeriodWithClockSkew() throws Exception {
+        final var props = props();
+        props.setClockSkew(Duration.ofMinutes(1));
+
+        validator(props, Instant.parse("2026-01-01T09:59:30Z")).validate(signedAssertion);
+        validator(props, Instant.parse("2026-01-01T10:05:30Z")).validate(signedAssertion);
+        assertRejected(validator(props, Instant.parse("2026-01-01T09:58:30Z")), signedAssertion,
+                       "The assertion is not valid yet");
+        assertRejected(validator(props, Instant.parse("2026-01-01T10:06:30Z")), signedAssertion,
+                       "The assertion has expired");
+    }
+
+    @Test
+    void testValidityPeriodWithoutClockSkew() throws Exception {
+        final var props = props();
+        props.setClockSkew(Duration.ZERO);
+
+        validator(props, Instant.parse("2026-01-01T10:00:00Z")).validate(signedAssertion);
+        assertRejected(validator(props, Instant.parse("2026-01-01T09:59:30Z")), signedAssertion,
+                       "The assertion is not valid yet");
+        assertRejected(validator(props, Instant.parse("2026-01-01T10:05:00Z")), signedAssertion,
+                       "The assertion has expired");
+    }
+
+    private static void assertRejected(final AssertionValidator validator,
+                                       final String assertion,
+                                       final String message) {
+        final var exception = assertThrows(AuthenticationException.class, () -> validator.validate(assertion));
+        assertEquals(message, exception.getMessage());
+    }
+
+    private static AssertionValidator validator(final MagAuthProps.MagAuthValidationProps props,
+                                                final Instant instant) throws Exception {
+        return new AssertionValidator(props, Clock.fixed(instant, ZoneOffset.UTC));
+    }
+
+    private static MagAuthProps.MagAuthValidationProps props() {
+        final var truststore = new StoreProps();
+        truststore.setPath("classpath:assertion-validator/truststore.p12");
+        truststore.setPassword("a1b2c3");
+        final var props = new MagAuthProps.MagAuthValidationProps();
+        props.setEnabled(true);
+        props.setTruststore(truststore);
+        return props;
+    }
+
+    private static String fixture(final String name) throws Exception {
+        try (final InputStream in = AssertionValidatorTest.class.getResourceAsStream("/assertion-validator/" + name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ch.bfh.ti.i4mi.mag.auth;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import jakarta.xml.soap.MessageFactory;
+import jakarta.xml.soap.MimeHeaders;
+import jakarta.xml.soap.SOAPConstants;
+import jakarta.xml.soap.SOAPMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the creation of an ITI-40 request from the parsed prototype of {@link StsService} with the previous code
+ * path, which created a message factory and parsed the template from the classpath for each request. The parts
+ * added to the request afterwards are the same in both cases, and are left out.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StsServiceBenchmark {
+    private static final String WSA = "http://www.w3.org/2005/08/addressing";
+    private static final String STS_ISSUER = "urn:e-health-suisse:sts";
+
+    private StsService stsService;
+
+    @Setup
+    public void setUp() throws Exception {
+        final var authProps = new MagAuthProps();
+        authProps.setSts("https://sts.example.com/sts");
+        authProps.setStsIssuer(STS_ISSUER);
+        this.stsService = new StsService(authProps);
+    }
+
+    @Benchmark
+    public SOAPMessage prototypeCopy() throws Exception {
+        return this.stsService.initSoapMessage();
+    }
+
+    @Benchmark
+    public SOAPMessage templateParse() throws Exception {
+        final MessageFactory factory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
+        final SOAPMessage soapMessage;
+        try (final var is = new ClassPathResource("iti40_template.xml").getInputStream()) {
+            soapMessage = factory.createMessage(new MimeHeaders(), is);
+            // The message is parsed lazily, the stream must still be open
+            soapMessage.getSOAPBody().getElementsByTagNameNS(WSA, "Address").item(0).setTextContent(STS_ISSUER);
+        }
+        return soapMessage;
+    }
+}
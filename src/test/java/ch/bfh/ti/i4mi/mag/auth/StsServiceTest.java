@@ -0,0 +1,108 @@
+package ch.bfh.ti.i4mi.mag.auth;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import jakarta.xml.soap.SOAPMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML20_NS;
+
+/**
+ * Tests for {@link StsService}.
+ **/
+class StsServiceTest {
+    private static final String WSA = "http://www.w3.org/2005/08/addressing";
+    private static final String WST = "http://docs.oasis-open.org/ws-sx/ws-trust/200512";
+    private static final String WSSE = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
+    private static final String IDP_ASSERTION = """
+            <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_idp" Version="2.0">
+                <saml2:Issuer>https://idp.example.com</saml2:Issuer>
+            </saml2:Assertion>""";
+
+    private StsService stsService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final var authProps = new MagAuthProps();
+        authProps.setSts("https://sts.example.com/sts");
+        authProps.setStsIssuer("urn:e-health-suisse:sts");
+        this.stsService = new StsService(authProps);
+    }
+
+    @Test
+    void testRequestFilledIn() throws Exception {
+        final SOAPMessage request = this.stsService.createRequest("761337610000000001", PurposeOfUse.NORM, Role.HCP,
+                                                                  "Dr. House", "7601000000001", IDP_ASSERTION);
+
+        final var header = request.getSOAPHeader();
+        assertEquals("http://docs.oasis-open.org/ws-sx/ws-trust/200512/RST/Issue",
+                     header.getElementsByTagNameNS(WSA, "Action").item(0).getTextContent());
+        assertEquals(1, header.getElementsByTagNameNS(WSA, "MessageID").getLength());
+        assertEquals("https://sts.example.com/sts", header.getElementsByTagNameNS(WSA, "To").item(0).getTextContent());
+        final var security = (Element) header.getElementsByTagNameNS(WSSE, "Security").item(0);
+        assertEquals("_idp", ((Element) security.getElementsByTagNameNS(SAML20_NS, "Assertion").item(0))
+                .getAttribute("ID"));
+
+        final var body = request.getSOAPBody();
+        assertEquals("urn:e-health-suisse:sts",
+                     body.getElementsByTagNameNS(WSA, "Address").item(0).getTextContent());
+        final var claims = (Element) body.getElementsByTagNameNS(WST, "Claims").item(0);
+        final NodeList attributes = claims.getElementsByTagNameNS(SAML20_NS, "Attribute");
+        assertEquals(5, attributes.getLength());
+        assertEquals("761337610000000001^^^&2.16.756.5.30.1.127.3.10.3&ISO",
+                     attributeValue(claims, "urn:oasis:names:tc:xacml:2.0:resource:resource-id"));
+        assertEquals("Dr. House", attributeValue(claims, "urn:e-health-suisse:principal-name"));
+        assertEquals("7601000000001", attributeValue(claims, "urn:e-health-suisse:principal-id"));
+        assertEquals("NORM", ((Element) claims.getElementsByTagNameNS("urn:hl7-org:v3", "PurposeOfUse").item(0))
+                .getAttribute("code"));
+        assertEquals("HCP", ((Element) claims.getElementsByTagNameNS("urn:hl7-org:v3", "Role").item(0))
+                .getAttribute("code"));
+    }
+
+    @Test
+    void testConcurrentRequestsDoNotShareState() throws Exception {
+        final List<Future<SOAPMessage>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (int i = 0; i < 200; ++i) {
+                final String eprSpid = "7613376100000%05d".formatted(i);
+                futures.add(executor.submit(() -> this.stsService.createRequest(
+                        eprSpid, PurposeOfUse.AUTO, Role.TCU, "TCU", "7601000000002", IDP_ASSERTION)));
+            }
+        }
+
+        final var messageIds = new ArrayList<String>();
+        for (int i = 0; i < futures.size(); ++i) {
+            final SOAPMessage request = futures.get(i).get();
+            final var header = request.getSOAPHeader();
+            assertEquals(1, header.getElementsByTagNameNS(WSA, "MessageID").getLength());
+            assertEquals(1, header.getElementsByTagNameNS(WSSE, "Security").getLength());
+            messageIds.add(header.getElementsByTagNameNS(WSA, "MessageID").item(0).getTextContent());
+
+            final var claims = (Element) request.getSOAPBody().getElementsByTagNameNS(WST, "Claims").item(0);
+            assertEquals(5, claims.getElementsByTagNameNS(SAML20_NS, "Attribute").getLength());
+            assertEquals("7613376100000%05d^^^&2.16.756.5.30.1.127.3.10.3&ISO".formatted(i),
+                         attributeValue(claims, "urn:oasis:names:tc:xacml:2.0:resource:resource-id"));
+        }
+        assertEquals(futures.size(), messageIds.stream().distinct().count());
+    }
+
+    private static String attributeValue(final Element claims, final String name) {
+        final NodeList attributes = claims.getElementsByTagNameNS(SAML20_NS, "Attribute");
+        for (int i = 0; i < attributes.getLength(); ++i) {
+            final var attribute = (Element) attributes.item(i);
+            if (name.equals(attribute.getAttribute("Name"))) {
+                return attribute.getElementsByTagNameNS(SAML20_NS, "AttributeValue").item(0).getTextContent();
+            }
+        }
+        return fail("No attribute " + name);
+    }
+}
@@ -0,0 +1,128 @@
+package ch.bfh.ti.i4mi.mag.auth;
+
+import ch.bfh.ti.i4mi.mag.common.MutableClock;
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.core.config.InitializationService;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link TcuAssertionGenerator}.
+ **/
+class TcuAssertionGeneratorTest {
+    private static final String PASSWORD = "a1b2c3";
+    private static final String ALIAS = "gateway";
+    private static final Pattern CERTIFICATE = Pattern.compile("X509Certificate>([^<]+)<");
+
+    private final MutableClock clock = new MutableClock();
+    private final MagAuthProps.MagAuthTcuProps tcuProps = new MagAuthProps.MagAuthTcuProps();
+
+    @TempDir
+    Path directory;
+    private Path keystore;
+
+    @BeforeAll
+    static void initOpenSaml() throws Exception {
+        InitializationService.initialize();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.keystore = this.directory.resolve("tcu.jks");
+        try (final InputStream in = TcuAssertionGeneratorTest.class.getResourceAsStream("/keystore.jks")) {
+            Files.copy(in, this.keystore);
+        }
+        this.tcuProps.setOid("2.16.756.5.30.999999.1.1");
+        this.tcuProps.setKeystorePath(this.keystore.toUri().toString());
+        this.tcuProps.setKeystorePassword(PASSWORD);
+        this.tcuProps.setKeystoreAlias(ALIAS);
+    }
+
+    @Test
+    void testAssertionReusedUntilOneMinuteBeforeExpiry() throws Exception {
+        final var generator = new TcuAssertionGenerator(this.tcuProps, this.clock);
+        final String first = generator.currentAssertion();
+
+        this.clock.advance(Duration.ofMinutes(8).plusSeconds(59));
+        assertSame(first, generator.currentAssertion());
+
+        this.clock.advance(Duration.ofSeconds(2));
+        final String second = generator.currentAssertion();
+        assertNotEquals(first, second);
+        assertSame(second, generator.currentAssertion());
+    }
+
+    @Test
+    void testNoReuseWhenDisabled() throws Exception {
+        this.tcuProps.setReuseAssertion(false);
+        final var generator = new TcuAssertionGenerator(this.tcuProps, this.clock);
+
+        assertNotEquals(generator.currentAssertion(), generator.currentAssertion());
+    }
+
+    @Test
+    void testGenerateNewAlwaysSigns() throws Exception {
+        final var generator = new TcuAssertionGenerator(this.tcuProps, this.clock);
+        final String current = generator.currentAssertion();
+
+        assertNotEquals(current, generator.generateNew());
+        assertSame(current, generator.currentAssertion());
+    }
+
+    @Test
+    void testKeystoreReloadedWhenModified() throws Exception {
+        this.tcuProps.setReuseAssertion(false);
+        final var generator = new TcuAssertionGenerator(this.tcuProps, this.clock);
+        assertEquals(this.certificate("/keystore.jks", "JKS", ALIAS), signingCertificate(generator.generateNew()));
+
+        // Replace the key pair with another one under the same alias
+        final var replacement = KeyStore.getInstance("PKCS12");
+        replacement.load(null, null);
+        replacement.setEntry(ALIAS, this.privateKeyEntry("/example-server-certificate.p12", "PKCS12", "server"),
+                             new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+        final var lastModified = Files.getLastModifiedTime(this.keystore).toMillis();
+        try (final OutputStream out = Files.newOutputStream(this.keystore)) {
+            replacement.store(out, PASSWORD.toCharArray());
+        }
+        assertTrue(this.keystore.toFile().setLastModified(lastModified + 10_000));
+
+        assertEquals(this.certificate("/example-server-certificate.p12", "PKCS12", "server"),
+                     signingCertificate(generator.generateNew()));
+    }
+
+    private String certificate(final String resource, final String type, final String alias) throws Exception {
+        final Certificate certificate = this.privateKeyEntry(resource, type, alias).getCertificate();
+        return Base64.getEncoder().encodeToString(certificate.getEncoded());
+    }
+
+    private KeyStore.PrivateKeyEntry privateKeyEntry(final String resource,
+                                                     final String type,
+                                                     final String alias) throws Exception {
+        final var keyStore = KeyStore.getInstance(type);
+        try (final InputStream in = TcuAssertionGeneratorTest.class.getResourceAsStream(resource)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        return (KeyStore.PrivateKeyEntry) keyStore.getEntry(alias,
+                                                             new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+    }
+
+    private static String signingCertificate(final String assertion) {
+        final var matcher = CERTIFICATE.matcher(assertion);
+        assertTrue(matcher.find());
+        return matcher.group(1).replaceAll("\\s", "");
+    }
+}
@@ -0,0 +1,118 @@
+package ch.bfh.ti.i4mi.mag.auth;
+
+import ch.bfh.ti.i4mi.mag.common.MutableClock;
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import ch.bfh.ti.i4mi.mag.sts.StsUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link TcuXuaService}.
+ **/
+class TcuXuaServiceTest {
+    private static final String EPR_SPID = "761337610000000000";
+
+    private final MutableClock clock = new MutableClock();
+    private final StsService stsService = mock(StsService.class);
+    private final TcuAssertionGenerator tcuAssertionGenerator = mock(TcuAssertionGenerator.class);
+    private final AtomicInteger issued = new AtomicInteger();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private TcuXuaService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final var authProps = new MagAuthProps();
+        authProps.setTcu(new MagAuthProps.MagAuthTcuProps());
+        authProps.getTcu().setPrincipalName("Principal");
+        authProps.getTcu().setPrincipalGln("7601000000000");
+        authProps.getTcu().setXuaExpiryMargin(Duration.ofSeconds(30));
+        authProps.getTcu().setFetchWaitTimeout(Duration.ofSeconds(5));
+        when(this.tcuAssertionGenerator.currentAssertion()).thenReturn("<tcu/>");
+        this.service = new TcuXuaService(authProps, this.stsService, new StsUtils(), this.tcuAssertionGenerator,
+                                         this.clock);
+        this.service.bindTo(this.registry);
+    }
+
+    @Test
+    void testTokenCachedUntilNotOnOrAfter() throws Exception {
+        when(this.stsService.requestXua(eq(EPR_SPID), any(), any(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> this.xua(this.clock.instant().plus(Duration.ofMinutes(5))));
+
+        final String first = this.service.getXuaToken(EPR_SPID);
+        this.clock.advance(Duration.ofMinutes(4));
+        assertEquals(first, this.service.getXuaToken(EPR_SPID));
+        verify(this.stsService, times(1)).requestXua(any(), any(), any(), any(), any(), any());
+
+        // Within the safety margin of the NotOnOrAfter condition, a new token is fetched
+        this.clock.advance(Duration.ofSeconds(31));
+        final String second = this.service.getXuaToken(EPR_SPID);
+        assertNotEquals(first, second);
+        verify(this.stsService, times(2)).requestXua(any(), any(), any(), any(), any(), any());
+        assertEquals(1, this.registry.get("mag.cache.hits").tag("cache", "tcu-xua").functionCounter().count());
+    }
+
+    @Test
+    void testTokenWithinMarginNotCached() throws Exception {
+        when(this.stsService.requestXua(eq(EPR_SPID), any(), any(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> this.xua(this.clock.instant().plus(Duration.ofSeconds(10))));
+
+        this.service.getXuaToken(EPR_SPID);
+        this.service.getXuaToken(EPR_SPID);
+        verify(this.stsService, times(2)).requestXua(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void testConcurrentFetchesAreCoalesced() throws Exception {
+        final var fetchStarted = new CountDownLatch(1);
+        final var releaseFetch = new CountDownLatch(1);
+        when(this.stsService.requestXua(eq(EPR_SPID), any(), any(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    fetchStarted.countDown();
+                    releaseFetch.await();
+                    return this.xua(this.clock.instant().plus(Duration.ofMinutes(5)));
+                });
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            final Future<String> leader = executor.submit(() -> this.service.getXuaToken(EPR_SPID));
+            fetchStarted.await();
+            final Future<String> follower = executor.submit(() -> this.service.getXuaToken(EPR_SPID));
+            while (this.registry.get("mag.singleflight.coalesced").tag("operation", "tcu-xua-fetch")
+                    .functionCounter().count() < 1) {
+                Thread.onSpinWait();
+            }
+            releaseFetch.countDown();
+
+            assertEquals(leader.get(), follower.get());
+        }
+        verify(this.stsService, times(1)).requestXua(any(), any(), any(), any(), any(), any());
+    }
+
+    /**
+     * Returns a distinct XUA assertion with the given NotOnOrAfter condition.
+     */
+    private String xua(final Instant notOnOrAfter) {
+        return """
+                <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_%d" Version="2.0">
+                    <saml2:Issuer>https://sts.example.com</saml2:Issuer>
+                    <saml2:Conditions NotOnOrAfter="%s"/>
+                </saml2:Assertion>""".formatted(this.issued.incrementAndGet(), notOnOrAfter);
+    }
+}
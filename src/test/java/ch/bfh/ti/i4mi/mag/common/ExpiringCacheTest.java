@@ -0,0 +1,67 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ExpiringCache}.
+ **/
+class ExpiringCacheTest {
+
+    @Test
+    void testPerEntryExpiration() {
+        final var clock = new MutableClock();
+        final var cache = new ExpiringCache<String, String>(10, clock);
+        cache.put("short", "1", clock.millis() + 1_000);
+        cache.put("long", "2", clock.millis() + 60_000);
+        cache.put("expired", "3", clock.millis());
+
+        assertEquals("1", cache.get("short"));
+        assertNull(cache.get("expired"));
+
+        clock.advance(Duration.ofSeconds(1));
+        assertNull(cache.get("short"));
+        assertEquals("2", cache.get("long"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testMaxSize() {
+        final var clock = new MutableClock();
+        final var cache = new ExpiringCache<String, String>(2, clock);
+        cache.put("a", "1", clock.millis() + 1_000);
+        cache.put("b", "2", clock.millis() + 60_000);
+        cache.put("c", "3", clock.millis() + 60_000);
+        assertNull(cache.get("c"));
+
+        // Once an entry has expired, there is room again
+        clock.advance(Duration.ofSeconds(1));
+        cache.put("c", "3", clock.millis() + 60_000);
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testRemove() {
+        final var clock = new MutableClock();
+        final var cache = new ExpiringCache<String, String>(10, clock);
+        final String value = "1";
+        cache.put("a", value, clock.millis() + 1_000);
+        cache.put("b", "2", clock.millis() + 1_000);
+        cache.put("c", "3", clock.millis() + 1_000);
+
+        // Only the entry that still holds the value is removed
+        assertFalse(cache.remove("a", "other"));
+        assertTrue(cache.remove("a", value));
+        assertNull(cache.get("a"));
+
+        assertEquals(1, cache.removeIf("3"::equals));
+        assertNull(cache.get("c"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(0, cache.getEvictionCount());
+    }
+}
@@ -0,0 +1,33 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A {@link Clock} that only moves forward when told to, for testing time-based expiration.
+ **/
+public class MutableClock extends Clock {
+    private Instant instant = Instant.now();
+
+    public void advance(final Duration duration) {
+        this.instant = this.instant.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone) {
+        return this;
+    }
+
+    @Override
+    public Instant instant() {
+        return this.instant;
+    }
+}
@@ -0,0 +1,102 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link PatientIdCacheStore}.
+ **/
+class PatientIdCacheStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReplay() throws Exception {
+        final var clock = new MutableClock();
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10, clock);
+        try (final var store = new PatientIdCacheStore(this.directory)) {
+            store.append(cache.put("xad1", "spid1"));
+            clock.advance(Duration.ofMinutes(2));
+            store.append(cache.put("xad2", "spid2"));
+            store.append(cache.put("xad2", "spid3"));
+        }
+
+        // After a restart, 4 minutes later: the first mapping has expired
+        clock.advance(Duration.ofMinutes(4));
+        final var restartedCache = new PatientIdCache(Duration.ofMinutes(5), 10, clock);
+        try (final var store = new PatientIdCacheStore(this.directory)) {
+            assertEquals(2, store.replay(restartedCache));
+        }
+        assertNull(restartedCache.getEprSpid("xad1"));
+        assertEquals("spid3", restartedCache.getEprSpid("xad2"));
+        assertNull(restartedCache.getXadPid("spid2"));
+        assertEquals(1, restartedCache.size());
+    }
+
+    @Test
+    void testCompaction() throws Exception {
+        final var logFile = this.directory.resolve(PatientIdCacheStore.LOG_FILE_NAME);
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10);
+        try (final var store = new PatientIdCacheStore(this.directory)) {
+            store.append(cache.put("xad1", "spid1"));
+            store.append(cache.put("xad1", "spid2"));
+            store.append(cache.put("xad3", "spid3"));
+            // The mappings are only written by the flush
+            assertEquals(0, Files.readAllLines(logFile).size());
+            store.flush();
+            assertEquals(3, Files.readAllLines(logFile).size());
+
+            store.compact(cache::snapshot);
+            assertEquals(2, Files.readAllLines(logFile).size());
+
+            // The log is still appendable after the compaction
+            store.append(cache.put("xad4", "spid4"));
+            store.flush();
+            assertEquals(3, Files.readAllLines(logFile).size());
+        }
+    }
+
+    @Test
+    void testMalformedLinesAreSkipped() throws Exception {
+        Files.writeString(this.directory.resolve(PatientIdCacheStore.LOG_FILE_NAME),
+                          "not a mapping\nabc\txad1\tspid1\n" + Long.MAX_VALUE + "\txad2\tspid2\n");
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10);
+        try (final var store = new PatientIdCacheStore(this.directory)) {
+            assertEquals(1, store.replay(cache));
+        }
+        assertEquals("spid2", cache.getEprSpid("xad2"));
+    }
+
+    @Test
+    void testQueuedMappingsWrittenByCompaction() throws Exception {
+        final var logFile = this.directory.resolve(PatientIdCacheStore.LOG_FILE_NAME);
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10);
+        try (final var store = new PatientIdCacheStore(this.directory)) {
+            store.append(cache.put("xad1", "spid1"));
+            // A mapping queued but not in the snapshot, e.g. cached during the compaction
+            store.append(new PatientIdCache.Mapping("xad2", "spid2", Long.MAX_VALUE));
+            store.compact(cache::snapshot);
+            assertEquals(2, Files.readAllLines(logFile).size());
+        }
+    }
+
+    @Test
+    void testOwnerOnlyPermissions() throws Exception {
+        final var directory = this.directory.resolve("cache");
+        try (final var store = new PatientIdCacheStore(directory)) {
+            assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+            assertEquals("rw-------", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(directory.resolve(PatientIdCacheStore.LOG_FILE_NAME))));
+        }
+    }
+}
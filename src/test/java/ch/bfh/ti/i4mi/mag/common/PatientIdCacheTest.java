@@ -0,0 +1,112 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link PatientIdCache}.
+ **/
+class PatientIdCacheTest {
+
+    @Test
+    void testBothDirections() {
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10);
+        cache.put("xad1", "spid1");
+
+        assertEquals("spid1", cache.getEprSpid("xad1"));
+        assertEquals("xad1", cache.getXadPid("spid1"));
+        assertNull(cache.getEprSpid("xad2"));
+        assertNull(cache.getXadPid("spid2"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void testReplacedMapping() {
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10);
+        cache.put("xad1", "spid1");
+        cache.put("xad1", "spid2");
+
+        assertEquals("spid2", cache.getEprSpid("xad1"));
+        assertEquals("xad1", cache.getXadPid("spid2"));
+        assertNull(cache.getXadPid("spid1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testExpiration() {
+        final var clock = new MutableClock();
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 10, clock);
+        cache.put("xad1", "spid1");
+
+        clock.advance(Duration.ofMinutes(4));
+        assertEquals("spid1", cache.getEprSpid("xad1"));
+
+        clock.advance(Duration.ofMinutes(1));
+        assertNull(cache.getEprSpid("xad1"));
+        assertNull(cache.getXadPid("spid1"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testSizeBound() {
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 3);
+        for (int i = 1; i <= 5; ++i) {
+            cache.put("xad" + i, "spid" + i);
+        }
+
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+        assertNull(cache.getEprSpid("xad1"));
+        assertNull(cache.getXadPid("spid2"));
+        assertEquals("spid5", cache.getEprSpid("xad5"));
+        assertEquals("xad3", cache.getXadPid("spid3"));
+    }
+
+    @Test
+    void testConcurrentPutsSharingAnIdentifier() throws InterruptedException {
+        final var cache = new PatientIdCache(Duration.ofMinutes(5), 100);
+        final var start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            final int thread = t;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 100_000; ++i) {
+                    // Each put shares one identifier with the puts of the other threads
+                    if (thread % 2 == 0) {
+                        cache.put("xad1", "spid" + (i % 3));
+                    } else {
+                        cache.put("xad" + (i % 3), "spid1");
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < 3; ++i) {
+            final var byXadPid = cache.getByXadPid("xad" + i);
+            if (byXadPid != null) {
+                assertSame(byXadPid, cache.getByEprSpid(byXadPid.eprSpid()));
+            }
+            final var byEprSpid = cache.getByEprSpid("spid" + i);
+            if (byEprSpid != null) {
+                assertSame(byEprSpid, cache.getByXadPid(byEprSpid.xadPid()));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
+import ch.bfh.ti.i4mi.mag.mhd.Utils;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultMessage;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static ch.bfh.ti.i4mi.mag.MagConstants.EPR_SPID_OID;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link PatientIdInterceptor}.
+ **/
+class PatientIdInterceptorTest {
+    private static final String MPI_OID = "1.2.3.4";
+
+    private final PatientIdMappingService patientIdMappingService = mock(PatientIdMappingService.class);
+    private final CamelContext camelContext = new DefaultCamelContext();
+    private final PatientIdInterceptor interceptor;
+
+    PatientIdInterceptorTest() {
+        final var mpiProps = new MagMpiProps();
+        mpiProps.setOids(new MagMpiProps.MagMpiOidsProps());
+        mpiProps.getOids().setMpiPid(MPI_OID);
+        this.interceptor = new PatientIdInterceptor(this.patientIdMappingService, mpiProps);
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.camelContext.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.camelContext.stop();
+    }
+
+    @Test
+    void testIti104RequestNotCached() {
+        final Message message = new DefaultMessage(this.camelContext);
+        message.setHeader(Utils.KEPT_BODY, patient("xad-1", "spid-1"));
+
+        this.interceptor.interceptIti104Request(message);
+
+        // The mapping of the request comes from the client, it's never trusted
+        verify(this.patientIdMappingService, never()).save(anyString(), anyString());
+        verify(this.patientIdMappingService).invalidateUnknown("xad-1", "spid-1");
+    }
+
+    @Test
+    void testPatientsOfResponseCached() {
+        final Message message = new DefaultMessage(this.camelContext);
+        message.setBody(List.<Resource>of(patient("xad-1", "spid-1"), new OperationOutcome()));
+
+        this.interceptor.interceptBundleOfPatients(message);
+
+        verify(this.patientIdMappingService).save("xad-1", "spid-1");
+    }
+
+    private static Patient patient(final String xadPid, final String eprSpid) {
+        final var patient = new Patient();
+        patient.addIdentifier().setSystem("urn:oid:" + MPI_OID).setValue(xadPid);
+        patient.addIdentifier().setSystem("urn:oid:" + EPR_SPID_OID).setValue(eprSpid);
+        return patient;
+    }
+}
@@ -0,0 +1,144 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
+import net.ihe.gazelle.hl7v3.datatypes.II;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.hl7v3.core.requests.PixV3QueryRequest;
+import org.openehealth.ipf.commons.ihe.hl7v3.core.responses.PixV3QueryResponse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.bfh.ti.i4mi.mag.MagConstants.EPR_SPID_OID;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link PatientIdMappingService#getEprSpids}, with a stub PIX endpoint.
+ * <p>
+ * The stub answers each XAD-PID "xad-N" with the EPR-SPID "spid-N", after a short delay, and fails the XAD-PIDs
+ * that start with "fail".
+ * </p>
+ **/
+class PatientIdMappingServiceTest {
+    private static final String MPI_OID = "1.2.3.4";
+    private static final long QUERY_DELAY = 50;
+
+    private final MagMpiProps mpiProps = new MagMpiProps();
+    private final ProducerTemplate producerTemplate = mock(ProducerTemplate.class);
+    // The queried XAD-PIDs
+    private final Queue<String> queries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final CamelContext camelContext = new DefaultCamelContext() {
+        @Override
+        public ProducerTemplate createProducerTemplate() {
+            return PatientIdMappingServiceTest.this.producerTemplate;
+        }
+    };
+    private PatientIdMappingService service;
+
+    @BeforeEach
+    void setUp() {
+        this.camelContext.start();
+        this.mpiProps.setIti45("localhost/pix");
+        this.mpiProps.setOids(new MagMpiProps.MagMpiOidsProps());
+        this.mpiProps.getOids().setMpiPid(MPI_OID);
+        this.mpiProps.getOids().setSender("1.1.1");
+        this.mpiProps.getOids().setReceiver("2.2.2");
+        this.mpiProps.getPatientIdCache().setMaxParallelQueries(2);
+        when(this.producerTemplate.send(anyString(), any(Exchange.class))).thenAnswer(invocation -> {
+            final Exchange exchange = invocation.getArgument(1);
+            return this.respond(exchange);
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (this.service != null) {
+            this.service.close();
+        }
+        this.camelContext.stop();
+    }
+
+    @Test
+    void testDistinctXadPidsQueriedOnce() throws Exception {
+        final var eprSpids = this.startService().getEprSpids(List.of("xad-1", "xad-2", "xad-1", "xad-3", "xad-2"));
+
+        assertEquals(Map.of("xad-1", "spid-1", "xad-2", "spid-2", "xad-3", "spid-3"), eprSpids);
+        assertEquals(3, this.queries.size());
+        assertEquals(Set.of("xad-1", "xad-2", "xad-3"), Set.copyOf(this.queries));
+    }
+
+    @Test
+    void testParallelQueriesBounded() throws Exception {
+        final var xadPids = List.of("xad-1", "xad-2", "xad-3", "xad-4", "xad-5", "xad-6", "xad-7", "xad-8");
+        final var eprSpids = this.startService().getEprSpids(xadPids);
+
+        assertEquals(8, eprSpids.size());
+        assertEquals(8, this.queries.size());
+        assertTrue(this.maxInFlight.get() <= 2, "More than 2 PIX queries were in flight: " + this.maxInFlight);
+    }
+
+    @Test
+    void testCacheHitsNotQueried() throws Exception {
+        final var service = this.startService();
+        service.save("xad-1", "spid-cached");
+
+        final var eprSpids = service.getEprSpids(List.of("xad-1", "xad-2", "xad-3"));
+
+        assertEquals(Map.of("xad-1", "spid-cached", "xad-2", "spid-2", "xad-3", "spid-3"), eprSpids);
+        assertEquals(Set.of("xad-2", "xad-3"), Set.copyOf(this.queries));
+    }
+
+    @Test
+    void testFirstFailureRethrown() {
+        final var service = this.startService();
+
+        final var exception = assertThrows(IllegalStateException.class,
+                                           () -> service.getEprSpids(List.of("xad-1", "fail-1", "fail-2")));
+        assertEquals("PIX query failed for fail-1", exception.getMessage());
+    }
+
+    private PatientIdMappingService startService() {
+        this.service = new PatientIdMappingService(this.mpiProps);
+        this.service.setCamelContext(this.camelContext);
+        return this.service;
+    }
+
+    private Exchange respond(final Exchange exchange) throws InterruptedException {
+        final var request = exchange.getIn().getBody(PixV3QueryRequest.class);
+        final String xadPid = request.getQueryPatientId().getExtension();
+        this.queries.add(xadPid);
+        final int current = this.inFlight.incrementAndGet();
+        this.maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            Thread.sleep(QUERY_DELAY);
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+
+        if (xadPid.startsWith("fail")) {
+            exchange.setException(new IllegalStateException("PIX query failed for " + xadPid));
+            return exchange;
+        }
+        final var response = new PixV3QueryResponse();
+        response.getPatientIds().add(new II(MPI_OID, xadPid));
+        response.getPatientIds().add(new II(EPR_SPID_OID, xadPid.replace("xad", "spid")));
+        exchange.getMessage().setBody(response);
+        return exchange;
+    }
+}
@@ -0,0 +1,53 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link RefreshAhead}.
+ **/
+class RefreshAheadTest {
+
+    @Test
+    void testRefreshWindow() {
+        final var clock = new MutableClock();
+        final List<Runnable> scheduled = new ArrayList<>();
+        final var refreshAhead = new RefreshAhead<String>(Duration.ofSeconds(30), scheduled::add, clock);
+        final long expiresAt = clock.millis() + Duration.ofMinutes(5).toMillis();
+
+        assertFalse(refreshAhead.maybeRefresh("key", expiresAt, () -> null));
+
+        clock.advance(Duration.ofMinutes(4).plusSeconds(40));
+        assertTrue(refreshAhead.maybeRefresh("key", expiresAt, () -> null));
+        // A refresh is already in progress for that key
+        assertFalse(refreshAhead.maybeRefresh("key", expiresAt, () -> null));
+        assertTrue(refreshAhead.maybeRefresh("other", expiresAt, () -> null));
+        assertEquals(2, scheduled.size());
+
+        scheduled.forEach(Runnable::run);
+        assertEquals(2, refreshAhead.getRefreshCount());
+        assertTrue(refreshAhead.maybeRefresh("key", expiresAt, () -> null));
+    }
+
+    @Test
+    void testFailedRefresh() {
+        final var refreshAhead = new RefreshAhead<String>(Duration.ofSeconds(30), Runnable::run);
+        assertTrue(refreshAhead.maybeRefresh("key", System.currentTimeMillis(), () -> {
+            throw new UnknownPatientException("Unknown");
+        }));
+        assertEquals(0, refreshAhead.getRefreshCount());
+        assertEquals(1, refreshAhead.getFailureCount());
+    }
+
+    @Test
+    void testDisabled() {
+        final var refreshAhead = new RefreshAhead<String>(Duration.ZERO, Runnable::run);
+        assertFalse(refreshAhead.isEnabled());
+        assertFalse(refreshAhead.maybeRefresh("key", System.currentTimeMillis(), () -> null));
+    }
+}
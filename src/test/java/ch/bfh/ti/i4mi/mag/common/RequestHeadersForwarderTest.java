@@ -0,0 +1,108 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the cache of the WS-Security headers of {@link RequestHeadersForwarder}.
+ **/
+class RequestHeadersForwarderTest {
+    private static final String SAML_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+    private final MutableClock clock = new MutableClock();
+    private final CamelContext camelContext = new DefaultCamelContext();
+    private final RequestHeadersForwarder forwarder = new RequestHeadersForwarder(null, null, 10, this.clock);
+
+    @BeforeEach
+    void setUp() {
+        this.camelContext.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.camelContext.stop();
+    }
+
+    @Test
+    void testAssertionParsedOnce() throws Exception {
+        final String assertion = assertion(this.clock.instant().plus(Duration.ofMinutes(5)));
+
+        final var first = this.forwarder.createWsseHeader(this.exchange(), assertion);
+        final var second = this.forwarder.createWsseHeader(this.exchange(), assertion);
+
+        final var cache = this.forwarder.getSecurityHeaders();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        // Each exchange gets its own element, in its own document
+        final var firstElement = (Element) first.getObject();
+        final var secondElement = (Element) second.getObject();
+        assertNotSame(firstElement, secondElement);
+        assertNotSame(firstElement.getOwnerDocument(), secondElement.getOwnerDocument());
+        assertEquals("Security", secondElement.getLocalName());
+        assertEquals(1, secondElement.getElementsByTagNameNS(SAML_NS, "Assertion").getLength());
+    }
+
+    @Test
+    void testUserNameSet() throws Exception {
+        final Exchange exchange = this.exchange();
+
+        this.forwarder.createWsseHeader(exchange, assertion(this.clock.instant().plus(Duration.ofMinutes(5))));
+
+        assertEquals("alias<user@issuer>", exchange.getProperty("UserName"));
+    }
+
+    @Test
+    void testAssertionWithoutNotOnOrAfterNotCached() throws Exception {
+        final String assertion = assertion(null);
+
+        this.forwarder.createWsseHeader(this.exchange(), assertion);
+        this.forwarder.createWsseHeader(this.exchange(), assertion);
+
+        final var cache = this.forwarder.getSecurityHeaders();
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void testExpiredAssertionParsedAgain() throws Exception {
+        final String assertion = assertion(this.clock.instant().plus(Duration.ofMinutes(5)));
+        this.forwarder.createWsseHeader(this.exchange(), assertion);
+
+        this.clock.advance(Duration.ofMinutes(5));
+        this.forwarder.createWsseHeader(this.exchange(), assertion);
+
+        final var cache = this.forwarder.getSecurityHeaders();
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        // The new assertion has already expired, it's not cached again
+        assertEquals(0, cache.size());
+    }
+
+    private Exchange exchange() {
+        return new DefaultExchange(this.camelContext);
+    }
+
+    private static String assertion(final Instant notOnOrAfter) {
+        final String conditions = (notOnOrAfter == null) ? "" :
+                "<saml2:Conditions NotOnOrAfter=\"" + notOnOrAfter + "\"/>";
+        return "<saml2:Assertion xmlns:saml2=\"" + SAML_NS + "\" ID=\"_1\" Version=\"2.0\">" +
+                "<saml2:Issuer>issuer</saml2:Issuer>" +
+                "<saml2:Subject><saml2:NameID SPProvidedID=\"alias\">user</saml2:NameID></saml2:Subject>" +
+                conditions +
+                "</saml2:Assertion>";
+    }
+}
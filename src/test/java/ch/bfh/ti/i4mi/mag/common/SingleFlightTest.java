@@ -0,0 +1,144 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link SingleFlight}.
+ **/
+class SingleFlightTest {
+
+    @Test
+    void testConcurrentCallsAreCoalesced() throws Exception {
+        final var singleFlight = new SingleFlight<String, String>();
+        final var loaderCalls = new AtomicInteger();
+        final var loaderStarted = new CountDownLatch(1);
+        final var releaseLoader = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(4)) {
+            final Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                loaderCalls.incrementAndGet();
+                loaderStarted.countDown();
+                releaseLoader.await();
+                return "value";
+            }, Duration.ofSeconds(5)));
+            loaderStarted.await();
+
+            final Future<String> follower1 = executor.submit(() -> singleFlight.execute("key", () -> {
+                loaderCalls.incrementAndGet();
+                return "other";
+            }, Duration.ofSeconds(5)));
+            final Future<String> follower2 = executor.submit(() -> singleFlight.execute("key", () -> {
+                loaderCalls.incrementAndGet();
+                return "other";
+            }, Duration.ofSeconds(5)));
+            while (singleFlight.getCoalescedCount() < 2) {
+                Thread.onSpinWait();
+            }
+            releaseLoader.countDown();
+
+            assertEquals("value", leader.get());
+            assertEquals("value", follower1.get());
+            assertEquals("value", follower2.get());
+            assertEquals(1, loaderCalls.get());
+        }
+
+        // The execution has completed, the next call runs the loader again
+        assertEquals("new", singleFlight.execute("key", () -> "new", Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void testExceptionIsPropagatedToFollowers() throws Exception {
+        final var singleFlight = new SingleFlight<String, String>();
+        final var loaderStarted = new CountDownLatch(1);
+        final var releaseLoader = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            final Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                loaderStarted.countDown();
+                releaseLoader.await();
+                throw new UnknownPatientException("Unknown");
+            }, Duration.ofSeconds(5)));
+            loaderStarted.await();
+
+            final Future<Exception> follower = executor.submit(() -> {
+                try {
+                    singleFlight.execute("key", () -> "other", Duration.ofSeconds(5));
+                    return null;
+                } catch (final Exception e) {
+                    return e;
+                }
+            });
+            while (singleFlight.getCoalescedCount() < 1) {
+                Thread.onSpinWait();
+            }
+            releaseLoader.countDown();
+
+            assertTrue(follower.get() instanceof UnknownPatientException);
+            assertTrue(assertThrows(Exception.class, leader::get).getCause() instanceof UnknownPatientException);
+        }
+    }
+
+    @Test
+    void testErrorIsPropagatedToFollowers() throws Exception {
+        final var singleFlight = new SingleFlight<String, String>();
+        final var loaderStarted = new CountDownLatch(1);
+        final var releaseLoader = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            final Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                loaderStarted.countDown();
+                releaseLoader.await();
+                throw new StackOverflowError();
+            }, Duration.ofSeconds(5)));
+            loaderStarted.await();
+
+            final Future<Throwable> follower = executor.submit(() -> {
+                try {
+                    singleFlight.execute("key", () -> "other", Duration.ofSeconds(30));
+                    return null;
+                } catch (final Throwable e) {
+                    return e;
+                }
+            });
+            while (singleFlight.getCoalescedCount() < 1) {
+                Thread.onSpinWait();
+            }
+            releaseLoader.countDown();
+
+            // The follower doesn't wait for its timeout
+            assertTrue(follower.get(5, TimeUnit.SECONDS) instanceof StackOverflowError);
+            assertTrue(assertThrows(Exception.class, leader::get).getCause() instanceof StackOverflowError);
+        }
+    }
+
+    @Test
+    void testFollowerWaitIsBounded() throws Exception {
+        final var singleFlight = new SingleFlight<String, String>();
+        final var loaderStarted = new CountDownLatch(1);
+        final var releaseLoader = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(1)) {
+            executor.submit(() -> singleFlight.execute("key", () -> {
+                loaderStarted.countDown();
+                releaseLoader.await();
+                return "value";
+            }, Duration.ofSeconds(5)));
+            loaderStarted.await();
+
+            assertThrows(TimeoutException.class,
+                         () -> singleFlight.execute("key", () -> "other", Duration.ofMillis(50)));
+            releaseLoader.countDown();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link UnknownPatientCache}.
+ **/
+class UnknownPatientCacheTest {
+
+    @Test
+    void testExpiration() {
+        final var clock = new MutableClock();
+        final var cache = new UnknownPatientCache(Duration.ofSeconds(30), 10, clock);
+        cache.markUnknown("1.2.3|1");
+        assertTrue(cache.isUnknown("1.2.3|1"));
+        assertFalse(cache.isUnknown("1.2.3|2"));
+
+        clock.advance(Duration.ofSeconds(30));
+        assertFalse(cache.isUnknown("1.2.3|1"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testInvalidation() {
+        final var cache = new UnknownPatientCache(Duration.ofSeconds(30), 10);
+        cache.markUnknown("1.2.3|1");
+        cache.invalidate("1.2.3|1");
+        assertFalse(cache.isUnknown("1.2.3|1"));
+        assertEquals(1, cache.getInvalidationCount());
+    }
+
+    @Test
+    void testDisabled() {
+        final var cache = new UnknownPatientCache(Duration.ZERO, 10);
+        cache.markUnknown("1.2.3|1");
+        assertFalse(cache.isUnknown("1.2.3|1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testMaxSize() {
+        final var cache = new UnknownPatientCache(Duration.ofSeconds(30), 2);
+        cache.markUnknown("1.2.3|1");
+        cache.markUnknown("1.2.3|2");
+        cache.markUnknown("1.2.3|3");
+        assertEquals(2, cache.size());
+        assertFalse(cache.isUnknown("1.2.3|3"));
+    }
+}
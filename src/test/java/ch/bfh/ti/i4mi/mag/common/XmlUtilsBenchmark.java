@@ -0,0 +1,76 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the contention on the XML factories: 16 threads parse and serialize a small document, either with the
+ * builders and transformers created by the {@code static synchronized} factory methods for each call, as before, or
+ * with the instances reused by each thread.
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Thread)
+public class XmlUtilsBenchmark {
+    private static final String XML = """
+            <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_1" Version="2.0">
+                <saml2:Issuer>https://sts.example.com</saml2:Issuer>
+                <saml2:Subject>
+                    <saml2:NameID>7601000000000</saml2:NameID>
+                </saml2:Subject>
+                <saml2:Conditions NotBefore="2026-01-01T10:00:00Z" NotOnOrAfter="2026-01-01T10:05:00Z"/>
+            </saml2:Assertion>""";
+
+    // Each thread serializes its own document: a DOM is not safe for concurrent reads
+    private Document document;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.document = XmlUtils.newSafeDocumentBuilder().parse(new InputSource(new StringReader(XML)));
+    }
+
+    @Benchmark
+    public Document parseWithNewBuilder() throws Exception {
+        return XmlUtils.newSafeDocumentBuilder().parse(new InputSource(new StringReader(XML)));
+    }
+
+    @Benchmark
+    public Document parseWithThreadBuilder() throws Exception {
+        return XmlUtils.safeDocumentBuilder().parse(new InputSource(new StringReader(XML)));
+    }
+
+    @Benchmark
+    public String serializeWithNewTransformer() throws Exception {
+        final var writer = new StringWriter();
+        XmlUtils.newTransformer().transform(new DOMSource(this.document), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String serializeWithThreadTransformer() throws Exception {
+        final var writer = new StringWriter();
+        XmlUtils.transformer().transform(new DOMSource(this.document), new StreamResult(writer));
+        return writer.toString();
+    }
+}
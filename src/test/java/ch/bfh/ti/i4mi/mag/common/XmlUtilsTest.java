@@ -0,0 +1,69 @@
+package ch.bfh.ti.i4mi.mag.common;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link XmlUtils}.
+ **/
+class XmlUtilsTest {
+
+    @Test
+    void testReusedByThread() throws Exception {
+        assertSame(XmlUtils.safeDocumentBuilder(), XmlUtils.safeDocumentBuilder());
+        assertSame(XmlUtils.transformer(), XmlUtils.transformer());
+
+        // The reused builder is still hardened
+        final String xxe = "<!DOCTYPE a [<!ENTITY x SYSTEM \"file:///etc/passwd\">]><a>&x;</a>";
+        assertThrows(Exception.class,
+                     () -> XmlUtils.safeDocumentBuilder().parse(new InputSource(new StringReader(xxe))));
+        assertEquals("<a>b</a>", XmlUtils.serialize(parse("<a>b</a>")));
+    }
+
+    @Test
+    void testNotReusedByVirtualThreads() throws Exception {
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var builders = executor.submit(
+                    () -> List.of(XmlUtils.safeDocumentBuilder(), XmlUtils.safeDocumentBuilder())).get();
+            assertNotSame(builders.get(0), builders.get(1));
+        }
+    }
+
+    @Test
+    void testConcurrentUse() throws Exception {
+        final int threads = 16;
+        final int iterations = 500;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; ++i) {
+                        final String xml = "<a t=\"" + thread + "\">" + i + "</a>";
+                        assertEquals(xml, XmlUtils.serialize(parse(xml)));
+                    }
+                    return null;
+                }));
+            }
+            for (final var future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static org.w3c.dom.Document parse(final String xml) throws Exception {
+        return XmlUtils.safeDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
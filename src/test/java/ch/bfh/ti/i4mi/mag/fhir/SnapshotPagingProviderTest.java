@@ -0,0 +1,91 @@
+package ch.bfh.ti.i4mi.mag.fhir;
+
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ch.bfh.ti.i4mi.mag.common.MutableClock;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link SnapshotPagingProvider}.
+ **/
+class SnapshotPagingProviderTest {
+
+    @Test
+    void testExpiration() {
+        final var clock = new MutableClock();
+        final var provider = new SnapshotPagingProvider(new MagXdsProps.MagXdsPagingProps(), clock);
+        final var results = results(20);
+
+        final String searchId = provider.storeResultList(null, results);
+        assertSame(results, provider.retrieveResultList(null, searchId));
+        assertNull(provider.retrieveResultList(null, "unknown"));
+
+        clock.advance(Duration.ofMinutes(10));
+        assertNull(provider.retrieveResultList(null, searchId));
+    }
+
+    @Test
+    void testEviction() {
+        final var props = new MagXdsProps.MagXdsPagingProps();
+        props.setMaxSnapshots(2);
+        props.setMaxResources(45);
+        final var provider = new SnapshotPagingProvider(props, new MutableClock());
+
+        final String first = provider.storeResultList(null, results(10));
+        final String second = provider.storeResultList(null, results(10));
+        final String third = provider.storeResultList(null, results(10));
+        assertNull(provider.retrieveResultList(null, first));
+        assertNotNull(provider.retrieveResultList(null, second));
+        assertNotNull(provider.retrieveResultList(null, third));
+
+        // Too many resources: both older snapshots are evicted
+        final String fourth = provider.storeResultList(null, results(40));
+        assertNull(provider.retrieveResultList(null, second));
+        assertNull(provider.retrieveResultList(null, third));
+        assertNotNull(provider.retrieveResultList(null, fourth));
+        assertEquals(1, provider.size());
+    }
+
+    @Test
+    void testTooLargeResultListRefused() {
+        final var props = new MagXdsProps.MagXdsPagingProps();
+        props.setMaxResources(45);
+        final var provider = new SnapshotPagingProvider(props, new MutableClock());
+        final String first = provider.storeResultList(null, results(10));
+
+        final var exception = assertThrows(InvalidRequestException.class,
+                                           () -> provider.storeResultList(null, results(46)));
+        assertEquals("The search has 46 results, more than the 45 that can be paged. Please narrow the search.",
+                     exception.getMessage());
+        // The other snapshots are kept
+        assertNotNull(provider.retrieveResultList(null, first));
+        assertEquals(1, provider.size());
+    }
+
+    @Test
+    void testPageSizes() {
+        final var props = new MagXdsProps.MagXdsPagingProps();
+        assertTrue(new SnapshotPagingProvider(props).getDefaultPageSize() > props.getMaxPageSize());
+
+        props.setDefaultPageSize(20);
+        assertEquals(20, new SnapshotPagingProvider(props).getDefaultPageSize());
+        assertEquals(500, new SnapshotPagingProvider(props).getMaximumPageSize());
+    }
+
+    private static SimpleBundleProvider results(final int size) {
+        final List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            resources.add(new DocumentReference());
+        }
+        return new SimpleBundleProvider(resources);
+    }
+}
@@ -1,11 +1,28 @@
 package ch.bfh.ti.i4mi.mag.mhd;
 
+import ch.bfh.ti.i4mi.mag.common.PatientIdMappingService;
+import ch.bfh.ti.i4mi.mag.common.UnknownPatientException;
+import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
 import ch.bfh.ti.i4mi.mag.mhd.iti67.Iti67ResponseConverter;
 import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.AssigningAuthority;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Hl7v2Based;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Identifiable;
 import org.openehealth.ipf.commons.ihe.xds.core.metadata.Organization;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.SubmissionSet;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Tests for {@link BaseQueryResponseConverter}.
@@ -13,6 +30,7 @@ import static org.junit.jupiter.api.Assertions.*;
  * @author Quentin Ligier
  **/
 class BaseQueryResponseConverterTest {
+    private static final String MPI_OID = "1.2.3.4";
 
     @Test
     void testTransformOrganization() {
@@ -36,4 +54,63 @@ class BaseQueryResponseConverterTest {
         assertEquals("urn:oid:1.2.3", fhirOrg.getIdentifierFirstRep().getValue());
         assertEquals("urn:ietf:rfc:3986", fhirOrg.getIdentifierFirstRep().getSystem());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testResolveEprSpids() throws Exception {
+        final var patientIdMappingService = mock(PatientIdMappingService.class);
+        when(patientIdMappingService.getEprSpids(Set.of("xad-1", "xad-2")))
+                .thenReturn(Map.of("xad-1", "spid-1", "xad-2", "spid-2"));
+        final var converter = converter(patientIdMappingService);
+
+        final var response = new QueryResponse(Status.SUCCESS);
+        response.getDocumentEntries().add(documentEntry(new Identifiable("xad-1", new AssigningAuthority(MPI_OID))));
+        response.getDocumentEntries().add(documentEntry(new Identifiable("xad-1", new AssigningAuthority(MPI_OID))));
+        // Another assigning authority: rejected later by transformPatient(), never queried
+        response.getDocumentEntries().add(documentEntry(new Identifiable("other", new AssigningAuthority("9.9.9"))));
+        response.getDocumentEntries().add(documentEntry(null));
+        final var submissionSet = new SubmissionSet();
+        submissionSet.setPatientId(new Identifiable("xad-2", new AssigningAuthority(MPI_OID)));
+        response.getSubmissionSets().add(submissionSet);
+
+        assertEquals(Map.of("xad-1", "spid-1", "xad-2", "spid-2"), converter.resolveEprSpids(response));
+        verify(patientIdMappingService).getEprSpids(Set.of("xad-1", "xad-2"));
+    }
+
+    @Test
+    void testResolveEprSpidsFailure() throws Exception {
+        final var patientIdMappingService = mock(PatientIdMappingService.class);
+        final var failure = new IllegalStateException("PIX query failed");
+        when(patientIdMappingService.getEprSpids(any())).thenThrow(failure);
+        final var converter = converter(patientIdMappingService);
+
+        final var response = new QueryResponse(Status.SUCCESS);
+        response.getDocumentEntries().add(documentEntry(new Identifiable("xad-1", new AssigningAuthority(MPI_OID))));
+        final var exception = assertThrows(UnknownPatientException.class, () -> converter.resolveEprSpids(response));
+        assertSame(failure, exception.getCause());
+
+        // Nothing to resolve: the MPI is not queried
+        final var otherResponse = new QueryResponse(Status.SUCCESS);
+        otherResponse.getDocumentEntries().add(
+                documentEntry(new Identifiable("other", new AssigningAuthority("9.9.9"))));
+        assertEquals(Map.of(), converter.resolveEprSpids(otherResponse));
+        verify(patientIdMappingService, times(1)).getEprSpids(any());
+    }
+
+    private static BaseQueryResponseConverter converter(final PatientIdMappingService patientIdMappingService) {
+        final var mpiProps = new MagMpiProps();
+        mpiProps.setOids(new MagMpiProps.MagMpiOidsProps());
+        mpiProps.getOids().setMpiPid(MPI_OID);
+        return new BaseQueryResponseConverter(mpiProps, null, patientIdMappingService) {
+            @Override
+            public Object translateToFhir(final QueryResponse input, final Map<String, Object> parameters) {
+                return null;
+            }
+        };
+    }
+
+    private static DocumentEntry documentEntry(final Identifiable patientId) {
+        final var documentEntry = new DocumentEntry();
+        documentEntry.setPatientId(patientId);
+        return documentEntry;
+    }
+}
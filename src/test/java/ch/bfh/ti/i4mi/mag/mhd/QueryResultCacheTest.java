@@ -0,0 +1,94 @@
+package ch.bfh.ti.i4mi.mag.mhd;
+
+import ch.bfh.ti.i4mi.mag.common.MutableClock;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.AvailabilityStatus;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Identifiable;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Oid;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.FindDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.QueryReturnType;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link QueryResultCache}.
+ **/
+class QueryResultCacheTest {
+    private static final Identifiable PATIENT_1 = new Identifiable("1", new Oid("1.2.3"));
+    private static final Identifiable PATIENT_2 = new Identifiable("2", new Oid("1.2.3"));
+
+    private final MutableClock clock = new MutableClock();
+    private final QueryResultCache cache = new QueryResultCache(props(), this.clock);
+
+    @Test
+    void testKeyedByNormalizedQueryAndPrincipal() {
+        final var lookup = this.cache.lookup(query(PATIENT_1, AvailabilityStatus.APPROVED,
+                                                   AvailabilityStatus.DEPRECATED), "alice");
+        this.cache.put(lookup, response());
+
+        final var cached = this.cache.get(this.cache.lookup(query(PATIENT_1, AvailabilityStatus.DEPRECATED,
+                                                                  AvailabilityStatus.APPROVED), "alice"));
+        assertNotNull(cached);
+        assertEquals(1, cached.getDocumentEntries().size());
+        assertNull(this.cache.get(this.cache.lookup(query(PATIENT_1, AvailabilityStatus.APPROVED), "alice")));
+        assertNull(this.cache.get(this.cache.lookup(query(PATIENT_1, AvailabilityStatus.APPROVED,
+                                                          AvailabilityStatus.DEPRECATED), "bob")));
+
+        this.clock.advance(Duration.ofSeconds(31));
+        assertNull(this.cache.get(lookup));
+    }
+
+    @Test
+    void testInvalidation() {
+        final var lookup1 = this.cache.lookup(query(PATIENT_1, AvailabilityStatus.APPROVED), "alice");
+        final var lookup2 = this.cache.lookup(query(PATIENT_2, AvailabilityStatus.APPROVED), "alice");
+        this.cache.put(lookup1, response());
+        this.cache.put(lookup2, response());
+
+        this.cache.invalidate(PATIENT_1);
+        assertNull(this.cache.get(lookup1));
+        assertNotNull(this.cache.get(lookup2));
+
+        // A query that was running during the write is not cached
+        this.cache.put(lookup1, response());
+        assertNull(this.cache.get(lookup1));
+    }
+
+    @Test
+    void testFailuresNotCached() {
+        final var lookup = this.cache.lookup(query(PATIENT_1, AvailabilityStatus.APPROVED), "alice");
+        this.cache.put(lookup, new QueryResponse(Status.PARTIAL_SUCCESS));
+        assertNull(this.cache.get(lookup));
+    }
+
+    private static QueryRegistry query(final Identifiable patientId, final AvailabilityStatus... statuses) {
+        final var query = new FindDocumentsQuery();
+        query.setPatientId(patientId);
+        query.setStatus(List.of(statuses));
+        final var queryRegistry = new QueryRegistry(query);
+        queryRegistry.setReturnType(QueryReturnType.LEAF_CLASS);
+        return queryRegistry;
+    }
+
+    private static QueryResponse response() {
+        final var response = new QueryResponse(Status.SUCCESS);
+        final var documentEntry = new DocumentEntry();
+        documentEntry.setEntryUuid("urn:uuid:1");
+        response.getDocumentEntries().add(documentEntry);
+        return response;
+    }
+
+    private static MagXdsProps.MagXdsQueryCacheProps props() {
+        final var props = new MagXdsProps.MagXdsQueryCacheProps();
+        props.setEnabled(true);
+        return props;
+    }
+}
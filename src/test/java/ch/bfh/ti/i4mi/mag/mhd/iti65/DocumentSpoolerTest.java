@@ -0,0 +1,77 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti65;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link DocumentSpooler}.
+ **/
+class DocumentSpoolerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testSpool() throws IOException {
+        final var props = new MagXdsProps.MagXdsSpoolingProps();
+        props.setThreshold(DataSize.ofBytes(3));
+        props.setDirectory(this.directory.toString());
+        final var spooler = new DocumentSpooler(props);
+
+        assertFalse(spooler.shouldSpool("ab".getBytes(StandardCharsets.US_ASCII)));
+        final byte[] content = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(spooler.shouldSpool(content));
+
+        final var spooled = spooler.spool(content);
+        assertEquals(this.directory, spooled.file().getParent());
+        assertArrayEquals(content, Files.readAllBytes(spooled.file()));
+        assertEquals(3, spooled.size());
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", spooled.hash());
+    }
+
+    @Test
+    void testOwnerOnlyPermissions() throws IOException {
+        assumeTrue(this.directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        final Path spoolDirectory = this.directory.resolve("spool");
+        final var props = new MagXdsProps.MagXdsSpoolingProps();
+        props.setThreshold(DataSize.ofBytes(1));
+        props.setDirectory(spoolDirectory.toString());
+
+        final var spooled = new DocumentSpooler(props).spool("abc".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(spoolDirectory));
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(spooled.file()));
+
+        // The permissions of an existing directory are restricted
+        Files.setPosixFilePermissions(spoolDirectory, PosixFilePermissions.fromString("rwxrwxrwx"));
+        new DocumentSpooler(props);
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(spoolDirectory));
+
+        // A link is refused
+        final Path link = Files.createSymbolicLink(this.directory.resolve("link"), spoolDirectory);
+        props.setDirectory(link.toString());
+        assertThrows(UncheckedIOException.class, () -> new DocumentSpooler(props));
+    }
+
+    @Test
+    void testDefaultDirectory() {
+        final var props = new MagXdsProps.MagXdsSpoolingProps();
+        props.setThreshold(DataSize.ofBytes(0));
+
+        // Nothing is created if the spooling is disabled
+        final var spooler = new DocumentSpooler(props);
+        assertFalse(spooler.shouldSpool("abc".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Path.of(System.getProperty("java.io.tmpdir"), "mag-spool"), spooler.getDirectory());
+    }
+}
@@ -0,0 +1,125 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagProps;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import ch.bfh.ti.i4mi.mag.mhd.QueryResultCache;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.FindDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorCode;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link Iti18FanOutProcessor}, in a Camel route whose XCA-38 stub endpoint answers late.
+ **/
+class Iti18FanOutProcessorTest {
+    private static final Duration XCA38_TIMEOUT = Duration.ofMillis(300);
+    private static final long LATE_RESPONSE_DELAY = 3_000;
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+    private final ExecutorService continuationExecutor = Executors.newCachedThreadPool();
+    // Released at the end of a test, so that the late stub responses don't outlive it
+    private final CountDownLatch testDone = new CountDownLatch(1);
+    private ProducerTemplate sharedProducer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:iti18")
+                        .process(exchange -> exchange.getMessage().setBody(response("urn:uuid:local")));
+                from("direct:xca38")
+                        .process(exchange -> {
+                            Iti18FanOutProcessorTest.this.testDone.await(LATE_RESPONSE_DELAY, TimeUnit.MILLISECONDS);
+                            exchange.getMessage().setBody(response("urn:uuid:remote"));
+                        });
+            }
+        });
+        this.camelContext.start();
+        this.sharedProducer = spy(this.camelContext.createProducerTemplate());
+        this.sharedProducer.start();
+
+        final var magProps = new MagProps();
+        magProps.setXds(new MagXdsProps());
+        final var querySender = new QuerySender(this.sharedProducer,
+                                                "direct:iti18", Duration.ofSeconds(5),
+                                                "direct:xca38", XCA38_TIMEOUT,
+                                                new QueryResponseMerger());
+        final var processor = new Iti18FanOutProcessor(querySender, new QueryResultCache(magProps),
+                                                       this.continuationExecutor, "principal");
+        this.camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:search").process(processor);
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.testDone.countDown();
+        this.camelContext.stop();
+        this.continuationExecutor.shutdownNow();
+    }
+
+    @Test
+    void testLateCommunityReportedAsNotReached() {
+        final ProducerTemplate client = this.camelContext.createProducerTemplate();
+        for (int i = 0; i < 2; ++i) {
+            final long start = System.nanoTime();
+            final Exchange result = client.send("direct:search",
+                                                exchange -> exchange.getMessage().setBody(query()));
+            final long elapsedMillis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+            assertNull(result.getException());
+            assertTrue(elapsedMillis < LATE_RESPONSE_DELAY, "The route waited for the late response");
+            final var response = result.getMessage().getBody(QueryResponse.class);
+            assertEquals(Status.PARTIAL_SUCCESS, response.getStatus());
+            assertEquals(1, response.getDocumentEntries().size());
+            assertEquals("urn:uuid:local", response.getDocumentEntries().getFirst().getEntryUuid());
+            assertEquals(1, response.getErrors().size());
+            assertEquals(ErrorCode.UNAVAILABLE_COMMUNITY, response.getErrors().getFirst().getErrorCode());
+            assertEquals("The external communities could not be reached",
+                         response.getErrors().getFirst().getCodeContext());
+        }
+
+        // Both searches went through the shared producer, to both endpoints
+        verify(this.sharedProducer, times(2)).asyncSend(eq("direct:iti18"), any(Exchange.class));
+        verify(this.sharedProducer, times(2)).asyncSend(eq("direct:xca38"), any(Exchange.class));
+    }
+
+    private static QueryRegistry query() {
+        return new QueryRegistry(new FindDocumentsQuery());
+    }
+
+    private static QueryResponse response(final String entryUuid) {
+        final var documentEntry = new DocumentEntry();
+        documentEntry.setEntryUuid(entryUuid);
+        final var response = new QueryResponse(Status.SUCCESS);
+        response.getDocumentEntries().add(documentEntry);
+        return response;
+    }
+}
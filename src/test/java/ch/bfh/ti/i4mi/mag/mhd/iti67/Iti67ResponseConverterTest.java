@@ -0,0 +1,63 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagMpiProps;
+import ch.bfh.ti.i4mi.mag.config.props.MagProps;
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import ch.bfh.ti.i4mi.mag.mhd.SchemeMapper;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Association;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.AssociationType;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Iti67ResponseConverter}.
+ **/
+class Iti67ResponseConverterTest {
+
+    @Test
+    void testParallelTranslation() {
+        final var response = new QueryResponse(Status.SUCCESS);
+        for (int i = 0; i < 250; ++i) {
+            final var documentEntry = new DocumentEntry();
+            documentEntry.setEntryUuid("urn:uuid:00000000-0000-0000-0000-%012d".formatted(i));
+            documentEntry.setUniqueId("1.2.3." + i);
+            response.getDocumentEntries().add(documentEntry);
+        }
+        response.getAssociations().add(new Association(AssociationType.REPLACE, "urn:uuid:a",
+                                                       "urn:uuid:00000000-0000-0000-0000-000000000200",
+                                                       "1.2.3.100"));
+
+        final List<DocumentReference> sequential = converter(0).translateToFhir(response, Map.of());
+        final var parallelConverter = converter(10);
+        final List<DocumentReference> parallel = parallelConverter.translateToFhir(response, Map.of());
+        parallelConverter.shutdown();
+
+        assertEquals(250, parallel.size());
+        for (int i = 0; i < 250; ++i) {
+            assertEquals(sequential.get(i).getMasterIdentifier().getValue(),
+                         parallel.get(i).getMasterIdentifier().getValue());
+        }
+        assertEquals("urn:oid:1.2.3.100", parallel.get(200).getRelatesToFirstRep().getTarget().getReference());
+    }
+
+    private static Iti67ResponseConverter converter(final int parallelThreshold) {
+        final var xdsProps = new MagXdsProps();
+        xdsProps.setRetrieve("https://mag.example.com/Binary");
+        xdsProps.getTranslation().setParallelThreshold(parallelThreshold);
+        xdsProps.getTranslation().setThreads(4);
+        final var mpiProps = new MagMpiProps();
+        mpiProps.setOids(new MagMpiProps.MagMpiOidsProps());
+        final var magProps = new MagProps();
+        magProps.setXds(xdsProps);
+        magProps.setMpi(mpiProps);
+        return new Iti67ResponseConverter(magProps, new SchemeMapper(), null);
+    }
+}
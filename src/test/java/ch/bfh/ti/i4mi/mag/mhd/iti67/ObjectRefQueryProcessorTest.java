@@ -0,0 +1,214 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.fhir.Constants;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.ObjectReference;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.QueryRegistry;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.FindDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.query.GetDocumentsQuery;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ObjectRefQueryProcessor}, in a Camel route with stub ITI-18 and XCA-38 endpoints.
+ * <p>
+ * The stubs answer the ObjectRef queries with the configured references, and the GetDocuments queries with the
+ * requested entries in reverse order.
+ * </p>
+ **/
+class ObjectRefQueryProcessorTest {
+    private static final String HOME_A = "urn:oid:1.1.1";
+    private static final String HOME_B = "urn:oid:2.2.2";
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+    private final ExecutorService continuationExecutor = Executors.newCachedThreadPool();
+    // Map: keys are the endpoints, values are the references they find
+    private final Map<String, List<ObjectReference>> references = Map.of(
+            "direct:iti18", new ArrayList<>(),
+            "direct:xca38", new ArrayList<>());
+    // The received queries, as "endpoint ObjectRef" or "endpoint home [uuids]"
+    private final Queue<String> queries = new ConcurrentLinkedQueue<>();
+    private final MagXdsProps.MagXdsObjectRefQueryProps props = new MagXdsProps.MagXdsObjectRefQueryProps();
+    private ProducerTemplate client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.props.setEnabled(true);
+        this.camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:iti18").process(exchange -> respond("direct:iti18", exchange));
+                from("direct:xca38").process(exchange -> respond("direct:xca38", exchange));
+            }
+        });
+        this.camelContext.start();
+        this.client = this.camelContext.createProducerTemplate();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.camelContext.stop();
+        this.continuationExecutor.shutdownNow();
+    }
+
+    @Test
+    void testDuplicatesPreferLocalReference() throws Exception {
+        this.references.get("direct:iti18").addAll(List.of(new ObjectReference("urn:uuid:1"),
+                                                           new ObjectReference("urn:uuid:2")));
+        this.references.get("direct:xca38").addAll(List.of(new ObjectReference("urn:uuid:2", HOME_A),
+                                                           new ObjectReference("urn:uuid:3", HOME_A)));
+        this.startProcessor();
+
+        assertEquals(3, this.countRequest().getMessage().getBody(Integer.class));
+        final var response = this.pageRequest(0, 10).getMessage().getBody(QueryResponse.class);
+
+        assertEquals(Status.SUCCESS, response.getStatus());
+        assertEquals(List.of("urn:uuid:1", "urn:uuid:2", "urn:uuid:3"), entryUuids(response));
+        // The duplicate is fetched from the local registry only
+        assertEquals(Set.of("direct:iti18 ObjectRef", "direct:xca38 ObjectRef",
+                            "direct:iti18 - [urn:uuid:1, urn:uuid:2]",
+                            "direct:xca38 " + HOME_A + " [urn:uuid:3]"),
+                     Set.copyOf(this.queries));
+        assertEquals(4, this.queries.size());
+    }
+
+    @Test
+    void testBatchesGroupedByHomeCommunity() throws Exception {
+        this.props.setBatchSize(2);
+        this.references.get("direct:iti18").addAll(List.of(new ObjectReference("urn:uuid:l1"),
+                                                           new ObjectReference("urn:uuid:l2"),
+                                                           new ObjectReference("urn:uuid:l3")));
+        this.references.get("direct:xca38").addAll(List.of(new ObjectReference("urn:uuid:a1", HOME_A),
+                                                           new ObjectReference("urn:uuid:b1", HOME_B),
+                                                           new ObjectReference("urn:uuid:a2", HOME_A)));
+        this.startProcessor();
+
+        final var response = this.pageRequest(0, 10).getMessage().getBody(QueryResponse.class);
+
+        assertEquals(6, response.getDocumentEntries().size());
+        assertEquals(Set.of("direct:iti18 - [urn:uuid:l1, urn:uuid:l2]",
+                            "direct:iti18 - [urn:uuid:l3]",
+                            "direct:xca38 " + HOME_A + " [urn:uuid:a1, urn:uuid:a2]",
+                            "direct:xca38 " + HOME_B + " [urn:uuid:b1]"),
+                     this.queries.stream().filter(query -> !query.endsWith("ObjectRef")).collect(Collectors.toSet()));
+    }
+
+    @Test
+    void testEntriesKeepReferenceOrder() throws Exception {
+        this.props.setBatchSize(2);
+        this.references.get("direct:iti18").addAll(List.of(new ObjectReference("urn:uuid:1"),
+                                                           new ObjectReference("urn:uuid:3"),
+                                                           new ObjectReference("urn:uuid:5")));
+        this.references.get("direct:xca38").addAll(List.of(new ObjectReference("urn:uuid:4", HOME_B),
+                                                           new ObjectReference("urn:uuid:2", HOME_A),
+                                                           new ObjectReference("urn:uuid:6", HOME_B)));
+        this.startProcessor();
+
+        final var response = this.pageRequest(0, 10).getMessage().getBody(QueryResponse.class);
+
+        // The stubs answer in reverse order, and the batches complete in any order
+        assertEquals(List.of("urn:uuid:1", "urn:uuid:3", "urn:uuid:5", "urn:uuid:4", "urn:uuid:2", "urn:uuid:6"),
+                     entryUuids(response));
+    }
+
+    @Test
+    void testPageSlicedFromFoundReferences() throws Exception {
+        for (int i = 0; i < 5; ++i) {
+            this.references.get("direct:iti18").add(new ObjectReference("urn:uuid:" + i));
+        }
+        this.startProcessor();
+
+        assertEquals(5, this.countRequest().getMessage().getBody(Integer.class));
+        final var page = this.pageRequest(1, 3).getMessage().getBody(QueryResponse.class);
+        assertEquals(List.of("urn:uuid:1", "urn:uuid:2"), entryUuids(page));
+        final var lastPage = this.pageRequest(4, 6).getMessage().getBody(QueryResponse.class);
+        assertEquals(List.of("urn:uuid:4"), entryUuids(lastPage));
+        final var pastEnd = this.pageRequest(8, 10).getMessage().getBody(QueryResponse.class);
+        assertEquals(List.of(), entryUuids(pastEnd));
+
+        // The pages reuse the references found for the count
+        assertEquals(2, this.queries.stream().filter(query -> query.endsWith("ObjectRef")).count());
+    }
+
+    /**
+     * Adds the route that runs the processor, with the properties set by the test.
+     */
+    private void startProcessor() throws Exception {
+        final var querySender = new QuerySender(this.camelContext.createProducerTemplate(),
+                                                "direct:iti18", Duration.ofSeconds(5),
+                                                "direct:xca38", Duration.ofSeconds(5),
+                                                new QueryResponseMerger());
+        final var processor = new ObjectRefQueryProcessor(querySender, this.props, this.continuationExecutor,
+                                                          "searchKey");
+        this.camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:search").process(processor);
+            }
+        });
+    }
+
+    private Exchange countRequest() {
+        return this.send(Map.of(Constants.FHIR_REQUEST_SIZE_ONLY, true));
+    }
+
+    private Exchange pageRequest(final int fromIndex, final int toIndex) {
+        return this.send(Map.of(Constants.FHIR_FROM_INDEX, fromIndex, Constants.FHIR_TO_INDEX, toIndex));
+    }
+
+    private Exchange send(final Map<String, Object> headers) {
+        final Exchange result = this.client.send("direct:search", exchange -> {
+            exchange.setProperty("searchKey", "search-1");
+            exchange.getMessage().setHeaders(new HashMap<>(headers));
+            exchange.getMessage().setBody(new QueryRegistry(new FindDocumentsQuery()));
+        });
+        assertNull(result.getException());
+        return result;
+    }
+
+    private void respond(final String endpoint, final Exchange exchange) {
+        final var queryRegistry = exchange.getMessage().getBody(QueryRegistry.class);
+        final var response = new QueryResponse(Status.SUCCESS);
+        if (queryRegistry.getQuery() instanceof final GetDocumentsQuery query) {
+            this.queries.add("%s %s %s".formatted(endpoint,
+                                                  (query.getHomeCommunityId() != null) ? query.getHomeCommunityId() : "-",
+                                                  query.getUuids()));
+            for (final String uuid : query.getUuids().reversed()) {
+                final var documentEntry = new DocumentEntry();
+                documentEntry.setEntryUuid(uuid);
+                response.getDocumentEntries().add(documentEntry);
+            }
+        } else {
+            this.queries.add(endpoint + " ObjectRef");
+            response.getReferences().addAll(this.references.get(endpoint));
+        }
+        exchange.getMessage().setBody(response);
+    }
+
+    private static List<String> entryUuids(final QueryResponse response) {
+        return response.getDocumentEntries().stream().map(DocumentEntry::getEntryUuid).toList();
+    }
+}
@@ -0,0 +1,51 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti67;
+
+import org.junit.jupiter.api.Test;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.Association;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.AssociationType;
+import org.openehealth.ipf.commons.ihe.xds.core.metadata.DocumentEntry;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.QueryResponse;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link QueryResponseMerger}.
+ **/
+class QueryResponseMergerTest {
+
+    @Test
+    void testMerge() {
+        final var response18 = new QueryResponse(Status.SUCCESS);
+        response18.getDocumentEntries().add(documentEntry("urn:uuid:1", null));
+        response18.getDocumentEntries().add(documentEntry("urn:uuid:2", null));
+        response18.getAssociations().add(
+                new Association(AssociationType.HAS_MEMBER, "urn:uuid:10", "urn:uuid:20", "urn:uuid:2"));
+
+        final var response38 = new QueryResponse(Status.SUCCESS);
+        response38.getDocumentEntries().add(documentEntry("urn:uuid:2", "urn:oid:1.2.3"));
+        response38.getDocumentEntries().add(documentEntry("urn:uuid:3", "urn:oid:1.2.3"));
+        response38.getAssociations().add(
+                new Association(AssociationType.HAS_MEMBER, "urn:uuid:10", "urn:uuid:20", "urn:uuid:2"));
+
+        final var merger = new QueryResponseMerger();
+        final var merged = merger.merge(response18, response38);
+
+        assertSame(response18, merged);
+        assertEquals(3, merged.getDocumentEntries().size());
+        assertEquals("urn:uuid:1", merged.getDocumentEntries().get(0).getEntryUuid());
+        // The most complete copy is kept, at the position of the first one
+        assertEquals("urn:uuid:2", merged.getDocumentEntries().get(1).getEntryUuid());
+        assertEquals("urn:oid:1.2.3", merged.getDocumentEntries().get(1).getHomeCommunityId());
+        assertEquals("urn:uuid:3", merged.getDocumentEntries().get(2).getEntryUuid());
+        assertEquals(1, merged.getAssociations().size());
+        assertEquals(2, merger.getDuplicateCount());
+    }
+
+    private static DocumentEntry documentEntry(final String entryUuid, final String homeCommunityId) {
+        final var documentEntry = new DocumentEntry();
+        documentEntry.setEntryUuid(entryUuid);
+        documentEntry.setHomeCommunityId(homeCommunityId);
+        return documentEntry;
+    }
+}
@@ -0,0 +1,40 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti68;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ByteRange}.
+ **/
+class ByteRangeTest {
+
+    @Test
+    void testParse() {
+        assertEquals(new ByteRange(0, 99), ByteRange.parse("bytes=0-99", 1000));
+        assertEquals(new ByteRange(500, 999), ByteRange.parse("bytes=500-", 1000));
+        assertEquals(new ByteRange(900, 999), ByteRange.parse("bytes=-100", 1000));
+        assertEquals(new ByteRange(0, 999), ByteRange.parse("bytes=-2000", 1000));
+        assertEquals(new ByteRange(990, 999), ByteRange.parse("bytes=990-2000", 1000));
+        assertEquals(100, ByteRange.parse("bytes=0-99", 1000).length());
+        assertEquals("bytes 0-99/1000", ByteRange.parse("bytes=0-99", 1000).toContentRange(1000));
+    }
+
+    @Test
+    void testUnsatisfiable() {
+        assertFalse(ByteRange.parse("bytes=1000-", 1000).isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=0-", 0).isSatisfiable());
+        assertTrue(ByteRange.parse("bytes=999-", 1000).isSatisfiable());
+    }
+
+    @Test
+    void testIgnored() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-9", 1000));
+        assertNull(ByteRange.parse("bytes=0-9,20-29", 1000));
+        assertNull(ByteRange.parse("bytes=9-0", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+    }
+}
@@ -0,0 +1,213 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti68;
+
+import ch.bfh.ti.i4mi.mag.config.props.MagXdsProps;
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocument;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link DocumentCache}.
+ **/
+class DocumentCacheTest {
+    private static final DocumentCache.DocumentKey KEY_1 = new DocumentCache.DocumentKey("1.1", "urn:oid:1", "1.2.1");
+    private static final DocumentCache.DocumentKey KEY_2 = new DocumentCache.DocumentKey("1.1", "urn:oid:1", "1.2.2");
+    private static final DocumentCache.DocumentKey KEY_3 = new DocumentCache.DocumentKey("1.1", "urn:oid:1", "1.2.3");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testLeastRecentlyUsedEviction() throws IOException {
+        final var cache = new DocumentCache(props(250, 100));
+        cache.put(KEY_1, document(100));
+        cache.put(KEY_2, document(100));
+        // Reading a document makes it the most recently used
+        read(cache, KEY_1);
+        cache.put(KEY_3, document(100));
+
+        assertTrue(cache.contains(KEY_1));
+        assertFalse(cache.contains(KEY_2));
+        assertTrue(cache.contains(KEY_3));
+        assertEquals(200, cache.size());
+        try (final var files = Files.list(this.directory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void testServedFromCachedFile() throws IOException {
+        final var cache = new DocumentCache(props(250, 100));
+        final var document = document(100);
+        cache.put(KEY_1, document);
+
+        final var cached = cache.open(KEY_1);
+        assertNotNull(cached);
+        assertEquals(100, cached.length());
+        assertEquals("text/plain", cached.mimeType());
+        try (final InputStream in = cached.dataHandler().getInputStream()) {
+            assertArrayEquals(content(100), in.readAllBytes());
+        }
+        try (final InputStream in = document.getDataHandler().getInputStream()) {
+            assertArrayEquals(content(100), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void testLargeDocumentNotCached() throws IOException {
+        final var cache = new DocumentCache(props(250, 100));
+        final var document = document(150);
+        cache.put(KEY_1, document);
+
+        assertFalse(cache.contains(KEY_1));
+        // The bytes already copied are replayed
+        try (final InputStream in = document.getDataHandler().getInputStream()) {
+            assertArrayEquals(content(150), in.readAllBytes());
+        }
+        try (final var files = Files.list(this.directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void testEvictedWhileRead() throws IOException {
+        final var cache = new DocumentCache(props(250, 100));
+        cache.put(KEY_1, document(100));
+        final var opened = cache.open(KEY_1);
+        assertNotNull(opened);
+
+        // KEY_1 is evicted, and its file deleted, before the response reads it
+        cache.put(KEY_2, document(100));
+        cache.put(KEY_3, document(100));
+        assertFalse(cache.contains(KEY_1));
+        try (final var files = Files.list(this.directory)) {
+            assertEquals(2, files.count());
+        }
+
+        try (final InputStream in = opened.dataHandler().getInputStream()) {
+            assertEquals(100, Iti68ResponseConverter.contentLength(opened.dataHandler(), in));
+            assertArrayEquals(content(100), in.readAllBytes());
+        }
+        assertNull(cache.open(KEY_1));
+    }
+
+    @Test
+    void testStoredDocumentEvictedBeforeRead() throws IOException {
+        final var cache = new DocumentCache(props(250, 100));
+        final var document = document(100);
+        cache.put(KEY_1, document);
+
+        // KEY_1 is evicted by concurrent requests before its own response reads it
+        cache.put(KEY_2, document(100));
+        cache.put(KEY_3, document(100));
+        assertFalse(cache.contains(KEY_1));
+
+        try (final InputStream in = document.getDataHandler().getInputStream()) {
+            assertEquals(100, Iti68ResponseConverter.contentLength(document.getDataHandler(), in));
+            assertArrayEquals(content(100), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void testOwnerOnlyPermissions() throws IOException {
+        assumeTrue(this.directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        final Path cacheDirectory = this.directory.resolve("documents");
+        final var props = props(250, 100);
+        props.setDirectory(cacheDirectory.toString());
+
+        new DocumentCache(props).put(KEY_1, document(100));
+
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(cacheDirectory));
+        try (final var files = Files.list(cacheDirectory)) {
+            for (final var file : (Iterable<Path>) files::iterator) {
+                assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+            }
+        }
+    }
+
+    @Test
+    void testDeletedFileNotServed() throws IOException {
+        final var cache = new DocumentCache(props(250, 100));
+        cache.put(KEY_1, document(100));
+        try (final var files = Files.list(this.directory)) {
+            for (final var file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+
+        // The document is then retrieved again from the repository
+        assertNull(cache.open(KEY_1));
+        assertFalse(cache.contains(KEY_1));
+        assertEquals(0, cache.size());
+    }
+
+    private static void read(final DocumentCache cache, final DocumentCache.DocumentKey key) throws IOException {
+        final var opened = cache.open(key);
+        assertNotNull(opened);
+        try (final InputStream in = opened.dataHandler().getInputStream()) {
+            in.readAllBytes();
+        }
+    }
+
+    private MagXdsProps.MagXdsDocumentCacheProps props(final long maxSize, final long maxEntrySize) {
+        final var props = new MagXdsProps.MagXdsDocumentCacheProps();
+        props.setEnabled(true);
+        props.setDirectory(this.directory.toString());
+        props.setMaxSize(DataSize.ofBytes(maxSize));
+        props.setMaxEntrySize(DataSize.ofBytes(maxEntrySize));
+        return props;
+    }
+
+    /**
+     * Returns a document whose length is unknown, as a streamed repository response.
+     */
+    private static RetrievedDocument document(final int length) {
+        final InputStream in = new BufferedInputStream(new ByteArrayInputStream(content(length)));
+        final var document = new RetrievedDocument();
+        document.setMimeType("text/plain");
+        document.setDataHandler(new DataHandler(new DataSource() {
+            @Override
+            public InputStream getInputStream() {
+                return in;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getContentType() {
+                return "text/plain";
+            }
+
+            @Override
+            public String getName() {
+                return "";
+            }
+        }));
+        return document;
+    }
+
+    private static byte[] content(final int length) {
+        final byte[] content = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+}
@@ -0,0 +1,44 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti68;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Iti68RequestConverter}.
+ **/
+class Iti68RequestConverterTest {
+
+    @Test
+    void testBatchGroupedByCommunity() {
+        final var requests = Iti68RequestConverter.queryParametersToRetrieveDocumentSets(Map.of(
+                "uniqueId", List.of("1.2.1", "1.2.2", "1.2.3"),
+                "repositoryUniqueId", "1.1",
+                "homeCommunityId", List.of("urn:oid:1", "urn:oid:2", "urn:oid:1")
+        ), 20);
+
+        assertEquals(2, requests.size());
+        final var community1 = requests.get("urn:oid:1").getDocuments();
+        assertEquals(2, community1.size());
+        assertEquals("1.2.1", community1.get(0).getDocumentUniqueId());
+        assertEquals("1.2.3", community1.get(1).getDocumentUniqueId());
+        assertEquals("1.1", community1.get(1).getRepositoryUniqueId());
+        assertEquals("1.2.2", requests.get("urn:oid:2").getDocuments().getFirst().getDocumentUniqueId());
+    }
+
+    @Test
+    void testBatchParametersChecked() {
+        assertThrows(InvalidRequestException.class, () -> Iti68RequestConverter.queryParametersToRetrieveDocumentSets(
+                Map.of("uniqueId", List.of("1.2.1", "1.2.2", "1.2.3"),
+                       "repositoryUniqueId", List.of("1.1", "1.2"),
+                       "homeCommunityId", "urn:oid:1"), 20));
+        assertThrows(InvalidRequestException.class, () -> Iti68RequestConverter.queryParametersToRetrieveDocumentSets(
+                Map.of("uniqueId", List.of("1.2.1", "1.2.2"),
+                       "repositoryUniqueId", "1.1",
+                       "homeCommunityId", "urn:oid:1"), 1));
+    }
+}
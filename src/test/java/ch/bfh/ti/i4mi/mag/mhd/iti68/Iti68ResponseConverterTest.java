@@ -0,0 +1,275 @@
+package ch.bfh.ti.i4mi.mag.mhd.iti68;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.activation.FileDataSource;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openehealth.ipf.commons.ihe.xds.core.requests.DocumentReference;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorCode;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.ErrorInfo;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocument;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.RetrievedDocumentSet;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Severity;
+import org.openehealth.ipf.commons.ihe.xds.core.responses.Status;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Iti68ResponseConverter#retrievedDocumentSetToHttResponse} and the conditional requests, and for the
+ * multipart response of the batch retrieve.
+ **/
+class Iti68ResponseConverterTest {
+    private static final byte[] CONTENT = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+    private static final String HASH = "A1B2C3D4E5F60718293A4B5C6D7E8F9012345678";
+    private static final String ENTITY_TAG = "\"a1b2c3d4e5f60718293a4b5c6d7e8f9012345678\"";
+
+    @TempDir
+    Path directory;
+
+    private final MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+    private final MockHttpServletResponse httpResponse = new MockHttpServletResponse();
+    private final Map<String, Object> headers = new HashMap<>();
+
+    @Test
+    void testNotModified() {
+        this.httpRequest.addHeader("If-None-Match", "\"other\", W/" + ENTITY_TAG);
+        final Exchange exchange = this.exchange(HASH);
+
+        assertTrue(Iti68ResponseConverter.isNotModified(exchange));
+        Iti68ResponseConverter.notModified(exchange);
+        assertEquals(304, exchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals(ENTITY_TAG, exchange.getMessage().getHeader("ETag"));
+        assertNull(exchange.getMessage().getBody());
+
+        // Without a hash returned by the registry, the If-None-Match header never matches
+        assertFalse(Iti68ResponseConverter.isNotModified(this.exchange(null)));
+        this.httpRequest.removeHeader("If-None-Match");
+        this.httpRequest.addHeader("If-None-Match", "\"other\"");
+        assertFalse(Iti68ResponseConverter.isNotModified(this.exchange(HASH)));
+    }
+
+    @Test
+    void testWholeDocument() throws IOException {
+        final Object body = this.convert(this.fileDocument(), HASH);
+
+        assertNull(this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals(ENTITY_TAG, this.headers.get("ETag"));
+        assertEquals("bytes", this.headers.get("Accept-Ranges"));
+        assertEquals(CONTENT.length, this.httpResponse.getContentLengthLong());
+        assertArrayEquals(CONTENT, read(body));
+
+        // No ETag if the hash is not known
+        this.headers.clear();
+        this.convert(this.fileDocument(), null);
+        assertNull(this.headers.get("ETag"));
+    }
+
+    @Test
+    void testRangeWithKnownLength() throws IOException {
+        this.httpRequest.addHeader("Range", "bytes=5-9");
+        final Object body = this.convert(this.fileDocument(), HASH);
+
+        assertEquals(206, this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("bytes 5-9/20", this.headers.get("Content-Range"));
+        assertEquals(5, this.httpResponse.getContentLengthLong());
+        assertArrayEquals("56789".getBytes(StandardCharsets.US_ASCII), read(body));
+    }
+
+    @Test
+    void testRangeWithUnknownLength() throws IOException {
+        this.httpRequest.addHeader("Range", "bytes=-4");
+        final Object body = this.convert(streamDocument(), HASH);
+
+        assertEquals(206, this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("bytes 16-19/20", this.headers.get("Content-Range"));
+        assertEquals(4, this.httpResponse.getContentLengthLong());
+        assertArrayEquals("ghij".getBytes(StandardCharsets.US_ASCII), read(body));
+    }
+
+    @Test
+    void testRangeNotSatisfiable() throws IOException {
+        this.httpRequest.addHeader("Range", "bytes=20-");
+        final Object body = this.convert(streamDocument(), HASH);
+
+        assertNull(body);
+        assertEquals(416, this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("bytes */20", this.headers.get("Content-Range"));
+        assertEquals(0, this.httpResponse.getContentLengthLong());
+    }
+
+    @Test
+    void testIfRange() throws IOException {
+        this.httpRequest.addHeader("Range", "bytes=0-1");
+        this.httpRequest.addHeader("If-Range", ENTITY_TAG);
+        assertArrayEquals("01".getBytes(StandardCharsets.US_ASCII), read(this.convert(this.fileDocument(), HASH)));
+        assertEquals(206, this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+
+        // The document has changed: it's sent whole
+        this.headers.clear();
+        this.httpRequest.removeHeader("If-Range");
+        this.httpRequest.addHeader("If-Range", "\"other\"");
+        assertArrayEquals(CONTENT, read(this.convert(this.fileDocument(), HASH)));
+        assertNull(this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+
+        // The hash is not known: the If-Range header can't match
+        this.headers.clear();
+        this.httpRequest.removeHeader("If-Range");
+        this.httpRequest.addHeader("If-Range", ENTITY_TAG);
+        assertArrayEquals(CONTENT, read(this.convert(this.fileDocument(), null)));
+        assertNull(this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test
+    void testMultipart() throws IOException {
+        this.headers.put("Accept", "*/*");
+        final var retrievedDocumentSet = new RetrievedDocumentSet();
+        retrievedDocumentSet.setStatus(Status.PARTIAL_SUCCESS);
+        retrievedDocumentSet.getDocuments().add(this.retrievedDocument("1.2.3", "text/plain", "first"));
+        retrievedDocumentSet.getDocuments().add(this.retrievedDocument("1.2.4", null, "second"));
+        final Object body = Iti68ResponseConverter.retrievedDocumentSetsToMultipart(
+                List.of(retrievedDocumentSet), this.headers, List.of("1.2.5", "1.2.6"));
+
+        final String contentType = (String) this.headers.get("Content-Type");
+        assertTrue(contentType.startsWith("multipart/mixed; boundary="));
+        final String boundary = contentType.substring("multipart/mixed; boundary=".length());
+        assertEquals("--" + boundary + "\r\n"
+                             + "Content-Type: text/plain\r\n"
+                             + "Content-ID: <1.2.3>\r\n"
+                             + "\r\n"
+                             + "first\r\n"
+                             + "--" + boundary + "\r\n"
+                             + "Content-Type: application/octet-stream\r\n"
+                             + "Content-ID: <1.2.4>\r\n"
+                             + "\r\n"
+                             + "second\r\n"
+                             + "--" + boundary + "--\r\n",
+                     new String(read(body), StandardCharsets.US_ASCII));
+        assertEquals("1.2.5,1.2.6", this.headers.get(Iti68ResponseConverter.MISSING_DOCUMENTS_HEADER));
+        // The request headers are not sent back
+        assertNull(this.headers.get("Accept"));
+        assertNull(this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+
+        // Nothing is missing: no header
+        this.headers.clear();
+        Iti68ResponseConverter.retrievedDocumentSetsToMultipart(List.of(retrievedDocumentSet), this.headers, List.of());
+        assertNull(this.headers.get(Iti68ResponseConverter.MISSING_DOCUMENTS_HEADER));
+    }
+
+    @Test
+    void testMultipartWithoutResponse() throws IOException {
+        // No community has answered in time
+        final Object body = Iti68ResponseConverter.retrievedDocumentSetsToMultipart(
+                List.of(), this.headers, List.of("1.2.3", "1.2.4"));
+
+        assertEquals(400, this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("1.2.3,1.2.4", this.headers.get(Iti68ResponseConverter.MISSING_DOCUMENTS_HEADER));
+        assertEquals("The documents could not be retrieved", body.toString());
+    }
+
+    @Test
+    void testMultipartAllFailed() throws IOException {
+        final List<RetrievedDocumentSet> retrievedDocumentSets = new ArrayList<>();
+        for (final String uniqueId : List.of("1.2.3", "1.2.4")) {
+            final var retrievedDocumentSet = new RetrievedDocumentSet();
+            retrievedDocumentSet.setStatus(Status.FAILURE);
+            retrievedDocumentSet.getErrors().add(new ErrorInfo(ErrorCode.MISSING_DOCUMENT,
+                                                               "Document " + uniqueId + " not found. ",
+                                                               Severity.ERROR, uniqueId, null));
+            retrievedDocumentSets.add(retrievedDocumentSet);
+        }
+        final Object body = Iti68ResponseConverter.retrievedDocumentSetsToMultipart(
+                retrievedDocumentSets, this.headers, List.of("1.2.3", "1.2.4"));
+
+        assertEquals(400, this.headers.get(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("1.2.3,1.2.4", this.headers.get(Iti68ResponseConverter.MISSING_DOCUMENTS_HEADER));
+        assertEquals("Document 1.2.3 not found. Document 1.2.4 not found. ", body.toString());
+        assertNull(this.headers.get("Content-Type"));
+    }
+
+    private Object convert(final DataHandler dataHandler, final String hash) throws IOException {
+        final var document = new RetrievedDocument();
+        document.setMimeType("text/plain");
+        document.setDataHandler(dataHandler);
+        final var retrievedDocumentSet = new RetrievedDocumentSet();
+        retrievedDocumentSet.setStatus(Status.SUCCESS);
+        retrievedDocumentSet.getDocuments().add(document);
+        return Iti68ResponseConverter.retrievedDocumentSetToHttResponse(retrievedDocumentSet, this.headers,
+                                                                         this.exchange(hash));
+    }
+
+    private Exchange exchange(final String hash) {
+        final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setProperty(Iti68ResponseConverter.HTTP_SERVLET_REQUEST_PROPERTY, this.httpRequest);
+        exchange.setProperty(Iti68ResponseConverter.HTTP_SERVLET_RESPONSE_PROPERTY, this.httpResponse);
+        exchange.setProperty(Iti68ResponseConverter.DOCUMENT_HASH_PROPERTY, hash);
+        return exchange;
+    }
+
+    private RetrievedDocument retrievedDocument(final String uniqueId,
+                                                final String mimeType,
+                                                final String content) throws IOException {
+        final Path file = Files.writeString(Files.createTempFile(this.directory, "document", ".bin"), content);
+        final var document = new RetrievedDocument();
+        document.setRequestData(new DocumentReference("2.16.756.1", uniqueId, "urn:oid:2.16.756.2"));
+        document.setMimeType(mimeType);
+        document.setDataHandler(new DataHandler(new FileDataSource(file.toFile())));
+        return document;
+    }
+
+    private DataHandler fileDocument() throws IOException {
+        final Path file = Files.write(Files.createTempFile(this.directory, "document", ".txt"), CONTENT);
+        return new DataHandler(new FileDataSource(file.toFile()));
+    }
+
+    /**
+     * Returns a document whose length is not known without reading it.
+     */
+    private static DataHandler streamDocument() {
+        return new DataHandler(new DataSource() {
+            @Override
+            public InputStream getInputStream() {
+                return new BufferedInputStream(new ByteArrayInputStream(CONTENT));
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getContentType() {
+                return "text/plain";
+            }
+
+            @Override
+            public String getName() {
+                return "";
+            }
+        });
+    }
+
+    private static byte[] read(final Object body) throws IOException {
+        try (final InputStream in = (InputStream) body) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ch.bfh.ti.i4mi.mag.sts;
+
+import net.shibboleth.shared.xml.impl.BasicParserPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Unmarshaller;
+import org.opensaml.saml.saml2.core.Assertion;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link StsUtils#summarize} with the previous code path, which parsed the assertion with the OpenSAML
+ * parser pool and unmarshalled it to read the same values.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StsUtilsBenchmark {
+    private static final String ASSERTION = """
+            <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_1" Version="2.0"
+                             IssueInstant="2026-01-01T10:00:00Z">
+                <saml2:Issuer>https://sts.example.com</saml2:Issuer>
+                <saml2:Subject>
+                    <saml2:NameID Format="urn:oasis:names:tc:SAML:2.0:nameid-format:persistent">
+                        7601000000000
+                    </saml2:NameID>
+                    <saml2:SubjectConfirmation Method="urn:oasis:names:tc:SAML:2.0:cm:bearer">
+                        <saml2:NameID>delegate</saml2:NameID>
+                    </saml2:SubjectConfirmation>
+                </saml2:Subject>
+                <saml2:Conditions NotBefore="2026-01-01T10:00:00Z" NotOnOrAfter="2026-01-01T10:05:00.000Z">
+                    <saml2:AudienceRestriction>
+                        <saml2:Audience>urn:e-health-suisse:token-audience:all-communities</saml2:Audience>
+                    </saml2:AudienceRestriction>
+                </saml2:Conditions>
+                <saml2:AttributeStatement>
+                    <saml2:Attribute Name="urn:oasis:names:tc:xspa:1.0:subject:subject-id">
+                        <saml2:AttributeValue>Dr. House</saml2:AttributeValue>
+                    </saml2:Attribute>
+                    <saml2:Attribute Name="urn:oasis:names:tc:xacml:2.0:resource:resource-id">
+                        <saml2:AttributeValue>761337610000000001^^^&amp;2.16.756.5.30.1.127.3.10.3&amp;ISO</saml2:AttributeValue>
+                    </saml2:Attribute>
+                    <saml2:Attribute Name="urn:ihe:iti:xca:2010:homeCommunityId">
+                        <saml2:AttributeValue>urn:oid:2.16.756.5.30.1.127.3.10.1</saml2:AttributeValue>
+                    </saml2:Attribute>
+                </saml2:AttributeStatement>
+            </saml2:Assertion>""";
+
+    private final StsUtils stsUtils = new StsUtils();
+    private BasicParserPool samlParserPool;
+    private Unmarshaller assertionUnmarshaller;
+
+    @Setup
+    public void setUp() throws Exception {
+        InitializationService.initialize();
+        this.samlParserPool = new BasicParserPool();
+        this.samlParserPool.setNamespaceAware(true);
+        this.samlParserPool.initialize();
+        this.assertionUnmarshaller = XMLObjectProviderRegistrySupport.getUnmarshallerFactory()
+                .getUnmarshaller(Assertion.DEFAULT_ELEMENT_NAME);
+    }
+
+    @Benchmark
+    public AssertionSummary streamingPass() throws Exception {
+        return this.stsUtils.summarize(ASSERTION);
+    }
+
+    @Benchmark
+    public AssertionSummary openSamlUnmarshal() throws Exception {
+        final var element = this.samlParserPool
+                .parse(new ByteArrayInputStream(ASSERTION.getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+        final Assertion assertion = (Assertion) this.assertionUnmarshaller.unmarshall(element);
+        return new AssertionSummary(assertion.getConditions().getNotOnOrAfter(),
+                                    assertion.getSubject().getNameID().getValue().trim(),
+                                    assertion.getIssuer().getValue().trim());
+    }
+}
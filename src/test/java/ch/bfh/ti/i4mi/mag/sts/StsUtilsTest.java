@@ -0,0 +1,80 @@
+package ch.bfh.ti.i4mi.mag.sts;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link StsUtils}.
+ **/
+class StsUtilsTest {
+
+    private static final String ASSERTION = """
+            <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_1" Version="2.0">
+                <saml2:Issuer>https://sts.example.com</saml2:Issuer>
+                <saml2:Subject>
+                    <saml2:NameID Format="urn:oasis:names:tc:SAML:2.0:nameid-format:persistent">
+                        7601000000000
+                    </saml2:NameID>
+                    <saml2:SubjectConfirmation Method="urn:oasis:names:tc:SAML:2.0:cm:bearer">
+                        <saml2:NameID>delegate</saml2:NameID>
+                    </saml2:SubjectConfirmation>
+                </saml2:Subject>
+                <saml2:Conditions NotBefore="2026-01-01T10:00:00Z" NotOnOrAfter="2026-01-01T10:05:00.000Z"/>
+                <saml2:Advice>
+                    <saml2:Assertion ID="_2" Version="2.0">
+                        <saml2:Issuer>https://idp.example.com</saml2:Issuer>
+                        <saml2:Conditions NotOnOrAfter="2027-01-01T00:00:00Z"/>
+                    </saml2:Assertion>
+                </saml2:Advice>
+            </saml2:Assertion>""";
+
+    private final StsUtils stsUtils = new StsUtils();
+
+    @Test
+    void testSummarize() throws Exception {
+        final var summary = this.stsUtils.summarize(ASSERTION);
+        assertEquals(Instant.parse("2026-01-01T10:05:00Z"), summary.notOnOrAfter());
+        assertEquals("7601000000000", summary.subject());
+        assertEquals("https://sts.example.com", summary.issuer());
+    }
+
+    @Test
+    void testSummarizeStsResponse() throws Exception {
+        final String response = """
+                <soap:Envelope xmlns:soap="http://www.w3.org/2003/05/soap-envelope">
+                    <soap:Body>
+                        <wst:RequestSecurityTokenResponseCollection xmlns:wst="http://docs.oasis-open.org/ws-sx/ws-trust/200512">
+                            <wst:RequestSecurityTokenResponse>
+                                <wst:RequestedSecurityToken>%s</wst:RequestedSecurityToken>
+                            </wst:RequestSecurityTokenResponse>
+                        </wst:RequestSecurityTokenResponseCollection>
+                    </soap:Body>
+                </soap:Envelope>""".formatted(ASSERTION);
+        final var summary = this.stsUtils.summarize(response);
+        assertEquals(Instant.parse("2026-01-01T10:05:00Z"), summary.notOnOrAfter());
+        assertEquals("7601000000000", summary.subject());
+        assertEquals("https://sts.example.com", summary.issuer());
+    }
+
+    @Test
+    void testMissingValues() throws Exception {
+        final var summary = this.stsUtils.summarize(
+                "<Assertion xmlns=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_1\" Version=\"2.0\"/>");
+        assertNull(summary.notOnOrAfter());
+        assertNull(summary.subject());
+        assertNull(summary.issuer());
+        assertNull(this.stsUtils.extractNotOnOrAfter(
+                "<Assertion xmlns=\"urn:oasis:names:tc:SAML:2.0:assertion\"><Conditions/></Assertion>"));
+    }
+
+    @Test
+    void testNoAssertion() {
+        assertThrows(XMLStreamException.class, () -> this.stsUtils.summarize("<Response/>"));
+        assertThrows(XMLStreamException.class, () -> this.stsUtils.summarize(
+                "<!DOCTYPE a [<!ENTITY x SYSTEM \"file:///etc/passwd\">]><a>&x;</a>"));
+    }
+}
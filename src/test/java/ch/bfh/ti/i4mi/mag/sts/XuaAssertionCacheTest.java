@@ -0,0 +1,82 @@
+package ch.bfh.ti.i4mi.mag.sts;
+
+import ch.bfh.ti.i4mi.mag.common.MutableClock;
+import ch.bfh.ti.i4mi.mag.config.props.MagAuthProps;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link XuaAssertionCache}.
+ **/
+class XuaAssertionCacheTest {
+
+    @Test
+    void testCacheKeyNormalizesScope() {
+        final var key = XuaAssertionCache.cacheKey("<idp/>", "purpose_of_use=NORM person_id=123 subject_role=PAT");
+        assertEquals(key, XuaAssertionCache.cacheKey("<idp/>", " subject_role=PAT  purpose_of_use=NORM person_id=123"));
+        assertNotEquals(key, XuaAssertionCache.cacheKey("<idp/>", "purpose_of_use=EMER person_id=123 subject_role=PAT"));
+        assertNotEquals(key, XuaAssertionCache.cacheKey("<other/>", "purpose_of_use=NORM person_id=123 subject_role=PAT"));
+    }
+
+    @Test
+    void testExpiration() {
+        final var now = Instant.parse("2026-01-01T10:00:00Z");
+        final var cache = new XuaAssertionCache(new MagAuthProps.MagAuthAssertionCacheProps(), null,
+                                                Clock.fixed(now, ZoneOffset.UTC));
+        final var authRequest = new AuthenticationRequest();
+        authRequest.setIdpAssertion("<idp/>");
+        final var scope = "purpose_of_use=NORM person_id=123";
+
+        assertNull(cache.lookup(authRequest, scope));
+        cache.put(XuaAssertionCache.cacheKey("<idp/>", scope), "<xua/>", now.plus(Duration.ofMinutes(5)));
+        assertEquals("<xua/>", cache.lookup(authRequest, scope));
+        assertNull(cache.lookup(authRequest, "purpose_of_use=EMER person_id=123"));
+
+        // Within the safety margin: not cached
+        cache.put(XuaAssertionCache.cacheKey("<idp/>", "other"), "<xua/>", now.plus(Duration.ofSeconds(10)));
+        assertNull(cache.lookup(authRequest, "other"));
+    }
+
+    @Test
+    void testExpirationCappedByIdpAssertion() {
+        final var clock = new MutableClock();
+        final var cache = new XuaAssertionCache(new MagAuthProps.MagAuthAssertionCacheProps(), new StsUtils(), clock);
+        final var authRequest = new AuthenticationRequest();
+        authRequest.setIdpAssertion(assertion(clock.instant().plus(Duration.ofMinutes(2))));
+        final var scope = "purpose_of_use=NORM person_id=123";
+
+        final var xua = assertion(clock.instant().plus(Duration.ofMinutes(5)));
+        cache.store(authRequest, scope, xua);
+        assertEquals(xua, cache.lookup(authRequest, scope));
+
+        // The IdP assertion expires within the safety margin, the STS would reject it
+        clock.advance(Duration.ofSeconds(91));
+        assertNull(cache.lookup(authRequest, scope));
+    }
+
+    @Test
+    void testIdpAssertionWithoutExpirationNotCached() {
+        final var clock = new MutableClock();
+        final var cache = new XuaAssertionCache(new MagAuthProps.MagAuthAssertionCacheProps(), new StsUtils(), clock);
+        final var authRequest = new AuthenticationRequest();
+        authRequest.setIdpAssertion("""
+                <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_idp" Version="2.0"/>""");
+        final var scope = "purpose_of_use=NORM person_id=123";
+
+        cache.store(authRequest, scope, assertion(clock.instant().plus(Duration.ofMinutes(5))));
+        assertNull(cache.lookup(authRequest, scope));
+    }
+
+    private static String assertion(final Instant notOnOrAfter) {
+        return """
+                <saml2:Assertion xmlns:saml2="urn:oasis:names:tc:SAML:2.0:assertion" ID="_1" Version="2.0">
+                    <saml2:Conditions NotOnOrAfter="%s"/>
+                </saml2:Assertion>""".formatted(notOnOrAfter);
+    }
+}